@@ -4,11 +4,12 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.logging.Logger;
 
-import com.graphhopper.GraphHopper;
 import com.graphhopper.routing.util.AbstractFlagEncoder;
 import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.util.CmdArgs;
 import com.graphhopper.util.PMap;
+import com.opendoorlogistics.speedregions.ReloadableSpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
 import com.opendoorlogistics.speedregions.SpeedRegionLookup;
 import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
 import com.opendoorlogistics.speedregions.excelshp.app.VehicleType;
@@ -52,9 +53,10 @@ public class ExperimentalUseSpeedRegionsWithCarGH05 {
 			debugExportSpeeds = new DebugExportSpeeds(new File(debugExportFile));
 		}
 
-		SpeedRegionLookup speedRegionLookup = SpeedRegionLookupBuilder.loadFromCommandLineParameters(args.toMap());
+		// The graph is bound to the region types of the lookup it's built with, so take a fixed snapshot if reloadable
+		SpeedRegionLookup speedRegionLookup = ReloadableSpeedRegionLookup.fixed(SpeedRegionLookupBuilder.loadFromCommandLineParameters(args.toMap()));
 		args = CmdArgs.readFromConfigAndMerge(args, "config", "graphhopper.config");
-		GraphHopper hopper = new GraphHopper() {
+		SpeedRegionsGraphHopper hopper = new SpeedRegionsGraphHopper() {
 			@Override
 			protected void postProcessing() {
 
@@ -73,6 +75,15 @@ public class ExperimentalUseSpeedRegionsWithCarGH05 {
 		
 		// Build all the flag encoders
 		SpeedRegionsFlagEncodersFactory factory = new SpeedRegionsFlagEncodersFactory(bytesForFlags);		
+		
+		// Optionally resolve all the way regions in parallel before the import
+		boolean byTowerNodes = args.getBool(SpeedRegionConsts.COMMAND_LINE_PREPASS_BY_TOWER_NODES, false);
+		int prePassThreads = args.getInt(SpeedRegionConsts.COMMAND_LINE_PREPASS_THREADS,
+				byTowerNodes ? Runtime.getRuntime().availableProcessors() : 0);
+		if (prePassThreads > 0 && speedRegionLookup != null) {
+			factory.setWayRegionOrdinals(
+					WayRegionPrePass.resolve(new File(args.get("osmreader.osm", "")), speedRegionLookup, byTowerNodes, prePassThreads));
+		}
 		ArrayList<AbstractFlagEncoder> encoders = new ArrayList<>();
 		for (String encoder : splitEncoders) {
 			String propertiesString = "";
@@ -87,8 +98,15 @@ public class ExperimentalUseSpeedRegionsWithCarGH05 {
 		
 		EncodingManager myEncodingManager = new EncodingManager(encoders, bytesForFlags);
 		hopper.setEncodingManager(myEncodingManager);
+		hopper.setOrdinalsFingerprint(factory.getOrdinalsFingerprint());
+		hopper.setSpeedRegionLookup(speedRegionLookup);
+		if (factory.isQueryTimeRules()) {
+			LOGGER.info("Disabling contraction hierarchies as speed rules are applied at query time");
+			hopper.setCHEnable(false);
+		}
 		hopper.importOrLoad();
 		hopper.close();
+		LOGGER.info(factory.getQueryCounts().toString());
 	}
 
 
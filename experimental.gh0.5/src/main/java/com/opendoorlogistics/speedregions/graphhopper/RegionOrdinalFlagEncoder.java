@@ -0,0 +1,63 @@
+package com.opendoorlogistics.speedregions.graphhopper;
+
+import com.opendoorlogistics.speedregions.ReloadableSpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedMatrix;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+
+/**
+ * Flag encoder which can store each edge's speed region ordinal in the edge flags during import (enabled by
+ * {@link SpeedRegionConsts#ENCODER_STORE_REGION_ORDINAL}). Weightings and reports can then read an edge's region
+ * straight from its flags without querying the spatial tree. Use {@link SpeedRegionLookup#getRegionType(int)} to get
+ * the region type; the lookup must be the one the graph was imported with. The graph is bound to that lookup's region
+ * types: encoders can't be built with a live {@link ReloadableSpeedRegionLookup} (take a fixed snapshot instead) and
+ * {@link SpeedRegionsGraphHopper} refuses to load the graph with a lookup whose ordinals differ.
+ *
+ */
+public interface RegionOrdinalFlagEncoder {
+	/**
+	 * Get the region ordinal stored in the edge flags
+	 * 
+	 * @param flags
+	 * @return Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL} if none, or if the encoder isn't storing
+	 *         region ordinals
+	 */
+	int getRegionOrdinal(long flags);
+
+	/**
+	 * Get the highway type ordinal in the {@link SpeedMatrix}, only stored when the encoder is configured with
+	 * {@link SpeedRegionConsts#ENCODER_QUERY_TIME_RULES}
+	 * 
+	 * @param flags
+	 * @return Highway ordinal or {@link SpeedMatrix#NO_HIGHWAY_ORDINAL}
+	 */
+	int getHighwayOrdinal(long flags);
+
+	/**
+	 * Whether the edge's speed before the rules came from a max speed tag, only stored when the encoder is
+	 * configured with {@link SpeedRegionConsts#ENCODER_QUERY_TIME_RULES}
+	 * 
+	 * @param flags
+	 * @return
+	 */
+	boolean isUsedMaxSpeed(long flags);
+
+	/**
+	 * Whether the encoder is configured with {@link SpeedRegionConsts#ENCODER_QUERY_TIME_RULES}
+	 * 
+	 * @return
+	 */
+	boolean isQueryTimeRules();
+
+	/**
+	 * Get the speed the edge would have had if imported by an encoder applying a time profile's rules. Only differs
+	 * from the encoder's own speed when configured with {@link SpeedRegionConsts#ENCODER_QUERY_TIME_RULES}.
+	 * 
+	 * @param flags
+	 * @param reverse
+	 * @param encoderOrdinal
+	 *            Ordinal of the time profile's combined id in the {@link SpeedMatrix}
+	 * @return Speed in km/h, zero if the edge is blocked
+	 */
+	double getTimeProfileSpeed(long flags, boolean reverse, int encoderOrdinal);
+}
@@ -12,11 +12,11 @@ import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
-import com.graphhopper.GraphHopper;
 import com.graphhopper.routing.util.AbstractFlagEncoder;
 import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.util.CmdArgs;
 import com.graphhopper.util.PMap;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
 import com.opendoorlogistics.speedregions.SpeedRegionLookup;
 import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
 import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
@@ -116,7 +116,7 @@ public class RunWizardApp {
 		// Create graphhopper object.
 		// We also need to set OSM file before calling init on Graphhopper as an exception will fire otherwise..
 		mergedArgs.put("osmreader.osm", new File(settings.getPbfFile()).getAbsolutePath());
-		final GraphHopper graphHopper = new GraphHopper();
+		final SpeedRegionsGraphHopper graphHopper = new SpeedRegionsGraphHopper();
 		graphHopper.forDesktop().init(mergedArgs).setGraphHopperLocation(settings.getOutdirectory());
 
 		// Get enabled vehicles  and time profileid combinations, including default
@@ -143,14 +143,37 @@ public class RunWizardApp {
 			}
 		}
 
-		// We need more bytes for flags if we have more vehicle types...
-		int bytesForFlags = mergedArgs.getInt("graph.bytesForFlags", vehicleTypes.size() <= 2 ? 4 : 8);
+		// Optionally build one encoder per vehicle type and apply the time profile rules at query time
+		// instead (see TimeProfileWeighting)
+		PMap encoderConfig = new PMap();
+		boolean queryTimeRules = speedRegionLookup != null && mergedArgs.getBool(SpeedRegionConsts.ENCODER_QUERY_TIME_RULES, false);
+		if (queryTimeRules) {
+			encoderConfig.put(SpeedRegionConsts.ENCODER_QUERY_TIME_RULES, true);
+			TreeSet<VehicleTypeTimeProfile> baseTypes = new TreeSet<>();
+			for (VehicleTypeTimeProfile vttp : vehicleTypes) {
+				baseTypes.add(new VehicleTypeTimeProfile(vttp.getVehicleType(), ""));
+			}
+			LOGGER.info("Building " + baseTypes.size() + " encoder(s) with speed rules for " + vehicleTypes.size()
+					+ " time profile(s) applied at query time");
+			vehicleTypes = baseTypes;
+		}
+
+		// We need more bytes for flags if we have more vehicle types, or store the speed before the rules...
+		int bytesForFlags = mergedArgs.getInt("graph.bytesForFlags", vehicleTypes.size() <= 2 && !queryTimeRules ? 4 : 8);
 
 		ArrayList<AbstractFlagEncoder> newSpeedEncoders = new ArrayList<>();
 		SpeedRegionsFlagEncodersFactory factory = new SpeedRegionsFlagEncodersFactory(bytesForFlags);
+		boolean byTowerNodes = mergedArgs.getBool(SpeedRegionConsts.COMMAND_LINE_PREPASS_BY_TOWER_NODES, false);
+		int prePassThreads = mergedArgs.getInt(SpeedRegionConsts.COMMAND_LINE_PREPASS_THREADS,
+				byTowerNodes ? Runtime.getRuntime().availableProcessors() : 0);
+		if (prePassThreads > 0 && speedRegionLookup != null) {
+			LOGGER.info("Resolving way regions before the import");
+			factory.setWayRegionOrdinals(
+					WayRegionPrePass.resolve(new File(settings.getPbfFile()), speedRegionLookup, byTowerNodes, prePassThreads));
+		}
 		for (VehicleTypeTimeProfile type : vehicleTypes) {
 			newSpeedEncoders
-					.add(factory.createEncoder(type, new PMap(), speedRegionLookup, handledWayCB));
+					.add(factory.createEncoder(type, encoderConfig, speedRegionLookup, handledWayCB));
 		}
 
 		// Don't forget to call this otherwise the dummy encoders used to get original
@@ -160,6 +183,12 @@ public class RunWizardApp {
 		// Create the proper encoding manager
 		EncodingManager myEncodingManager = new EncodingManager(newSpeedEncoders, bytesForFlags);
 		graphHopper.setEncodingManager(myEncodingManager);
+		graphHopper.setOrdinalsFingerprint(factory.getOrdinalsFingerprint());
+		graphHopper.setSpeedRegionLookup(speedRegionLookup);
+		if (queryTimeRules) {
+			LOGGER.info("Disabling contraction hierarchies as speed rules are applied at query time");
+			graphHopper.setCHEnable(false);
+		}
 
 		System.out.println("");
 		System.out.println("############################");
@@ -175,6 +204,7 @@ public class RunWizardApp {
 		LOGGER.info("Building graph");
 		ProcessTimer graphTimer = new ProcessTimer().start();
 		graphHopper.importOrLoad().close();
+		LOGGER.info(factory.getQueryCounts().toString());
 		System.out.println("Graph took " + graphTimer.stop().secondsDuration() + " seconds to build");
 	}
 
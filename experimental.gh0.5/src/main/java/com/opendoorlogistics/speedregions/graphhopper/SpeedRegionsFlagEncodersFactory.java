@@ -1,13 +1,17 @@
 package com.opendoorlogistics.speedregions.graphhopper;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import com.graphhopper.reader.OSMWay;
 import com.graphhopper.routing.util.AbstractFlagEncoder;
 import com.graphhopper.routing.util.BikeFlagEncoder;
 import com.graphhopper.routing.util.CarFlagEncoder;
+import com.graphhopper.routing.util.EncodedValue;
 import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.routing.util.FootFlagEncoder;
 import com.graphhopper.routing.util.MotorcycleFlagEncoder;
@@ -15,36 +19,65 @@ import com.graphhopper.util.EdgeIteratorState;
 import com.graphhopper.util.PMap;
 import com.graphhopper.util.PointList;
 import com.graphhopper.util.shapes.GHPoint;
+import com.opendoorlogistics.speedregions.ReloadableSpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedMatrix;
 import com.opendoorlogistics.speedregions.SpeedRegionConsts;
 import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup.LinestringMode;
 import com.opendoorlogistics.speedregions.SpeedRegionLookup.SpeedRuleLookup;
+import com.opendoorlogistics.speedregions.WayRegionResolver;
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
 import com.opendoorlogistics.speedregions.beans.SpeedRule;
 import com.opendoorlogistics.speedregions.excelshp.app.AppInjectedDependencies.ProcessedWayListener;
 import com.opendoorlogistics.speedregions.excelshp.app.VehicleType;
 import com.opendoorlogistics.speedregions.excelshp.app.VehicleTypeTimeProfile;
-import com.opendoorlogistics.speedregions.utils.GeomUtils;
+import com.opendoorlogistics.speedregions.utils.LongIntHashMap;
 import com.opendoorlogistics.speedregions.utils.TextUtils;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
-import com.vividsolutions.jts.geom.Point;
 
 class SpeedRegionsFlagEncodersFactory {
 	private final int bytesForFlags;
 	private final ArrayList<AbstractFlagEncoder> originalEncoders = new ArrayList<>();
+	private LongIntHashMap wayRegionOrdinals;
+	private final RegionQueryCounts queryCounts = new RegionQueryCounts();
+	private String ordinalsFingerprint;
+	private boolean queryTimeRules;
 
 	SpeedRegionsFlagEncodersFactory(int bytesForFlags) {
 		this.bytesForFlags = bytesForFlags;
 	}
 
+	/**
+	 * Set the way regions resolved before the import (see {@link WayRegionPrePass}), used by encoders created
+	 * afterwards. Ways not in the map are still queried during the import.
+	 * 
+	 * @param wayRegionOrdinals
+	 */
+	void setWayRegionOrdinals(LongIntHashMap wayRegionOrdinals) {
+		this.wayRegionOrdinals = wayRegionOrdinals;
+	}
+
 	AbstractFlagEncoder createCar(VehicleTypeTimeProfile vttp,PMap config, final SpeedRegionLookup lookup, ProcessedWayListener cb) {
+		checkFixed(lookup);
 		MyCarFlagEncoder ret = new MyCarFlagEncoder(vttp,config, lookup, cb);
+		ret.helper.wayRegionOrdinals = wayRegionOrdinals;
+		ret.helper.queryCounts = queryCounts;
+		recordOrdinalsLookup(ret.helper);
+		queryTimeRules |= ret.helper.queryTimeRules;
 		originalEncoders.add(ret.helper.noSpeedRegionsFlagEncoder);
 		return ret;
 	}
 
 	AbstractFlagEncoder createMotorcycle(VehicleTypeTimeProfile vttp,PMap config, final SpeedRegionLookup lookup, ProcessedWayListener cb) {
+		checkFixed(lookup);
 		MyMotorcycleFlagEncoder ret = new MyMotorcycleFlagEncoder(vttp,config, lookup, cb);
+		ret.helper.wayRegionOrdinals = wayRegionOrdinals;
+		ret.helper.queryCounts = queryCounts;
+		recordOrdinalsLookup(ret.helper);
+		queryTimeRules |= ret.helper.queryTimeRules;
 		originalEncoders.add(ret.helper.noSpeedRegionsFlagEncoder);
 		return ret;
 	}
@@ -63,6 +96,59 @@ class SpeedRegionsFlagEncodersFactory {
 		throw new UnsupportedOperationException("Unsupported encoder type: " + type);
 	}
 
+	/**
+	 * Stored region ordinals are only meaningful with the lookup they were stored from, so a reloadable lookup must
+	 * be fixed to one snapshot with {@link ReloadableSpeedRegionLookup#fixed(SpeedRegionLookup)} before the import
+	 * 
+	 * @param lookup
+	 */
+	private static void checkFixed(SpeedRegionLookup lookup) {
+		if (lookup instanceof ReloadableSpeedRegionLookup) {
+			throw new RuntimeException("Encoders must be built with a fixed speed regions lookup; use ReloadableSpeedRegionLookup.fixed");
+		}
+	}
+
+	private void recordOrdinalsLookup(FlagEncoderHelper helper) {
+		if (!helper.storeRegionOrdinal) {
+			return;
+		}
+		String fingerprint = SpeedRegionLookupBuilder.getOrdinalsFingerprint(helper.lookup);
+		if (ordinalsFingerprint != null && !ordinalsFingerprint.equals(fingerprint)) {
+			throw new RuntimeException("All encoders storing region ordinals must use the same speed regions lookup");
+		}
+		ordinalsFingerprint = fingerprint;
+	}
+
+	/**
+	 * Get the ordinals fingerprint (see {@link SpeedRegionLookupBuilder#getOrdinalsFingerprint(SpeedRegionLookup)})
+	 * of the lookup the encoders store region ordinals from. Save it with the graph using
+	 * {@link SpeedRegionsGraphHopper#setOrdinalsFingerprint(String)}.
+	 * 
+	 * @return Fingerprint or null if no encoder stores region ordinals
+	 */
+	String getOrdinalsFingerprint() {
+		return ordinalsFingerprint;
+	}
+
+	/**
+	 * Whether any encoder created by the factory applies the rules at query time (see
+	 * {@link SpeedRegionConsts#ENCODER_QUERY_TIME_RULES}), so contraction hierarchies must be disabled
+	 * 
+	 * @return
+	 */
+	boolean isQueryTimeRules() {
+		return queryTimeRules;
+	}
+
+	/**
+	 * Get the counts of spatial queries made by all encoders created by the factory
+	 * 
+	 * @return
+	 */
+	RegionQueryCounts getQueryCounts() {
+		return queryCounts;
+	}
+
 	void finish() {
 		// Also create a dummy encoding manager for the original encoder so they're properly initialised
 		new EncodingManager(originalEncoders, bytesForFlags);
@@ -90,6 +176,67 @@ class SpeedRegionsFlagEncodersFactory {
 
 	private static final String ORIGINAL_SPEED_TAG = "odl-original-speed-";
 	private static final String SPEED_RULE_TAG = "odl-speed-rule-";
+	private static final String PRE_RULE_SPEED_TAG = "odl-pre-rule-speed-";
+	private static final String USED_MAX_SPEED_TAG = "odl-used-max-speed-";
+	private static final String EDGE_REGION_TAG = "odl-edge-region-";
+	private static final String EDGE_INTERVALS_TAG = "odl-edge-intervals-";
+
+	/**
+	 * Speeds before the rules are stored in query time mode in units of 0.1 km/h, up to 204.7 km/h
+	 */
+	private static final int PRE_RULE_SPEED_BITS = 11;
+	private static final double PRE_RULE_SPEED_UNITS = 10;
+
+	/**
+	 * Car and motorcycle encoders cap the speed on bad surfaces to this after getSpeed
+	 */
+	private static final double BAD_SURFACE_MAX_SPEED = 30;
+
+	/**
+	 * Counts of spatial queries shared by all encoders from a factory. Encoders are called one after the other for
+	 * the same way (and edge) on the OSM reader's thread, and the first encoder memos the region in the way's tags for
+	 * the others, so the number of way queries should equal the number of ways not resolved in the pre-pass whatever
+	 * the number of encoders, i.e. nbWays - nbPreResolvedWays.
+	 */
+	static class RegionQueryCounts {
+		private long nbWays;
+		private long nbPreResolvedWays;
+		private long nbWayQueries;
+		private long nbEdges;
+		private long nbEdgeQueries;
+
+		/**
+		 * Get the number of ways given a region, including those taken from the pre-pass
+		 */
+		long getNbWays() {
+			return nbWays;
+		}
+
+		/**
+		 * Get the number of ways whose region was taken from the pre-pass instead of queried
+		 */
+		long getNbPreResolvedWays() {
+			return nbPreResolvedWays;
+		}
+
+		long getNbWayQueries() {
+			return nbWayQueries;
+		}
+
+		long getNbEdges() {
+			return nbEdges;
+		}
+
+		long getNbEdgeQueries() {
+			return nbEdgeQueries;
+		}
+
+		@Override
+		public String toString() {
+			return "Region lookups: " + nbWays + " ways (" + nbPreResolvedWays + " from pre-pass), " + nbWayQueries + " way queries, " + nbEdges
+					+ " edges, " + nbEdgeQueries + " edge queries";
+		}
+	}
 
 	private static class FlagEncoderHelper {
 		final private SpeedRegionLookup lookup;
@@ -100,18 +247,233 @@ class SpeedRegionsFlagEncodersFactory {
 		final AbstractFlagEncoder noSpeedRegionsFlagEncoder;
 		final private ProcessedWayListener processedWayListener;
 		final private VehicleTypeTimeProfile encoderType;
+		final private String key2StorePreRuleSpeed;
+		final private String key2StoreUsedMaxSpeed;
+		final private SpeedMatrix speedMatrix;
+		final private int encoderOrdinal;
+
+		/**
+		 * How to find the region using the edge geometry, or null to use the way's estimated centre only
+		 */
+		final private LinestringMode linestringMode;
+
+		/**
+		 * If true the edge speed is weighted over all regions the edge crosses instead
+		 */
+		final private boolean splitEdge;
+
+		/**
+		 * Stores the region ordinal + 1 in the edge flags (so zero is no region), or null if not storing
+		 */
+		private EncodedValue regionOrdinalEncoder;
+		final private boolean storeRegionOrdinal;
 
-		FlagEncoderHelper(final SpeedRegionLookup lookup, VehicleTypeTimeProfile encoderType, AbstractFlagEncoder speedRegionsFlagEncoder,
+		/**
+		 * If true the rules aren't applied during import; the edge keeps the speed before any rule and also stores it
+		 * at a finer resolution, with the highway ordinal + 1, whether max speed was used and whether the surface is
+		 * bad, so {@link #getTimeProfileSpeed} can redo the import for any time profile
+		 */
+		final private boolean queryTimeRules;
+		private EncodedValue highwayOrdinalEncoder;
+		private EncodedValue usedMaxSpeedEncoder;
+		private EncodedValue preRuleSpeedEncoder;
+		private EncodedValue badSurfaceEncoder;
+
+		/**
+		 * Time profiles of the vehicle type reported on in query time mode, with their speed matrix ordinals and rules
+		 */
+		final private VehicleTypeTimeProfile[] timeProfiles;
+		final private int[] timeProfileOrdinals;
+		final private SpeedRuleLookup[] timeProfileRules;
+
+		/**
+		 * Surface values the encoder caps at {@link #BAD_SURFACE_MAX_SPEED}
+		 */
+		private Set<String> badSurfaces = Collections.emptySet();
+
+		/**
+		 * Way regions resolved before the import, or null to query every way
+		 */
+		private LongIntHashMap wayRegionOrdinals;
+
+		/**
+		 * Counts shared by all encoders from the factory
+		 */
+		private RegionQueryCounts queryCounts = new RegionQueryCounts();
+
+		FlagEncoderHelper(final SpeedRegionLookup lookup, VehicleTypeTimeProfile encoderType, PMap config, AbstractFlagEncoder speedRegionsFlagEncoder,
 				AbstractFlagEncoder originalCarFlagEncoder, ProcessedWayListener processedWayListener) {
 			this.lookup = lookup;
-			this.rules = lookup != null ? lookup.createLookupForEncoder(encoderType.getCombinedId()) : null;
+			this.queryTimeRules = lookup != null && config != null && config.getBool(SpeedRegionConsts.ENCODER_QUERY_TIME_RULES, false);
+			this.rules = lookup != null && !queryTimeRules ? lookup.createLookupForEncoder(encoderType.getCombinedId()) : null;
 			this.processedWayListener = processedWayListener;
 			this.encoderType = encoderType;
 			this.speedRegionsFlagEncoder = speedRegionsFlagEncoder;
 			this.key2StoreOriginalSpeedInWay = ORIGINAL_SPEED_TAG + encoderType;
 			this.key2StoreSpeedRule = SPEED_RULE_TAG + encoderType;
 			this.noSpeedRegionsFlagEncoder = originalCarFlagEncoder;
+			this.key2StorePreRuleSpeed = PRE_RULE_SPEED_TAG + encoderType;
+			this.key2StoreUsedMaxSpeed = USED_MAX_SPEED_TAG + encoderType;
+			this.speedMatrix = lookup != null ? lookup.getSpeedMatrix() : null;
+			this.encoderOrdinal = speedMatrix != null && !queryTimeRules ? speedMatrix.getEncoderOrdinal(encoderType.getCombinedId()) : -1;
+
+			String mode = config != null ? config.get(SpeedRegionConsts.ENCODER_LINESTRING_MODE, "") : "";
+			this.storeRegionOrdinal = queryTimeRules
+					|| (lookup != null && config != null && config.getBool(SpeedRegionConsts.ENCODER_STORE_REGION_ORDINAL, false));
+			this.splitEdge = TextUtils.equalsStd(mode, SpeedRegionConsts.ENCODER_LINESTRING_MODE_SPLIT_EDGE);
+			if (queryTimeRules && splitEdge) {
+				throw new RuntimeException(SpeedRegionConsts.ENCODER_QUERY_TIME_RULES + " cannot be used with "
+						+ SpeedRegionConsts.ENCODER_LINESTRING_MODE_SPLIT_EDGE + " as an edge only stores one region");
+			}
+			if (mode.trim().length() > 0 && !splitEdge) {
+				try {
+					this.linestringMode = LinestringMode.valueOf(mode.trim().toUpperCase());
+				} catch (IllegalArgumentException e) {
+					throw new RuntimeException("Unknown value for " + SpeedRegionConsts.ENCODER_LINESTRING_MODE + ": " + mode);
+				}
+			} else {
+				this.linestringMode = null;
+			}
+
+			// with query time rules the report covers every time profile of the vehicle type
+			ArrayList<VehicleTypeTimeProfile> profiles = new ArrayList<>();
+			if (queryTimeRules) {
+				for (String combinedId : speedMatrix.getEncoders()) {
+					VehicleTypeTimeProfile profile = VehicleTypeTimeProfile.parseCombinedId(combinedId);
+					if (profile.getVehicleType() == encoderType.getVehicleType()) {
+						profiles.add(profile);
+					}
+				}
+			}
+			int n = profiles.size();
+			this.timeProfiles = profiles.toArray(new VehicleTypeTimeProfile[n]);
+			this.timeProfileOrdinals = new int[n];
+			this.timeProfileRules = new SpeedRuleLookup[n];
+			for (int i = 0; i < n; i++) {
+				timeProfileOrdinals[i] = speedMatrix.getEncoderOrdinal(timeProfiles[i].getCombinedId());
+				timeProfileRules[i] = lookup.createLookupForEncoder(timeProfiles[i].getCombinedId());
+			}
+		}
+
+		private SpeedRule getRule(int regionOrdinal) {
+			if (regionOrdinal == SpeedRegionConsts.NO_REGION_ORDINAL || rules == null) {
+				return null;
+			}
+			SpeedRule rule = rules.getSpeedRule(regionOrdinal);
+			if (rule == null) {
+				// TODO Should this be fatal? If someone misspelled a regionid you wouldn't want a silent fail.
+				// However it may be valid to have regions without a defined rule for certain encoders?
+				throw new RuntimeException(
+						"Cannot find speed rule for region with id " + lookup.getRegionType(regionOrdinal) + " and encoder " + EncodingManager.CAR);
+			}
+			return rule;
+		}
+
+		/**
+		 * Reserve the bits for the region ordinal (and highway ordinal etc for query time rules) after the encoder's own
+		 * bits, if storing it
+		 * 
+		 * @param shift
+		 * @return
+		 */
+		int defineWayBitsCB(int shift) {
+			if (!storeRegionOrdinal) {
+				return shift;
+			}
+
+			// enough bits for the largest ordinal + 1
+			int bits = getBitsNeeded(lookup.getNbRegionTypes());
+			regionOrdinalEncoder = new EncodedValue("SpeedRegionOrdinal", shift, bits, 1, 0, (1 << bits) - 1);
+			shift += bits;
+
+			if (queryTimeRules) {
+				bits = getBitsNeeded(speedMatrix.getNbHighwayTypes());
+				highwayOrdinalEncoder = new EncodedValue("SpeedRegionHighwayOrdinal", shift, bits, 1, 0, (1 << bits) - 1);
+				shift += bits;
+				usedMaxSpeedEncoder = new EncodedValue("SpeedRegionUsedMaxSpeed", shift, 1, 1, 0, 1);
+				shift++;
+				preRuleSpeedEncoder = new EncodedValue("SpeedRegionPreRuleSpeed", shift, PRE_RULE_SPEED_BITS, 1, 0,
+						(1 << PRE_RULE_SPEED_BITS) - 1);
+				shift += PRE_RULE_SPEED_BITS;
+				badSurfaceEncoder = new EncodedValue("SpeedRegionBadSurface", shift, 1, 1, 0, 1);
+				shift++;
+			}
+			return shift;
+		}
+
+		private static int getBitsNeeded(int maxValue) {
+			return Math.max(1, 32 - Integer.numberOfLeadingZeros(maxValue));
+		}
+
+		long setRegionOrdinal(long flags, int regionOrdinal) {
+			if (regionOrdinalEncoder == null) {
+				return flags;
+			}
+			return regionOrdinalEncoder.setValue(flags, regionOrdinal + 1);
+		}
+
+		int getRegionOrdinal(long flags) {
+			if (regionOrdinalEncoder == null) {
+				return SpeedRegionConsts.NO_REGION_ORDINAL;
+			}
+			return (int) regionOrdinalEncoder.getValue(flags) - 1;
+		}
+
+		int getHighwayOrdinal(long flags) {
+			if (highwayOrdinalEncoder == null) {
+				return SpeedMatrix.NO_HIGHWAY_ORDINAL;
+			}
+			return (int) highwayOrdinalEncoder.getValue(flags) - 1;
+		}
 
+		boolean isUsedMaxSpeed(long flags) {
+			return usedMaxSpeedEncoder != null && usedMaxSpeedEncoder.getValue(flags) != 0;
+		}
+
+		/**
+		 * Store the way's region ordinal in the flags returned by the encoder's handleWayTags. Edges found to be in a
+		 * different region by the linestring modes are updated later in {@link #applyWayTagsCB(OSMWay, EdgeIteratorState, double)}.
+		 */
+		long handleWayTagsResultCB(OSMWay way, long flags) {
+			if (flags == 0 || regionOrdinalEncoder == null) {
+				return flags;
+			}
+			int regionOrdinal = (Integer) way.getTag(SpeedRegionConsts.REGION_ORDINAL_TAG_IN_OSM_WAY, SpeedRegionConsts.NO_REGION_ORDINAL);
+			flags = setRegionOrdinal(flags, regionOrdinal);
+			if (queryTimeRules) {
+				flags = highwayOrdinalEncoder.setValue(flags, getHighwayOrdinal((String) way.getTag("highway")) + 1);
+				boolean usedMaxSpeed = (Boolean) way.getTag(key2StoreUsedMaxSpeed, Boolean.FALSE);
+				flags = usedMaxSpeedEncoder.setValue(flags, usedMaxSpeed ? 1 : 0);
+
+				// Ways whose speed doesn't come from getSpeed (i.e. ferries) store zero and keep the encoder's speed
+				Object preRuleSpeed = way.getTag(key2StorePreRuleSpeed, null);
+				long preRuleValue = preRuleSpeed != null ? Math.min(Math.round((Double) preRuleSpeed * PRE_RULE_SPEED_UNITS),
+						(1 << PRE_RULE_SPEED_BITS) - 1) : 0;
+				flags = preRuleSpeedEncoder.setValue(flags, preRuleValue);
+				flags = badSurfaceEncoder.setValue(flags, isBadSurface(way) ? 1 : 0);
+			}
+			return flags;
+		}
+
+		/**
+		 * Get the speed an encoder for the time profile would have stored during the import: the rule is applied to
+		 * the speed before any rule, then the encoder's bad surface cap, maximum speed and resolution. The speed before
+		 * the rule is stored to 0.1 km/h, and other adjustments the encoder makes after getSpeed (i.e.
+		 * maxspeed:motorcycle) aren't redone.
+		 */
+		double getTimeProfileSpeed(long flags, boolean reverse, int profileEncoderOrdinal, double speedFactor) {
+			double speed = reverse ? speedRegionsFlagEncoder.getReverseSpeed(flags) : speedRegionsFlagEncoder.getSpeed(flags);
+			long preRuleValue = preRuleSpeedEncoder != null ? preRuleSpeedEncoder.getValue(flags) : 0;
+			if (speed == 0 || preRuleValue == 0) {
+				return speed;
+			}
+			speed = applyRule(profileEncoderOrdinal, getRegionOrdinal(flags), getHighwayOrdinal(flags), preRuleValue / PRE_RULE_SPEED_UNITS,
+					isUsedMaxSpeed(flags), badSurfaceEncoder.getValue(flags) != 0, speedFactor);
+			return speedRegionsFlagEncoder.getSpeed(speedRegionsFlagEncoder.setSpeed(0, speed));
+		}
+
+		private boolean isBadSurface(OSMWay way) {
+			return way.hasTag("surface", badSurfaces);
 		}
 
 		void handleWayTagsCB(OSMWay way, long allowed, long relationFlags) {
@@ -125,20 +487,27 @@ class SpeedRegionsFlagEncodersFactory {
 
 			// Set the speed region tag and rules tag.
 			// This should probably be done in OSMReader instead when we integrate into latest Graphhopper core.
+			// The first encoder to see the way memos its region in the way tags for the other encoders
+			Integer memo = way.getTag(SpeedRegionConsts.REGION_ORDINAL_TAG_IN_OSM_WAY, null);
+			int regionOrdinal = memo != null ? memo : WayRegionResolver.getRegionOrdinal(wayRegionOrdinals, way.getId());
+			boolean preResolved = memo == null && regionOrdinal != WayRegionResolver.UNRESOLVED_WAY;
 			GHPoint estmCentre = way.getTag("estimated_center", null);
-			if (estmCentre != null && lookup != null) {
-				Point point = GeomUtils.newGeomFactory().createPoint(new Coordinate(estmCentre.lon, estmCentre.lat));
-				String regionId = lookup.findRegionType(point);
-				way.setTag(SpeedRegionConsts.REGION_ID_TAG_IN_OSM_WAY, regionId);
-
-				if (regionId != null && rules != null) {
-					SpeedRule rule = rules.getSpeedRule(regionId);
-					if (rule == null) {
-						// TODO Should this be fatal? If someone misspelled a regionid you wouldn't want a silent fail.
-						// However it may be valid to have regions without a defined rule for certain encoders?
-						throw new RuntimeException(
-								"Cannot find speed rule for region with id " + regionId + " and encoder " + EncodingManager.CAR);
+			if (regionOrdinal == WayRegionResolver.UNRESOLVED_WAY && estmCentre != null && lookup != null) {
+				regionOrdinal = lookup.findRegionOrdinal(estmCentre.lon, estmCentre.lat);
+				queryCounts.nbWayQueries++;
+			}
+			if (regionOrdinal != WayRegionResolver.UNRESOLVED_WAY && lookup != null) {
+				if (memo == null) {
+					queryCounts.nbWays++;
+					if (preResolved) {
+						queryCounts.nbPreResolvedWays++;
 					}
+					way.setTag(SpeedRegionConsts.REGION_ID_TAG_IN_OSM_WAY, lookup.getRegionType(regionOrdinal));
+					way.setTag(SpeedRegionConsts.REGION_ORDINAL_TAG_IN_OSM_WAY, regionOrdinal);
+				}
+
+				SpeedRule rule = getRule(regionOrdinal);
+				if (rule != null) {
 					way.setTag(key2StoreSpeedRule, rule);
 				}
 			}
@@ -154,11 +523,35 @@ class SpeedRegionsFlagEncodersFactory {
 				//speed = maxSpeed;
 			}
 
+			// save the speed before the rule in case we reapply a different rule per edge
+			if (linestringMode != null || splitEdge || queryTimeRules) {
+				way.setTag(key2StorePreRuleSpeed, speed);
+				way.setTag(key2StoreUsedMaxSpeed, useMaxSpeed);
+			}
+
 			// apply the rule
-			SpeedRule rule = way.getTag(key2StoreSpeedRule, (SpeedRule) null);
-			if (rule != null) {
+			int regionOrdinal = (Integer) way.getTag(SpeedRegionConsts.REGION_ORDINAL_TAG_IN_OSM_WAY, SpeedRegionConsts.NO_REGION_ORDINAL);
+			// the encoder caps bad surfaces itself after getSpeed
+			return applyRule(encoderOrdinal, regionOrdinal, getHighwayOrdinal(highwayValue), speed, useMaxSpeed, false, speedFactor);
+		}
 
-				double regionSpeed = rule.applyRule(highwayValue, speed, useMaxSpeed);
+		private int getHighwayOrdinal(String highwayValue) {
+			return speedMatrix != null ? speedMatrix.getHighwayOrdinal(highwayValue) : SpeedMatrix.NO_HIGHWAY_ORDINAL;
+		}
+
+		/**
+		 * Apply the encoder's rule for the region, and optionally the encoder's bad surface cap as it's applied after
+		 * the rule during the import
+		 */
+		private double applyRule(int encoderOrdinal, int regionOrdinal, int highwayOrdinal, double speed, boolean useMaxSpeed,
+				boolean badSurface, double speedFactor) {
+			if (badSurface) {
+				return Math.min(applyRule(encoderOrdinal, regionOrdinal, highwayOrdinal, speed, useMaxSpeed, false, speedFactor),
+						BAD_SURFACE_MAX_SPEED);
+			}
+			if (speedMatrix != null && speedMatrix.hasRule(encoderOrdinal, regionOrdinal)) {
+
+				double regionSpeed = speedMatrix.applyRule(encoderOrdinal, regionOrdinal, highwayOrdinal, speed, useMaxSpeed);
 
 				// AbstractFlagEncoder.speedFactor should be the minimum speed which can be stored by the encoder.
 				// If we have a non-zero speed which is smaller than the minimum, set to the minimum instead
@@ -173,11 +566,58 @@ class SpeedRegionsFlagEncodersFactory {
 			}
 		}
 
-		void applyWayTagsCB(OSMWay way, EdgeIteratorState edge) {
+		void applyWayTagsCB(OSMWay way, EdgeIteratorState edge, double speedFactor) {
+			if (processedWayListener == null && ((linestringMode == null && !splitEdge) || lookup == null)) {
+				return;
+			}
+
+			PointList points = edge.fetchWayGeometry(3);
+			int n = points.getSize();
+			String highwayValue = way.getTag("highway");
+			String regionId = way.getTag(SpeedRegionConsts.REGION_ID_TAG_IN_OSM_WAY);
+			SpeedRule rule = way.getTag(key2StoreSpeedRule, (SpeedRule) null);
+
+			if ((linestringMode != null || splitEdge) && lookup != null && n > 0) {
+				// find the region using the edge's full geometry rather than the way's estimated centre
+				double[] lngs = new double[n];
+				double[] lats = new double[n];
+				for (int i = 0; i < n; i++) {
+					lngs[i] = points.getLon(i);
+					lats[i] = points.getLat(i);
+				}
+				Object preRuleSpeed = way.getTag(key2StorePreRuleSpeed, null);
+				boolean badSurface = isBadSurface(way);
+				if (splitEdge) {
+					boolean usedMaxSpeed = (Boolean) way.getTag(key2StoreUsedMaxSpeed, Boolean.FALSE);
+					if (preRuleSpeed != null) {
+						// The bad surface cap is redone but other adjustments made by the encoder after getSpeed
+						// (i.e. maxspeed:motorcycle) aren't.
+						double speed = getSplitEdgeSpeed(findRegionIntervals(way, edge, lngs, lats), getHighwayOrdinal(highwayValue), (Double) preRuleSpeed,
+								usedMaxSpeed, badSurface, speedFactor);
+						setEdgeSpeed(edge, speed);
+					}
+				}
+				// when splitting we report the region with the longest share of the edge
+				int regionOrdinal = findRegionOrdinal(way, edge, lngs, lats,
+						splitEdge ? LinestringMode.LENGTH_WEIGHTED_MAJORITY : linestringMode);
+				SpeedRule edgeRule = getRule(regionOrdinal);
+
+				// If the rule differs, redo the speed for this edge from the speed before the way's rule was applied.
+				// The bad surface cap is redone but other adjustments made by the encoder after getSpeed
+				// (i.e. maxspeed:motorcycle) aren't.
+				if (!splitEdge && edgeRule != rule && preRuleSpeed != null) {
+					boolean usedMaxSpeed = (Boolean) way.getTag(key2StoreUsedMaxSpeed, Boolean.FALSE);
+					double speed = applyRule(encoderOrdinal, regionOrdinal, getHighwayOrdinal(highwayValue), (Double) preRuleSpeed, usedMaxSpeed,
+							badSurface, speedFactor);
+					setEdgeSpeed(edge, speed);
+				}
+				edge.setFlags(setRegionOrdinal(edge.getFlags(), regionOrdinal));
+				regionId = lookup.getRegionType(regionOrdinal);
+				rule = edgeRule;
+			}
+
 			if (processedWayListener != null) {
 				// get geometry
-				PointList points = edge.fetchWayGeometry(3);
-				int n = points.getSize();
 				Coordinate[] coords = new Coordinate[n];
 				for (int i = 0; i < n; i++) {
 					coords[i] = new Coordinate(points.getLon(i), points.getLat(i));
@@ -185,21 +625,105 @@ class SpeedRegionsFlagEncodersFactory {
 				LineString ls = new GeometryFactory().createLineString(coords);
 
 				// get other values needed for callback
-				String highwayValue = way.getTag("highway");
 				double originalSpeed = (Double) way.getTag(key2StoreOriginalSpeedInWay, Double.NaN);
 				if (Double.isNaN(originalSpeed)) {
 					throw new RuntimeException("Original speed not recorded on way");
 				}
 				double distanceMetres = edge.getDistance();
 
-				double finalSpeed = speedRegionsFlagEncoder.getSpeed(edge.getFlags());
+				if (queryTimeRules && timeProfiles.length > 0) {
+					// report the speed each time profile gets at query time from the stored flags
+					long flags = edge.getFlags();
+					int regionOrdinal = getRegionOrdinal(flags);
+					for (int i = 0; i < timeProfiles.length; i++) {
+						processedWayListener.onProcessedWay(timeProfiles[i], ls, regionId, highwayValue, distanceMetres,
+								timeProfileRules[i].getSpeedRule(regionOrdinal), originalSpeed,
+								getTimeProfileSpeed(flags, false, timeProfileOrdinals[i], speedFactor));
+					}
+				} else {
+					double finalSpeed = speedRegionsFlagEncoder.getSpeed(edge.getFlags());
+
+					// do callback
+					processedWayListener.onProcessedWay(encoderType, ls, regionId, highwayValue, distanceMetres, rule, originalSpeed,
+							finalSpeed);
+				}
+			}
+		}
+
+		/**
+		 * Set the edge speed in each direction the edge is open in, so encoders with a separate reverse speed (e.g.
+		 * motorcycle) don't keep the way's speed in the reverse direction
+		 */
+		private void setEdgeSpeed(EdgeIteratorState edge, double speed) {
+			long flags = edge.getFlags();
+			boolean backward = speedRegionsFlagEncoder.isBackward(flags);
+			if (speedRegionsFlagEncoder.isForward(flags)) {
+				flags = speedRegionsFlagEncoder.setSpeed(flags, speed);
+			}
+			if (backward) {
+				flags = speedRegionsFlagEncoder.setReverseSpeed(flags, speed);
+			}
+			edge.setFlags(flags);
+		}
+
+		/**
+		 * Find the edge's region, memoed in the way tags so other encoders with the same mode don't query it again
+		 */
+		private int findRegionOrdinal(OSMWay way, EdgeIteratorState edge, double[] lngs, double[] lats, LinestringMode mode) {
+			String key = EDGE_REGION_TAG + mode + "-" + edge.getEdge();
+			Integer memo = way.getTag(key, null);
+			if (memo != null) {
+				return memo;
+			}
+			int ret = lookup.findRegionOrdinal(lngs, lats, mode);
+			queryCounts.nbEdges++;
+			queryCounts.nbEdgeQueries++;
+			way.setTag(key, ret);
+			return ret;
+		}
 
-				String regionId = way.getTag(SpeedRegionConsts.REGION_ID_TAG_IN_OSM_WAY);
-				SpeedRule rule = way.getTag(key2StoreSpeedRule, (SpeedRule) null);
-				// do callback
-				processedWayListener.onProcessedWay(encoderType, ls, regionId, highwayValue, distanceMetres, rule, originalSpeed,
-						finalSpeed);
+		/**
+		 * Find the edge's region intervals, memoed in the way tags so other encoders don't query them again
+		 */
+		private List<RegionInterval> findRegionIntervals(OSMWay way, EdgeIteratorState edge, double[] lngs, double[] lats) {
+			String key = EDGE_INTERVALS_TAG + edge.getEdge();
+			List<RegionInterval> memo = way.getTag(key, null);
+			if (memo != null) {
+				return memo;
+			}
+			List<RegionInterval> ret = lookup.findRegionIntervals(lngs, lats);
+			queryCounts.nbEdgeQueries++;
+			way.setTag(key, ret);
+			return ret;
+		}
+
+		/**
+		 * Get the speed giving the same travel time over the whole edge as travelling each interval at its own region's
+		 * speed, i.e. the distance-weighted harmonic mean. If any interval has zero speed the edge is blocked.
+		 */
+		private double getSplitEdgeSpeed(List<RegionInterval> intervals, int highwayOrdinal, double preRuleSpeed, boolean usedMaxSpeed,
+				boolean badSurface, double speedFactor) {
+			double timePerDistance = 0;
+			double totalFraction = 0;
+			for (RegionInterval interval : intervals) {
+				double fraction = interval.getFraction();
+				if (fraction <= 0) {
+					continue;
+				}
+				// check the rule exists
+				getRule(interval.getRegionOrdinal());
+				double speed = applyRule(encoderOrdinal, interval.getRegionOrdinal(), highwayOrdinal, preRuleSpeed, usedMaxSpeed, badSurface,
+						speedFactor);
+				if (speed <= 0) {
+					return 0;
+				}
+				timePerDistance += fraction / speed;
+				totalFraction += fraction;
+			}
+			if (totalFraction <= 0) {
+				return preRuleSpeed;
 			}
+			return totalFraction / timePerDistance;
 		}
 
 		protected double applyMaxSpeedCB(OSMWay way, double speed, boolean force) {
@@ -220,12 +744,13 @@ class SpeedRegionsFlagEncodersFactory {
 		Map<String, Integer> getDefaultSpeeds();
 	}
 
-	private static class MyCarFlagEncoder extends CarFlagEncoder implements HasDefaultSpeeds {
+	private static class MyCarFlagEncoder extends CarFlagEncoder implements HasDefaultSpeeds, RegionOrdinalFlagEncoder {
 		final FlagEncoderHelper helper;
 
 		MyCarFlagEncoder(VehicleTypeTimeProfile vttp,PMap config, final SpeedRegionLookup lookup, ProcessedWayListener cb) {
 			super(config);
-			helper = new FlagEncoderHelper(lookup, vttp, this, new CarFlagEncoder(new PMap()), cb);
+			helper = new FlagEncoderHelper(lookup, vttp, config, this, new CarFlagEncoder(new PMap()), cb);
+			helper.badSurfaces = badSurfaceSpeedMap;
 		}
 
 		@Override
@@ -233,10 +758,40 @@ class SpeedRegionsFlagEncodersFactory {
 			return this.defaultSpeedMap;
 		}
 
+		@Override
+		public int defineWayBits(int index, int shift) {
+			return helper.defineWayBitsCB(super.defineWayBits(index, shift));
+		}
+
 		@Override
 		public long handleWayTags(OSMWay way, long allowed, long relationFlags) {
 			helper.handleWayTagsCB(way, allowed, relationFlags);
-			return super.handleWayTags(way, allowed, relationFlags);
+			return helper.handleWayTagsResultCB(way, super.handleWayTags(way, allowed, relationFlags));
+		}
+
+		@Override
+		public int getRegionOrdinal(long flags) {
+			return helper.getRegionOrdinal(flags);
+		}
+
+		@Override
+		public int getHighwayOrdinal(long flags) {
+			return helper.getHighwayOrdinal(flags);
+		}
+
+		@Override
+		public boolean isUsedMaxSpeed(long flags) {
+			return helper.isUsedMaxSpeed(flags);
+		}
+
+		@Override
+		public boolean isQueryTimeRules() {
+			return helper.queryTimeRules;
+		}
+
+		@Override
+		public double getTimeProfileSpeed(long flags, boolean reverse, int encoderOrdinal) {
+			return helper.getTimeProfileSpeed(flags, reverse, encoderOrdinal, speedFactor);
 		}
 
 		@Override
@@ -247,7 +802,7 @@ class SpeedRegionsFlagEncodersFactory {
 		@Override
 		public void applyWayTags(OSMWay way, EdgeIteratorState edge) {
 			super.applyWayTags(way, edge);
-			helper.applyWayTagsCB(way, edge);
+			helper.applyWayTagsCB(way, edge, speedFactor);
 		}
 
 		@Override
@@ -262,12 +817,13 @@ class SpeedRegionsFlagEncodersFactory {
 
 	}
 
-	private static class MyMotorcycleFlagEncoder extends MotorcycleFlagEncoder implements HasDefaultSpeeds {
+	private static class MyMotorcycleFlagEncoder extends MotorcycleFlagEncoder implements HasDefaultSpeeds, RegionOrdinalFlagEncoder {
 		final FlagEncoderHelper helper;
 
 		MyMotorcycleFlagEncoder(VehicleTypeTimeProfile vttp,PMap config, final SpeedRegionLookup lookup, ProcessedWayListener cb) {
 			super(config);
-			helper = new FlagEncoderHelper(lookup,vttp, this, new MotorcycleFlagEncoder(new PMap()), cb);
+			helper = new FlagEncoderHelper(lookup, vttp, config, this, new MotorcycleFlagEncoder(new PMap()), cb);
+			helper.badSurfaces = badSurfaceSpeedMap;
 		}
 
 		@Override
@@ -275,10 +831,40 @@ class SpeedRegionsFlagEncodersFactory {
 			return this.defaultSpeedMap;
 		}
 
+		@Override
+		public int defineWayBits(int index, int shift) {
+			return helper.defineWayBitsCB(super.defineWayBits(index, shift));
+		}
+
 		@Override
 		public long handleWayTags(OSMWay way, long allowed, long relationFlags) {
 			helper.handleWayTagsCB(way, allowed, relationFlags);
-			return super.handleWayTags(way, allowed, relationFlags);
+			return helper.handleWayTagsResultCB(way, super.handleWayTags(way, allowed, relationFlags));
+		}
+
+		@Override
+		public int getRegionOrdinal(long flags) {
+			return helper.getRegionOrdinal(flags);
+		}
+
+		@Override
+		public int getHighwayOrdinal(long flags) {
+			return helper.getHighwayOrdinal(flags);
+		}
+
+		@Override
+		public boolean isUsedMaxSpeed(long flags) {
+			return helper.isUsedMaxSpeed(flags);
+		}
+
+		@Override
+		public boolean isQueryTimeRules() {
+			return helper.queryTimeRules;
+		}
+
+		@Override
+		public double getTimeProfileSpeed(long flags, boolean reverse, int encoderOrdinal) {
+			return helper.getTimeProfileSpeed(flags, reverse, encoderOrdinal, speedFactor);
 		}
 
 		@Override
@@ -289,7 +875,7 @@ class SpeedRegionsFlagEncodersFactory {
 		@Override
 		public void applyWayTags(OSMWay way, EdgeIteratorState edge) {
 			super.applyWayTags(way, edge);
-			helper.applyWayTagsCB(way, edge);
+			helper.applyWayTagsCB(way, edge, speedFactor);
 		}
 
 		@Override
@@ -0,0 +1,119 @@
+package com.opendoorlogistics.speedregions.graphhopper;
+
+import java.io.IOException;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.reader.DataReader;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.routing.util.Weighting;
+import com.graphhopper.routing.util.WeightingMap;
+import com.graphhopper.storage.StorableProperties;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
+import com.opendoorlogistics.speedregions.excelshp.app.VehicleType;
+import com.opendoorlogistics.speedregions.excelshp.app.VehicleTypeTimeProfile;
+
+/**
+ * GraphHopper which saves the ordinals fingerprint (see {@link SpeedRegionLookupBuilder#getOrdinalsFingerprint}) of
+ * the lookup its encoders stored region ordinals from with the graph, and refuses to load a graph whose stored
+ * ordinals were built with a different lookup.
+ * <p>
+ * Requests with the {@link SpeedRegionConsts#QUERY_TIME_PROFILE} hint are routed with a {@link TimeProfileWeighting}
+ * for the request's vehicle and the time profile, which needs encoders configured with
+ * {@link SpeedRegionConsts#ENCODER_QUERY_TIME_RULES} and contraction hierarchies disabled.
+ *
+ */
+class SpeedRegionsGraphHopper extends GraphHopper {
+	static final String ORDINALS_FINGERPRINT_PROPERTY = "speedregions.ordinals";
+	private String ordinalsFingerprint = "";
+	private boolean imported;
+	private SpeedRegionLookup speedRegionLookup;
+
+	/**
+	 * Set the lookup the graph is built with, needed to route with time profiles
+	 * 
+	 * @param speedRegionLookup
+	 * @return
+	 */
+	SpeedRegionsGraphHopper setSpeedRegionLookup(SpeedRegionLookup speedRegionLookup) {
+		this.speedRegionLookup = speedRegionLookup;
+		return this;
+	}
+
+	/**
+	 * Set the fingerprint of the lookup the encoders store ordinals from, see
+	 * {@link SpeedRegionsFlagEncodersFactory#getOrdinalsFingerprint()}
+	 *
+	 * @param ordinalsFingerprint
+	 *            Fingerprint or null if no encoder stores ordinals
+	 * @return
+	 */
+	SpeedRegionsGraphHopper setOrdinalsFingerprint(String ordinalsFingerprint) {
+		this.ordinalsFingerprint = ordinalsFingerprint != null ? ordinalsFingerprint : "";
+		return this;
+	}
+
+	@Override
+	public GraphHopper importOrLoad() {
+		// contraction hierarchies would be prepared on the speeds before any rule
+		if (isCHEnabled()) {
+			for (FlagEncoder encoder : getEncodingManager().fetchEdgeEncoders()) {
+				if (encoder instanceof RegionOrdinalFlagEncoder && ((RegionOrdinalFlagEncoder) encoder).isQueryTimeRules()) {
+					throw new RuntimeException("Contraction hierarchies must be disabled when encoder " + encoder + " uses "
+							+ SpeedRegionConsts.ENCODER_QUERY_TIME_RULES);
+				}
+			}
+		}
+		return super.importOrLoad();
+	}
+
+	@Override
+	public Weighting createWeighting(WeightingMap wMap, FlagEncoder encoder) {
+		String timeProfile = wMap.get(SpeedRegionConsts.QUERY_TIME_PROFILE, null);
+		if (timeProfile == null) {
+			return super.createWeighting(wMap, encoder);
+		}
+		if (speedRegionLookup == null) {
+			throw new RuntimeException("No speed regions lookup set to route with time profile " + timeProfile);
+		}
+		return new TimeProfileWeighting(encoder, speedRegionLookup,
+				new VehicleTypeTimeProfile(VehicleType.fromGraphhopperName(encoder.toString()), timeProfile));
+	}
+
+	@Override
+	public GHResponse route(GHRequest request) {
+		GHResponse response = super.route(request);
+
+		// GraphHopper 0.5 works out path times from the encoder's own speeds, which are before any rule when the rules
+		// are applied at query time. The time profile weighting's weight is the travel time in seconds so use that.
+		if (!response.hasErrors() && request.getHints().get(SpeedRegionConsts.QUERY_TIME_PROFILE, null) != null) {
+			response.setTime(Math.round(response.getRouteWeight() * 1000));
+		}
+		return response;
+	}
+
+	@Override
+	protected DataReader importData() throws IOException {
+		imported = true;
+		return super.importData();
+	}
+
+	@Override
+	protected void postProcessing() {
+		StorableProperties properties = getGraphHopperStorage().getProperties();
+		if (imported) {
+			properties.put(ORDINALS_FINGERPRINT_PROPERTY, ordinalsFingerprint);
+		} else {
+			String stored = properties.get(ORDINALS_FINGERPRINT_PROPERTY);
+			if (!stored.equals(ordinalsFingerprint)) {
+				throw new RuntimeException("The graph stores region ordinals for a different speed regions lookup (graph "
+						+ ORDINALS_FINGERPRINT_PROPERTY + "=" + stored + ", current lookup=" + ordinalsFingerprint
+						+ "). Rebuild the graph with the current lookup.");
+			}
+		}
+		super.postProcessing();
+	}
+}
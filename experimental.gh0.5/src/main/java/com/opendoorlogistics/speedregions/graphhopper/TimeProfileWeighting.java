@@ -0,0 +1,80 @@
+package com.opendoorlogistics.speedregions.graphhopper;
+
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.routing.util.Weighting;
+import com.graphhopper.util.EdgeIteratorState;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.excelshp.app.VehicleTypeTimeProfile;
+
+/**
+ * Fastest weighting which applies the speed rules for a time profile at query time. The graph must be imported with
+ * an encoder configured with {@link SpeedRegionConsts#ENCODER_QUERY_TIME_RULES}, so each edge holds its speed before
+ * any rule together with its region and highway ordinals. One graph then serves every time profile of the vehicle
+ * type, with the speeds an import per time profile would give (see
+ * {@link RegionOrdinalFlagEncoder#getTimeProfileSpeed(long, boolean, int)}). The lookup must be the one the graph was
+ * imported with so the ordinals match.
+ * <p>
+ * Created by {@link SpeedRegionsGraphHopper} for requests with the {@link SpeedRegionConsts#QUERY_TIME_PROFILE} hint.
+ * Speeds are worked out per edge so this can't be used with contraction hierarchies prepared on the encoder's speeds.
+ * The weight is the travel time in seconds.
+ *
+ */
+public class TimeProfileWeighting implements Weighting {
+	private static final double SPEED_CONV = 3.6;
+	private final FlagEncoder encoder;
+	private final RegionOrdinalFlagEncoder ordinals;
+	private final int encoderOrdinal;
+	private final double maxSpeed;
+	private final String combinedId;
+
+	/**
+	 * @param encoder
+	 *            Encoder for the vehicle type, which must also be a {@link RegionOrdinalFlagEncoder}
+	 * @param lookup
+	 * @param timeProfile
+	 *            Vehicle type and time profile whose rules are applied
+	 */
+	public TimeProfileWeighting(FlagEncoder encoder, SpeedRegionLookup lookup, VehicleTypeTimeProfile timeProfile) {
+		if (!(encoder instanceof RegionOrdinalFlagEncoder)) {
+			throw new RuntimeException("Encoder " + encoder + " does not store speed region ordinals");
+		}
+		this.encoder = encoder;
+		this.ordinals = (RegionOrdinalFlagEncoder) encoder;
+		if (!ordinals.isQueryTimeRules()) {
+			throw new RuntimeException("Encoder " + encoder + " was not configured with " + SpeedRegionConsts.ENCODER_QUERY_TIME_RULES);
+		}
+		this.combinedId = timeProfile.getCombinedId();
+		this.encoderOrdinal = lookup.getSpeedMatrix().getEncoderOrdinal(combinedId);
+		if (encoderOrdinal < 0) {
+			throw new RuntimeException("No speed rules found for encoder " + combinedId);
+		}
+
+		// time profile speeds are capped by the encoder's maximum like imported speeds
+		this.maxSpeed = encoder.getMaxSpeed();
+	}
+
+	@Override
+	public double getMinWeight(double distance) {
+		return distance / maxSpeed * SPEED_CONV;
+	}
+
+	@Override
+	public double calcWeight(EdgeIteratorState edgeState, boolean reverse, int prevOrNextEdgeId) {
+		double speed = ordinals.getTimeProfileSpeed(edgeState.getFlags(), reverse, encoderOrdinal);
+		if (speed == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return edgeState.getDistance() / speed * SPEED_CONV;
+	}
+
+	@Override
+	public FlagEncoder getFlagEncoder() {
+		return encoder;
+	}
+
+	@Override
+	public String toString() {
+		return "TIME_PROFILE|" + combinedId;
+	}
+}
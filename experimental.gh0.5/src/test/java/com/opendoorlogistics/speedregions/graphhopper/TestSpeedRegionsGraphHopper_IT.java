@@ -0,0 +1,407 @@
+package com.opendoorlogistics.speedregions.graphhopper;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.routing.util.AbstractFlagEncoder;
+import com.graphhopper.routing.util.AllEdgesIterator;
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.PMap;
+import com.graphhopper.util.shapes.GHPoint;
+import com.opendoorlogistics.speedregions.Examples;
+import com.opendoorlogistics.speedregions.ReloadableSpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder.QueryEngine;
+import com.opendoorlogistics.speedregions.beans.SpeedRule;
+import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.excelshp.app.AppInjectedDependencies.ProcessedWayListener;
+import com.opendoorlogistics.speedregions.excelshp.app.VehicleType;
+import com.opendoorlogistics.speedregions.excelshp.app.VehicleTypeTimeProfile;
+import com.opendoorlogistics.speedregions.graphhopper.SpeedRegionsFlagEncodersFactory.RegionQueryCounts;
+import com.opendoorlogistics.speedregions.utils.LongIntHashMap;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
+import com.vividsolutions.jts.geom.LineString;
+
+public class TestSpeedRegionsGraphHopper_IT extends TestCase {
+	private static final double LAT = 35.895;
+	private File dir;
+	private File osm;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("speedregions").toFile();
+		osm = writeOsm(new File(dir, "test.osm"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Helper.removeDir(dir);
+	}
+
+	/**
+	 * Write a small OSM file with a primary road running east along {@link #LAT} from outside the central Malta region
+	 * (see {@link Examples#CENTRAL_MALTA_POLYGON}) into it, a gravel residential road branching north inside the
+	 * region and a one way primary road with a max speed branching south.
+	 *
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	private static File writeOsm(File file) throws Exception {
+		StringBuilder builder = new StringBuilder();
+		builder.append("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6'>\n");
+		int nbMain = 21;
+		for (int i = 0; i < nbMain; i++) {
+			appendNode(builder, i + 1, LAT, 14.40 + 0.005 * i);
+		}
+		int nbBranch = 5;
+		for (int i = 0; i < nbBranch; i++) {
+			appendNode(builder, 100 + i, LAT + 0.002 * (i + 1), 14.49);
+			appendNode(builder, 200 + i, LAT - 0.002 * (i + 1), 14.47);
+		}
+
+		appendWay(builder, 1, range(1, 10), "highway", "primary");
+		appendWay(builder, 2, range(10, nbMain), "highway", "primary");
+		long[] north = range(100, 100 + nbBranch - 1);
+		north[0] = 19;
+		appendWay(builder, 3, north, "highway", "residential", "surface", "gravel");
+		long[] south = range(200, 200 + nbBranch - 1);
+		south[0] = 15;
+		appendWay(builder, 4, south, "highway", "primary", "maxspeed", "70", "oneway", "yes");
+		builder.append("</osm>\n");
+		TextUtils.stringToFile(file, builder.toString());
+		return file;
+	}
+
+	private static long[] range(long first, long last) {
+		long[] ret = new long[(int) (last - first + 1)];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = first + i;
+		}
+		return ret;
+	}
+
+	private static void appendNode(StringBuilder builder, long id, double lat, double lng) {
+		builder.append(" <node id='" + id + "' lat='" + lat + "' lon='" + lng + "'/>\n");
+	}
+
+	private static void appendWay(StringBuilder builder, long id, long[] nodes, String... tags) {
+		builder.append(" <way id='" + id + "'>\n");
+		for (long node : nodes) {
+			builder.append("  <nd ref='" + node + "'/>\n");
+		}
+		for (int i = 0; i < tags.length; i += 2) {
+			builder.append("  <tag k='" + tags[i] + "' v='" + tags[i + 1] + "'/>\n");
+		}
+		builder.append(" </way>\n");
+	}
+
+	private static SpeedRegionLookup createLookup(String regionType) {
+		UncompiledSpeedRulesFile uncompiled = Examples.createMaltaExample(0.5);
+		TextUtils.setRegionType(uncompiled.getGeoJson().getFeatures().get(0), regionType);
+		uncompiled.getRules().get(0).getMatchRule().getRegionTypes().set(0, regionType);
+		return SpeedRegionLookupBuilder.loadFromUncompiledSpeedRulesFile(uncompiled, 100);
+	}
+
+	/**
+	 * Create a lookup with day and night time profiles for car and motorcycle in the central Malta region. The night
+	 * residential speeds are above the encoders' bad surface cap.
+	 *
+	 * @return
+	 */
+	private static SpeedRegionLookup createTimeProfilesLookup() {
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(Examples.createMaltaSingleFeatureCollection());
+		String[] profiles = new String[] { "car_day", "car_night", "motorcycle_day", "motorcycle_night" };
+		double[] multipliers = new double[] { 0.5, 1.2, 0.7, 1 };
+		for (int i = 0; i < profiles.length; i++) {
+			SpeedRule rule = new SpeedRule();
+			rule.getMatchRule().getFlagEncoders().add(profiles[i]);
+			rule.getMatchRule().getRegionTypes().add("valleta");
+			rule.setMultiplier(multipliers[i]);
+			if (profiles[i].endsWith("night")) {
+				rule.getSpeedsByRoadType().put("residential", 45f);
+			}
+			uncompiled.getRules().add(rule);
+		}
+		return SpeedRegionLookupBuilder.loadFromUncompiledSpeedRulesFile(uncompiled, 100);
+	}
+
+	private static VehicleTypeTimeProfile car() {
+		return new VehicleTypeTimeProfile(VehicleType.fromGraphhopperName(EncodingManager.CAR), null);
+	}
+
+	private static List<VehicleTypeTimeProfile> timeProfiles() {
+		List<VehicleTypeTimeProfile> ret = new ArrayList<>();
+		for (String vehicle : new String[] { EncodingManager.CAR, EncodingManager.MOTORCYCLE }) {
+			for (String profile : new String[] { "day", "night" }) {
+				ret.add(new VehicleTypeTimeProfile(VehicleType.fromGraphhopperName(vehicle), profile));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Import with one encoder per time profile applying the rules during the import
+	 *
+	 * @param lookup
+	 * @param listener
+	 * @return
+	 */
+	private SpeedRegionsGraphHopper importPerTimeProfile(SpeedRegionLookup lookup, ProcessedWayListener listener) {
+		return importPerTimeProfile("perprofile", new SpeedRegionsFlagEncodersFactory(8), lookup, listener);
+	}
+
+	private SpeedRegionsGraphHopper importPerTimeProfile(String graph, SpeedRegionsFlagEncodersFactory factory, SpeedRegionLookup lookup,
+			ProcessedWayListener listener) {
+		List<AbstractFlagEncoder> encoders = new ArrayList<>();
+		for (VehicleTypeTimeProfile profile : timeProfiles()) {
+			encoders.add(factory.createEncoder(profile, new PMap(), lookup, listener));
+		}
+		return importOrLoad(graph, factory, encoders, lookup);
+	}
+
+	/**
+	 * Import with one encoder per vehicle type applying the rules at query time
+	 *
+	 * @param lookup
+	 * @param listener
+	 * @return
+	 */
+	private SpeedRegionsGraphHopper importQueryTime(SpeedRegionLookup lookup, ProcessedWayListener listener) {
+		SpeedRegionsFlagEncodersFactory factory = new SpeedRegionsFlagEncodersFactory(8);
+		List<AbstractFlagEncoder> encoders = new ArrayList<>();
+		for (String vehicle : new String[] { EncodingManager.CAR, EncodingManager.MOTORCYCLE }) {
+			encoders.add(factory.createEncoder(new VehicleTypeTimeProfile(VehicleType.fromGraphhopperName(vehicle), ""),
+					new PMap(SpeedRegionConsts.ENCODER_QUERY_TIME_RULES + "=true"), lookup, listener));
+		}
+		assertTrue(factory.isQueryTimeRules());
+		return importOrLoad("querytime", factory, encoders, lookup);
+	}
+
+	/**
+	 * Import the test OSM file, or load the graph if already imported
+	 *
+	 * @param graph
+	 *            Graph directory name
+	 * @param factory
+	 * @param encoders
+	 * @param lookup
+	 * @return
+	 */
+	private SpeedRegionsGraphHopper importOrLoad(String graph, SpeedRegionsFlagEncodersFactory factory, List<AbstractFlagEncoder> encoders,
+			SpeedRegionLookup lookup) {
+		factory.finish();
+		SpeedRegionsGraphHopper hopper = new SpeedRegionsGraphHopper();
+		hopper.setStoreOnFlush(true);
+		hopper.setCHEnable(false);
+		hopper.setMinNetworkSize(0, 0);
+		hopper.setOSMFile(osm.getAbsolutePath());
+		hopper.setGraphHopperLocation(new File(dir, graph).getAbsolutePath());
+		hopper.setEncodingManager(new EncodingManager(encoders, encoders.size() > 1 ? 8 : 4));
+		hopper.setOrdinalsFingerprint(factory.getOrdinalsFingerprint());
+		hopper.setSpeedRegionLookup(lookup);
+		hopper.importOrLoad();
+		return hopper;
+	}
+
+	private SpeedRegionsGraphHopper importOrLoadStoringOrdinals(SpeedRegionLookup lookup) {
+		SpeedRegionsFlagEncodersFactory factory = new SpeedRegionsFlagEncodersFactory(4);
+		List<AbstractFlagEncoder> encoders = new ArrayList<>();
+		encoders.add(factory.createEncoder(car(), new PMap(SpeedRegionConsts.ENCODER_STORE_REGION_ORDINAL + "=true"), lookup, null));
+		return importOrLoad("graph", factory, encoders, lookup);
+	}
+
+	public void testLoadChecksOrdinalsFingerprint() {
+		SpeedRegionLookup lookup = createLookup("valleta");
+		importOrLoadStoringOrdinals(lookup).close();
+
+		// same region types load fine
+		importOrLoadStoringOrdinals(createLookup("valleta")).close();
+
+		// different region types would silently change the meaning of the stored ordinals
+		try {
+			importOrLoadStoringOrdinals(createLookup("renamed")).close();
+			fail("Loaded a graph with a lookup whose region ordinals differ");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains(SpeedRegionsGraphHopper.ORDINALS_FINGERPRINT_PROPERTY));
+		}
+	}
+
+	public void testEncodersNeedFixedLookup() {
+		ReloadableSpeedRegionLookup reloadable = new ReloadableSpeedRegionLookup(
+				SpeedRegionLookupBuilder.compileFile(Examples.createMaltaExample(0.5), 100), QueryEngine.TREE, 0);
+		try {
+			new SpeedRegionsFlagEncodersFactory(4).createEncoder(car(), new PMap(), reloadable, null);
+			fail("Built an encoder with a reloadable lookup");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertNotNull(new SpeedRegionsFlagEncodersFactory(4).createEncoder(car(), new PMap(), ReloadableSpeedRegionLookup.fixed(reloadable), null));
+		reloadable.close();
+	}
+
+	public void testQueryTimeSpeedsMatchImportPerTimeProfile() {
+		SpeedRegionLookup lookup = createTimeProfilesLookup();
+		SpeedRegionsGraphHopper perProfile = importPerTimeProfile(lookup, null);
+		SpeedRegionsGraphHopper queryTime = importQueryTime(lookup, null);
+
+		int nbDiffering = 0;
+		for (VehicleTypeTimeProfile profile : timeProfiles()) {
+			AbstractFlagEncoder profileEncoder = (AbstractFlagEncoder) perProfile.getEncodingManager().getEncoder(profile.getCombinedId());
+			RegionOrdinalFlagEncoder vehicleEncoder = (RegionOrdinalFlagEncoder) queryTime.getEncodingManager()
+					.getEncoder(profile.getVehicleType().getGraphhopperName());
+			int encoderOrdinal = lookup.getSpeedMatrix().getEncoderOrdinal(profile.getCombinedId());
+
+			AllEdgesIterator expected = perProfile.getGraphHopperStorage().getAllEdges();
+			AllEdgesIterator actual = queryTime.getGraphHopperStorage().getAllEdges();
+			assertEquals(expected.getMaxId(), actual.getMaxId());
+			while (expected.next()) {
+				assertTrue(actual.next());
+				assertEquals(expected.getBaseNode(), actual.getBaseNode());
+				assertEquals(expected.getAdjNode(), actual.getAdjNode());
+				long flags = expected.getFlags();
+				assertEquals(profileEncoder.getSpeed(flags), vehicleEncoder.getTimeProfileSpeed(actual.getFlags(), false, encoderOrdinal), 1E-6);
+				if (profileEncoder.isBackward(flags)) {
+					assertEquals(profileEncoder.getReverseSpeed(flags), vehicleEncoder.getTimeProfileSpeed(actual.getFlags(), true, encoderOrdinal),
+							1E-6);
+				}
+				if (profileEncoder.getSpeed(flags) != ((AbstractFlagEncoder) vehicleEncoder).getSpeed(actual.getFlags())) {
+					nbDiffering++;
+				}
+			}
+			assertFalse(actual.next());
+		}
+
+		// the rules must have changed some speeds for the comparison to mean anything
+		assertTrue(nbDiffering > 0);
+		perProfile.close();
+		queryTime.close();
+	}
+
+	public void testRouteWithTimeProfiles() {
+		SpeedRegionLookup lookup = createTimeProfilesLookup();
+		SpeedRegionsGraphHopper perProfile = importPerTimeProfile(lookup, null);
+		SpeedRegionsGraphHopper queryTime = importQueryTime(lookup, null);
+
+		// route along the primary road inside the region then up the gravel residential road
+		GHPoint from = new GHPoint(LAT, 14.462);
+		GHPoint to = new GHPoint(LAT + 0.009, 14.49);
+		TreeMap<String, Long> times = new TreeMap<>();
+		for (VehicleTypeTimeProfile profile : timeProfiles()) {
+			GHRequest request = new GHRequest(from, to).setVehicle(profile.getVehicleType().getGraphhopperName());
+			request.getHints().put(SpeedRegionConsts.QUERY_TIME_PROFILE, profile.getTimeProfileId());
+			GHResponse response = queryTime.route(request);
+			assertFalse(response.getErrors().toString(), response.hasErrors());
+
+			GHResponse expected = perProfile.route(new GHRequest(from, to).setVehicle(profile.getCombinedId()));
+			assertFalse(expected.hasErrors());
+			assertEquals(expected.getDistance(), response.getDistance(), 1E-3);
+			assertEquals(expected.getTime(), response.getTime(), expected.getTime() * 1E-3);
+			times.put(profile.getCombinedId(), response.getTime());
+		}
+		assertTrue(times.get("car_day") > times.get("car_night"));
+		assertTrue(times.get("motorcycle_day") > times.get("motorcycle_night"));
+		perProfile.close();
+		queryTime.close();
+	}
+
+	public void testQueryTimeReportsEachTimeProfile() {
+		final SpeedRegionLookup lookup = createTimeProfilesLookup();
+		final TreeMap<String, Double> expectedHours = new TreeMap<>();
+		importPerTimeProfile(lookup, new ProcessedWayListener() {
+
+			@Override
+			public void onProcessedWay(VehicleTypeTimeProfile vehicleType, LineString lineString, String regionId, String highwayType,
+					double lengthMetres, SpeedRule rule, double originalSpeedKPH, double speedRegionsSpeedKPH) {
+				add(expectedHours, vehicleType.getCombinedId(), lengthMetres / 1000 / speedRegionsSpeedKPH);
+			}
+		}).close();
+
+		final TreeMap<String, Double> hours = new TreeMap<>();
+		importQueryTime(lookup, new ProcessedWayListener() {
+
+			@Override
+			public void onProcessedWay(VehicleTypeTimeProfile vehicleType, LineString lineString, String regionId, String highwayType,
+					double lengthMetres, SpeedRule rule, double originalSpeedKPH, double speedRegionsSpeedKPH) {
+				assertEquals(rule, lookup.createLookupForEncoder(vehicleType.getCombinedId()).getSpeedRule(TextUtils.stdString(regionId)));
+				add(hours, vehicleType.getCombinedId(), lengthMetres / 1000 / speedRegionsSpeedKPH);
+			}
+		}).close();
+
+		assertEquals(4, expectedHours.size());
+		assertEquals(expectedHours.keySet(), hours.keySet());
+		for (String combinedId : expectedHours.keySet()) {
+			assertEquals(expectedHours.get(combinedId), hours.get(combinedId), 1E-9);
+		}
+	}
+
+	private static void add(TreeMap<String, Double> map, String key, double value) {
+		Double current = map.get(key);
+		map.put(key, (current != null ? current : 0) + value);
+	}
+
+	public void testQueryTimeRulesNeedCHDisabled() {
+		SpeedRegionLookup lookup = createTimeProfilesLookup();
+		SpeedRegionsFlagEncodersFactory factory = new SpeedRegionsFlagEncodersFactory(4);
+		List<AbstractFlagEncoder> encoders = new ArrayList<>();
+		encoders.add(factory.createEncoder(car(), new PMap(SpeedRegionConsts.ENCODER_QUERY_TIME_RULES + "=true"), lookup, null));
+		factory.finish();
+		SpeedRegionsGraphHopper hopper = new SpeedRegionsGraphHopper();
+		hopper.setOSMFile(osm.getAbsolutePath());
+		hopper.setGraphHopperLocation(new File(dir, "ch").getAbsolutePath());
+		hopper.setEncodingManager(new EncodingManager(encoders, 4));
+		hopper.setCHEnable(true);
+		try {
+			hopper.importOrLoad();
+			fail("Imported query time rules with contraction hierarchies enabled");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains(SpeedRegionConsts.ENCODER_QUERY_TIME_RULES));
+		}
+	}
+
+	public void testWayQueryCountsWithPrePass() {
+		SpeedRegionLookup lookup = createTimeProfilesLookup();
+		int nbWays = 4;
+
+		// without the pre-pass the first encoder queries each way once and memos it for the other three
+		SpeedRegionsFlagEncodersFactory factory = new SpeedRegionsFlagEncodersFactory(8);
+		SpeedRegionsGraphHopper queried = importPerTimeProfile("queried", factory, lookup, null);
+		RegionQueryCounts counts = factory.getQueryCounts();
+		assertEquals(nbWays, counts.getNbWays());
+		assertEquals(counts.getNbWays(), counts.getNbWayQueries());
+		assertEquals(0, counts.getNbPreResolvedWays());
+
+		// with the pre-pass no way is queried during the import
+		LongIntHashMap wayRegionOrdinals = WayRegionPrePass.resolve(osm, lookup, false, 2);
+		assertEquals(nbWays, wayRegionOrdinals.size());
+		factory = new SpeedRegionsFlagEncodersFactory(8);
+		factory.setWayRegionOrdinals(wayRegionOrdinals);
+		SpeedRegionsGraphHopper preResolved = importPerTimeProfile("preresolved", factory, lookup, null);
+		counts = factory.getQueryCounts();
+		assertEquals(nbWays, counts.getNbWays());
+		assertEquals(nbWays, counts.getNbPreResolvedWays());
+		assertEquals(0, counts.getNbWayQueries());
+
+		// and the pre-pass regions give the same graph
+		AllEdgesIterator expected = queried.getGraphHopperStorage().getAllEdges();
+		AllEdgesIterator actual = preResolved.getGraphHopperStorage().getAllEdges();
+		while (expected.next()) {
+			assertTrue(actual.next());
+			assertEquals(expected.getFlags(), actual.getFlags());
+		}
+		assertFalse(actual.next());
+		queried.close();
+		preResolved.close();
+	}
+}
@@ -1,5 +1,6 @@
 package com.opendoorlogistics.speedregions.graphhopper;
 
+import java.io.File;
 import java.util.ArrayList;
 
 import com.graphhopper.GraphHopper;
@@ -11,14 +12,12 @@ import com.graphhopper.routing.util.FlagEncoderFactory;
 import com.graphhopper.util.CmdArgs;
 import com.graphhopper.util.PMap;
 import com.graphhopper.util.shapes.GHPoint;
+import com.opendoorlogistics.speedregions.SpeedMatrix;
 import com.opendoorlogistics.speedregions.SpeedRegionConsts;
 import com.opendoorlogistics.speedregions.SpeedRegionLookup;
-import com.opendoorlogistics.speedregions.SpeedRegionLookup.SpeedRuleLookup;
 import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
-import com.opendoorlogistics.speedregions.beans.SpeedRule;
-import com.opendoorlogistics.speedregions.utils.GeomUtils;
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Point;
+import com.opendoorlogistics.speedregions.WayRegionResolver;
+import com.opendoorlogistics.speedregions.utils.LongIntHashMap;
 
 /**
  * A temporary hack to use speed regions pending proper integration into Graphhopper
@@ -44,6 +43,15 @@ public class ExperimentalUseSpeedRegionsWithCar {
 		String flagEncoders = args.get("graph.flagEncoders", "");
 		int bytesForFlags = args.getInt("graph.bytesForFlags", 4);
 		String[] splitEncoders = flagEncoders.split(",");
+
+		// Optionally resolve all the way regions in parallel before the import
+		LongIntHashMap wayRegionOrdinals = null;
+		boolean byTowerNodes = args.getBool(SpeedRegionConsts.COMMAND_LINE_PREPASS_BY_TOWER_NODES, false);
+		int prePassThreads = args.getInt(SpeedRegionConsts.COMMAND_LINE_PREPASS_THREADS,
+				byTowerNodes ? Runtime.getRuntime().availableProcessors() : 0);
+		if (prePassThreads > 0 && lookup != null) {
+			wayRegionOrdinals = WayRegionPrePass.resolve(new File(args.get("osmreader.osm", "")), lookup, byTowerNodes, prePassThreads);
+		}
 		
 		ArrayList<AbstractFlagEncoder> encoders = new ArrayList<>();
 		for (String encoder : splitEncoders) {
@@ -55,7 +63,7 @@ public class ExperimentalUseSpeedRegionsWithCar {
 			PMap configuration = new PMap(propertiesString);
 
 			if (encoder.equals(FlagEncoderFactory.CAR)) {
-				encoders.add(newCarFlagEncoder(configuration, lookup));
+				encoders.add(newCarFlagEncoder(configuration, lookup, wayRegionOrdinals));
 			} else {
 				throw new RuntimeException("Unsupported encoder");
 			}
@@ -68,8 +76,10 @@ public class ExperimentalUseSpeedRegionsWithCar {
 		hopper.close();
 	}
 
-	private static CarFlagEncoder newCarFlagEncoder(PMap config, final SpeedRegionLookup lookup) {
-		final SpeedRuleLookup rules = lookup!=null ? lookup.createLookupForEncoder(FlagEncoderFactory.CAR):null;
+	private static CarFlagEncoder newCarFlagEncoder(PMap config, final SpeedRegionLookup lookup, final LongIntHashMap wayRegionOrdinals) {
+		// rules compiled to arrays so there's no map lookup or unit conversion per way
+		final SpeedMatrix speedMatrix = lookup!=null ? lookup.getSpeedMatrix():null;
+		final int encoderOrdinal = speedMatrix!=null ? speedMatrix.getEncoderOrdinal(FlagEncoderFactory.CAR) : -1;
 
 		return new CarFlagEncoder(config) {
 
@@ -79,11 +89,14 @@ public class ExperimentalUseSpeedRegionsWithCar {
 
 				// Set the speed region tag. This should probably be done in OSMReader instead when we integrate into
 				// latest Graphhopper core.
+				// Use the region from the pre-pass if we have one
+				int regionOrdinal = WayRegionResolver.getRegionOrdinal(wayRegionOrdinals, way.getId());
 				GHPoint estmCentre = way.getTag("estimated_center", null);
-				if (estmCentre != null && lookup!=null) {
-					Point point = GeomUtils.newGeomFactory().createPoint(new Coordinate(estmCentre.lon, estmCentre.lat));
-					String regionId = lookup.findRegionType(point);
-					way.setTag(SpeedRegionConsts.REGION_ID_TAG_IN_OSM_WAY, regionId);
+				if (regionOrdinal == WayRegionResolver.UNRESOLVED_WAY && estmCentre != null && lookup!=null) {
+					regionOrdinal = lookup.findRegionOrdinal(estmCentre.lon, estmCentre.lat);
+				}
+				if (regionOrdinal != WayRegionResolver.UNRESOLVED_WAY) {
+					way.setTag(SpeedRegionConsts.REGION_ORDINAL_TAG_IN_OSM_WAY, regionOrdinal);
 				}
 
 				long val= super.handleWayTags(way, allowed, relationFlags);
@@ -105,16 +118,15 @@ public class ExperimentalUseSpeedRegionsWithCar {
 		        }
 
 		        // apply the rule
-				String regionId = way.getTag(SpeedRegionConsts.REGION_ID_TAG_IN_OSM_WAY);	
-				if (regionId != null && rules!=null) {
-					SpeedRule rule = rules.getSpeedRule(regionId);
-					if (rule == null) {
+				Integer regionOrdinal = way.getTag(SpeedRegionConsts.REGION_ORDINAL_TAG_IN_OSM_WAY, null);
+				if (regionOrdinal != null && regionOrdinal != SpeedRegionConsts.NO_REGION_ORDINAL && speedMatrix!=null) {
+					if (!speedMatrix.hasRule(encoderOrdinal, regionOrdinal)) {
 						// TODO Should this be fatal? If someone misspelled a regionid you wouldn't want a silent fail.
 						// However it may be valid to have regions without a defined rule for certain encoders?
 						throw new RuntimeException(
-								"Cannot find speed rule for region with id " + regionId + " and encoder " +FlagEncoderFactory.CAR);
+								"Cannot find speed rule for region with id " + lookup.getRegionType(regionOrdinal) + " and encoder " +FlagEncoderFactory.CAR);
 					}
-					speed= rule.applyRule(highwayValue, speed,useMaxSpeed);					
+					speed= speedMatrix.applyRule(encoderOrdinal, regionOrdinal, speedMatrix.getHighwayOrdinal(highwayValue), speed,useMaxSpeed);
 				}
 
 				return speed;
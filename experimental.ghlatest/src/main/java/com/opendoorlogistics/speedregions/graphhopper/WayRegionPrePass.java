@@ -0,0 +1,66 @@
+package com.opendoorlogistics.speedregions.graphhopper;
+
+import java.io.File;
+
+import com.graphhopper.reader.OSMElement;
+import com.graphhopper.reader.OSMInputFile;
+import com.graphhopper.reader.OSMNode;
+import com.graphhopper.reader.OSMWay;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.WayRegionResolver;
+import com.opendoorlogistics.speedregions.utils.LongIntHashMap;
+
+import gnu.trove.list.TLongList;
+
+/**
+ * Reads the OSM file before the Graphhopper import and resolves the region of every highway way in parallel (see
+ * {@link WayRegionResolver}), so the encoders don't query the spatial tree on the OSM reader's thread.
+ *
+ */
+class WayRegionPrePass {
+
+	static LongIntHashMap resolve(File osmFile, SpeedRegionLookup lookup, boolean byTowerNodes, int parallelism) {
+		WayRegionResolver resolver = new WayRegionResolver(lookup, byTowerNodes);
+
+		// ways first so we know which nodes are needed
+		OSMInputFile in = null;
+		try {
+			in = new OSMInputFile(osmFile).setWorkerThreads(parallelism).open();
+			OSMElement item;
+			while ((item = in.getNext()) != null) {
+				if (item.isType(OSMElement.RELATION)) {
+					// relations come after all ways
+					break;
+				}
+				if (item.isType(OSMElement.WAY) && item.hasTag("highway")) {
+					TLongList nodes = ((OSMWay) item).getNodes();
+					resolver.addWay(item.getId(), nodes.toArray());
+				}
+			}
+			in.close();
+			in = null;
+
+			in = new OSMInputFile(osmFile).setWorkerThreads(parallelism).open();
+			while ((item = in.getNext()) != null) {
+				if (item.isType(OSMElement.NODE)) {
+					OSMNode node = (OSMNode) item;
+					resolver.setNodeCoordinate(node.getId(), node.getLon(), node.getLat());
+				} else {
+					// nodes come before ways and relations
+					break;
+				}
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+
+		return resolver.resolve(parallelism);
+	}
+}
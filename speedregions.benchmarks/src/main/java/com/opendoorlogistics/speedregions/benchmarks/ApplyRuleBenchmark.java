@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup.SpeedRuleLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
+import com.opendoorlogistics.speedregions.beans.SpeedRule;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
+
+/**
+ * Applying a speed rule to an edge, cycling through highway types (including types without a speed in the rule)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkData.JVM_IGNORE_UNRECOGNISED, BenchmarkData.JVM_OPEN_JAVA_UTIL,
+		BenchmarkData.JVM_OPEN_JAVA_LANG })
+public class ApplyRuleBenchmark {
+	private static final String[] HIGHWAY_TYPES = new String[] { "motorway", "motorway_link", "trunk", "primary", "secondary",
+			"tertiary", "residential", "unclassified", "service", "living_street", "track", "unknown" };
+
+	private SpeedRule rule;
+	private String[] highwayTypes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// coarse tree as only the rules are needed
+		SpeedRegionLookup lookup = SpeedRegionLookupBuilder.loadFromUncompiledSpeedRulesFile(BenchmarkData.loadGBUncompiled(), 100000);
+		SpeedRuleLookup rules = lookup.createLookupForEncoder("car");
+		rule = rules.getSpeedRule(TextUtils.stdString("InnerLondon"));
+		if (rule == null) {
+			throw new RuntimeException("Cannot find the InnerLondon car rule in the GB example");
+		}
+
+		highwayTypes = new String[HIGHWAY_TYPES.length];
+		for (int i = 0; i < highwayTypes.length; i++) {
+			highwayTypes[i] = TextUtils.stdString(HIGHWAY_TYPES[i]);
+		}
+	}
+
+	@Benchmark
+	public double applyRule() {
+		next = (next + 1) % highwayTypes.length;
+		return rule.applyRule(highwayTypes[next], 50, (next & 1) == 0);
+	}
+}
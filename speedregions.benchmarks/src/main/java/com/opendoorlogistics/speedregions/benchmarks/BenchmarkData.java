@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.benchmarks;
+
+import java.io.File;
+import java.util.Random;
+
+import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
+
+/**
+ * Shared data for the benchmarks, taken from the GB example files. The example-files directory is found relative to
+ * the working directory, or can be set using the system property {@value #EXAMPLES_DIR_PROPERTY}.
+ *
+ */
+class BenchmarkData {
+	static final String EXAMPLES_DIR_PROPERTY = "speedregions.examples";
+	static final String GB_UNCOMPILED = "GB-uncompiled-speed-rules-file.json";
+
+	/**
+	 * JVM arguments for the forked benchmark JVMs. Older versions deep cloned the speed rules by reflection, which
+	 * needs the JDK internals opening on Java 9+, so these are kept to allow comparing against them. Older JVMs ignore
+	 * the options.
+	 */
+	static final String JVM_IGNORE_UNRECOGNISED = "-XX:+IgnoreUnrecognizedVMOptions";
+	static final String JVM_OPEN_JAVA_UTIL = "--add-opens=java.base/java.util=ALL-UNNAMED";
+	static final String JVM_OPEN_JAVA_LANG = "--add-opens=java.base/java.lang=ALL-UNNAMED";
+
+	/**
+	 * Approximate bounds of mainland GB, where random query points are generated
+	 */
+	static final double GB_MIN_LNG = -5.7;
+	static final double GB_MAX_LNG = 1.8;
+	static final double GB_MIN_LAT = 50.0;
+	static final double GB_MAX_LAT = 58.6;
+
+	static File findExampleFile(String filename) {
+		String property = System.getProperty(EXAMPLES_DIR_PROPERTY);
+		String[] dirs = property != null ? new String[] { property } : new String[] { "example-files", "../example-files" };
+		for (String dir : dirs) {
+			File file = new File(dir, filename);
+			if (file.exists()) {
+				return file;
+			}
+		}
+		throw new RuntimeException("Cannot find example file " + filename + ". Run from the project directory or set -D"
+				+ EXAMPLES_DIR_PROPERTY + "=directory");
+	}
+
+	static UncompiledSpeedRulesFile loadGBUncompiled() {
+		return TextUtils.fromJSON(findExampleFile(GB_UNCOMPILED), UncompiledSpeedRulesFile.class);
+	}
+
+	/**
+	 * Create random points within GB, interleaved as lng,lat
+	 * 
+	 * @param n
+	 * @param seed
+	 * @return
+	 */
+	static double[] randomGBPoints(int n, long seed) {
+		Random random = new Random(seed);
+		double[] ret = new double[2 * n];
+		for (int i = 0; i < n; i++) {
+			ret[2 * i] = GB_MIN_LNG + random.nextDouble() * (GB_MAX_LNG - GB_MIN_LNG);
+			ret[2 * i + 1] = GB_MIN_LAT + random.nextDouble() * (GB_MAX_LAT - GB_MIN_LAT);
+		}
+		return ret;
+	}
+}
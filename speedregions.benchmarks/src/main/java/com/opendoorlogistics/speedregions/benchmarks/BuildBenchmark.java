@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
+import com.opendoorlogistics.speedregions.spatialtree.TreeBuilder;
+import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
+
+/**
+ * Building the GB example tree at different minimum cell lengths. Builds are long-running so each is timed as a
+ * single shot.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkData.JVM_IGNORE_UNRECOGNISED, BenchmarkData.JVM_OPEN_JAVA_UTIL,
+		BenchmarkData.JVM_OPEN_JAVA_LANG })
+public class BuildBenchmark {
+	@Param({ "1000", "100", "10" })
+	public double minCellLengthMetres;
+
+	private UncompiledSpeedRulesFile uncompiled;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		uncompiled = BenchmarkData.loadGBUncompiled();
+	}
+
+	@Benchmark
+	public RegionsSpatialTreeNode build() {
+		return TreeBuilder.build(uncompiled.getGeoJson(), minCellLengthMetres);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.opendoorlogistics.speedregions.SpeedRulesProcesser;
+import com.opendoorlogistics.speedregions.beans.SpeedRule;
+import com.opendoorlogistics.speedregions.beans.SpeedUnit;
+
+/**
+ * Collapsing the parent relations of a synthetic hierarchy of speed rules, as created from a spreadsheet with many
+ * speed profiles. In the tree shape each rule's parent is a random earlier rule; in the chain shape each rule's parent
+ * is the previous rule, which is the worst case for resolving each rule's ancestors separately.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkData.JVM_IGNORE_UNRECOGNISED, BenchmarkData.JVM_OPEN_JAVA_UTIL,
+		BenchmarkData.JVM_OPEN_JAVA_LANG })
+public class CollapseRulesBenchmark {
+	private static final String[] HIGHWAY_TYPES = new String[] { "motorway", "trunk", "primary", "secondary", "tertiary",
+			"residential", "unclassified", "service" };
+
+	@Param({ "TREE", "CHAIN" })
+	public String shape;
+
+	@Param({ "10000" })
+	public int nbRules;
+
+	private List<SpeedRule> rules;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(123);
+		rules = new ArrayList<>(nbRules);
+		for (int i = 0; i < nbRules; i++) {
+			SpeedRule rule = new SpeedRule();
+			rule.setId("Profile " + i);
+			if (i > 0) {
+				rule.setParentId("Profile " + (shape.equals("CHAIN") ? i - 1 : random.nextInt(i)));
+			}
+			rule.setMultiplier(0.9 + 0.2 * random.nextDouble());
+			rule.setSpeedUnit(random.nextBoolean() ? SpeedUnit.KM_PER_HOUR : SpeedUnit.MILES_PER_HOUR);
+			for (String type : HIGHWAY_TYPES) {
+				if (random.nextInt(4) == 0) {
+					rule.getSpeedsByRoadType().put(type, (float) (10 + 100 * random.nextDouble()));
+				}
+			}
+			rule.getMatchRule().getFlagEncoders().add("car");
+			rule.getMatchRule().getRegionTypes().add("Region " + i);
+			rules.add(rule);
+		}
+	}
+
+	@Benchmark
+	public HashMap<SpeedRule, SpeedRule> collapse() {
+		return new SpeedRulesProcesser().collapseParentRelations(rules);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
+import com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.spatialtree.BinaryCompiledFileIO;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
+
+/**
+ * Loading compiled files of the GB example, in JSON and binary form. The compiled files are created in the temp
+ * directory during setup.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkData.JVM_IGNORE_UNRECOGNISED, BenchmarkData.JVM_OPEN_JAVA_UTIL,
+		BenchmarkData.JVM_OPEN_JAVA_LANG })
+public class LoadBenchmark {
+	public enum Format {
+		JSON, BINARY
+	}
+
+	@Param({ "JSON", "BINARY" })
+	public Format format;
+
+	@Param({ "100" })
+	public double minCellLengthMetres;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		CompiledSpeedRulesFile compiled = SpeedRegionLookupBuilder.compileFile(BenchmarkData.loadGBUncompiled(), minCellLengthMetres);
+		file = File.createTempFile("speedregions-benchmark", format == Format.JSON ? ".json" : ".bin");
+		if (format == Format.JSON) {
+			TextUtils.toJSONFile(compiled, file);
+		} else {
+			BinaryCompiledFileIO.write(compiled, file);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public SpeedRegionLookup loadFromCompiledFile() {
+		return SpeedRegionLookupBuilder.loadFromCompiledFile(file);
+	}
+}
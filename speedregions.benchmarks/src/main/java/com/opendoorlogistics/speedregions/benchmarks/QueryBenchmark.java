@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.opendoorlogistics.speedregions.SpeedRegionLookup;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder.QueryEngine;
+import com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.utils.GeomUtils;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Single point and linestring queries against the GB example tree, for each query engine
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { BenchmarkData.JVM_IGNORE_UNRECOGNISED, BenchmarkData.JVM_OPEN_JAVA_UTIL,
+		BenchmarkData.JVM_OPEN_JAVA_LANG })
+public class QueryBenchmark {
+	private static final int NB_QUERIES = 1024;
+
+	/**
+	 * Approximate length in degrees of the random linestrings, roughly the size of an edge in a road graph
+	 */
+	private static final double LINESTRING_LENGTH_DEGREES = 0.001;
+
+	@Param({ "TREE", "FLATTENED" })
+	public QueryEngine engine;
+
+	@Param({ "100" })
+	public double minCellLengthMetres;
+
+	private SpeedRegionLookup lookup;
+	private double[] points;
+	private Geometry[] pointGeometries;
+	private Geometry[] lineStrings;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		CompiledSpeedRulesFile compiled = SpeedRegionLookupBuilder.compileFile(BenchmarkData.loadGBUncompiled(), minCellLengthMetres);
+		lookup = SpeedRegionLookupBuilder.fromCompiled(compiled, engine);
+
+		points = BenchmarkData.randomGBPoints(NB_QUERIES, 123);
+		GeometryFactory factory = GeomUtils.newGeomFactory();
+		pointGeometries = new Geometry[NB_QUERIES];
+		lineStrings = new Geometry[NB_QUERIES];
+		for (int i = 0; i < NB_QUERIES; i++) {
+			double lng = points[2 * i];
+			double lat = points[2 * i + 1];
+			pointGeometries[i] = factory.createPoint(new Coordinate(lng, lat));
+			lineStrings[i] = factory.createLineString(new Coordinate[] { new Coordinate(lng, lat),
+					new Coordinate(lng + LINESTRING_LENGTH_DEGREES, lat + 0.5 * LINESTRING_LENGTH_DEGREES),
+					new Coordinate(lng + 2 * LINESTRING_LENGTH_DEGREES, lat) });
+		}
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (NB_QUERIES - 1);
+		return next;
+	}
+
+	@Benchmark
+	public int queryLngLat() {
+		int i = nextIndex();
+		return lookup.findRegionOrdinal(points[2 * i], points[2 * i + 1]);
+	}
+
+	@Benchmark
+	public int queryPointGeometry() {
+		return lookup.findRegionOrdinal(pointGeometries[nextIndex()]);
+	}
+
+	@Benchmark
+	public int queryLineString() {
+		return lookup.findRegionOrdinal(lineStrings[nextIndex()]);
+	}
+}
@@ -27,6 +27,7 @@ import com.opendoorlogistics.speedregions.Examples;
 import com.opendoorlogistics.speedregions.SpeedRulesProcesser;
 import com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile;
 import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.spatialtree.BinaryCompiledFileIO;
 import com.opendoorlogistics.speedregions.utils.TextUtils;
 
 public class CommandLine {
@@ -209,6 +210,20 @@ public class CommandLine {
 				
 			}
 		});
+		tmp.add(new AbstractCommand("Export the compiled tree as a binary compiled rules file, which is memory-mapped when loaded. Trigger compile if one not done before. Usage -eb filename" , "eb") {
+			
+			@Override
+			public void execute(String[] args, State state) {
+				if(args.length==0){
+					throw new RuntimeException("No filename provided");
+				}
+				state.compileIfNull();
+				CompiledSpeedRulesFile compiledSpeedRulesFile = new CompiledSpeedRulesFile();
+				compiledSpeedRulesFile.setTree(state.compiled);
+				BinaryCompiledFileIO.write(compiledSpeedRulesFile, new File(args[0]));
+				
+			}
+		});
 		tmp.add(new AbstractCommand("Export an Excel file for visualisation in ODL Studio. Trigger compile if one not done before. Usage -odl filename" , "odl") {
 			
 			@Override
@@ -237,6 +252,9 @@ public class CommandLine {
 		// add buffer
 		tmp.add(new BufferCommand());
 
+		// add batch lookup
+		tmp.add(new LookupCommand());
+
 		// add help
 		tmp.add(new AbstractCommand("List all commands", "help", "h") {
 
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.commandline;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+import com.opendoorlogistics.speedregions.spatialtree.BatchQueryProcessor;
+import com.opendoorlogistics.speedregions.spatialtree.FlatQueryProcessor;
+
+public class LookupCommand extends AbstractCommand {
+	private static final Logger LOGGER = Logger.getLogger(LookupCommand.class.getName());
+
+	public LookupCommand() {
+		super("Look up the region type of each point in a comma separated text file with lng,lat on each line. Trigger compile if one not done before."
+				+ System.lineSeparator() + "Lines which don't start with two numbers (e.g. a header) are skipped."
+				+ System.lineSeparator() + "Usage -lookup inputfile outputfile [nbThreads].", new String[] { "lookup" });
+	}
+
+	@Override
+	public void execute(String[] args, State state) {
+		if (args.length < 2) {
+			throw new RuntimeException("Lookup needs an input and an output filename");
+		}
+		int nbThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		// read points
+		ArrayList<double[]> points = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(args[0])), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] split = line.split(",");
+				if (split.length < 2) {
+					continue;
+				}
+				try {
+					points.add(new double[] { Double.parseDouble(split[0].trim()), Double.parseDouble(split[1].trim()) });
+				} catch (NumberFormatException e) {
+					// skip headers etc
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		int n = points.size();
+		double[] lngs = new double[n];
+		double[] lats = new double[n];
+		for (int i = 0; i < n; i++) {
+			lngs[i] = points.get(i)[0];
+			lats[i] = points.get(i)[1];
+		}
+
+		// query in batch
+		state.compileIfNull();
+		FlatQueryProcessor flat = new FlatQueryProcessor(state.compiled);
+		long start = System.currentTimeMillis();
+		int[] ordinals = new BatchQueryProcessor(flat).queryOrdinals(lngs, lats, nbThreads);
+		LOGGER.info("Looked up " + n + " points in " + (System.currentTimeMillis() - start) + " millis");
+
+		// write results
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(args[1])), StandardCharsets.UTF_8))) {
+			writer.write("lng,lat,regiontype");
+			writer.newLine();
+			for (int i = 0; i < n; i++) {
+				String regionType = flat.getRegionType(ordinals[i]);
+				writer.write(lngs[i] + "," + lats[i] + "," + (regionType != null ? regionType : ""));
+				writer.newLine();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
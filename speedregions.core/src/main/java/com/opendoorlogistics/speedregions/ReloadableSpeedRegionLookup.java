@@ -0,0 +1,334 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder.QueryEngine;
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
+import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
+import com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.spatialtree.BinaryCompiledFileIO;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Lookup which can be reloaded while in use. Each reload builds a complete new lookup (spatial query processor and
+ * rules map) on the reloading thread and then swaps it in atomically, so queries on other threads are never blocked
+ * and always see either the old or the new snapshot in full. Every snapshot has a generation number, starting at 1
+ * and incremented on each reload.
+ * <p>
+ * Each query method on this class reads the current snapshot, so region ordinals from one call may not match the
+ * region types from a later call if a reload happened in-between. Callers needing several consistent calls (e.g.
+ * finding an ordinal then its speed rule) should take a {@link Snapshot} with {@link #getSnapshot()} and query that.
+ * <p>
+ * If watching a compiled file, replace the file atomically (write elsewhere and rename) rather than overwriting it.
+ * Binary compiled files are memory-mapped, so overwriting in place would change the old snapshot's data underneath it.
+ * {@link BinaryCompiledFileIO#write(CompiledSpeedRulesFile, File)} already replaces its target atomically.
+ * 
+ */
+public class ReloadableSpeedRegionLookup implements SpeedRegionLookup, Closeable {
+	private static final Logger LOGGER = Logger.getLogger(ReloadableSpeedRegionLookup.class.getName());
+
+	private final File compiledFile;
+	private final QueryEngine engine;
+	private final int pointCacheSize;
+	private final AtomicReference<Snapshot> current = new AtomicReference<>();
+	private ScheduledExecutorService watcher;
+	private long fileStamp;
+
+	/**
+	 * A lookup together with the generation number it was loaded as
+	 */
+	public static class Snapshot {
+		private final SpeedRegionLookup lookup;
+		private final long generation;
+
+		private Snapshot(SpeedRegionLookup lookup, long generation) {
+			this.lookup = lookup;
+			this.generation = generation;
+		}
+
+		public SpeedRegionLookup getLookup() {
+			return lookup;
+		}
+
+		public long getGeneration() {
+			return generation;
+		}
+	}
+
+	/**
+	 * Load the lookup from a compiled file (see {@link SpeedRegionLookupBuilder#loadFromCompiledFile(File, QueryEngine, int)}).
+	 * The file can be reloaded with {@link #reload()}, {@link #checkForChanges()} or {@link #startWatching(long)}.
+	 * 
+	 * @param compiledFile
+	 * @param engine
+	 * @param pointCacheSize
+	 */
+	public ReloadableSpeedRegionLookup(File compiledFile, QueryEngine engine, int pointCacheSize) {
+		this.compiledFile = compiledFile;
+		this.engine = engine;
+		this.pointCacheSize = pointCacheSize;
+		reload();
+	}
+
+	/**
+	 * Create the lookup from compiled rules already in memory. New rules can be swapped in with
+	 * {@link #reload(CompiledSpeedRulesFile)}.
+	 * 
+	 * @param compiled
+	 * @param engine
+	 * @param pointCacheSize
+	 */
+	public ReloadableSpeedRegionLookup(CompiledSpeedRulesFile compiled, QueryEngine engine, int pointCacheSize) {
+		this.compiledFile = null;
+		this.engine = engine;
+		this.pointCacheSize = pointCacheSize;
+		reload(compiled);
+	}
+
+	/**
+	 * Reload the compiled file
+	 * 
+	 * @return Generation of the new snapshot
+	 */
+	public synchronized long reload() {
+		if (compiledFile == null) {
+			throw new RuntimeException("Reloadable lookup was not created from a file");
+		}
+
+		// take the stamp before loading so a change during the load is picked up next time
+		fileStamp = getFileStamp();
+		return swap(SpeedRegionLookupBuilder.loadFromCompiledFile(compiledFile, engine, pointCacheSize));
+	}
+
+	/**
+	 * Swap in new compiled rules
+	 * 
+	 * @param compiled
+	 * @return Generation of the new snapshot
+	 */
+	public synchronized long reload(CompiledSpeedRulesFile compiled) {
+		return swap(SpeedRegionLookupBuilder.fromCompiled(compiled, engine, pointCacheSize));
+	}
+
+	private long swap(SpeedRegionLookup lookup) {
+		Snapshot old = current.get();
+		Snapshot snapshot = new Snapshot(lookup, old != null ? old.generation + 1 : 1);
+		current.set(snapshot);
+		return snapshot.generation;
+	}
+
+	/**
+	 * Reload the compiled file if its modification time or length has changed since it was last loaded
+	 * 
+	 * @return True if reloaded
+	 */
+	public synchronized boolean checkForChanges() {
+		if (compiledFile == null || !compiledFile.exists() || getFileStamp() == fileStamp) {
+			return false;
+		}
+		reload();
+		return true;
+	}
+
+	/**
+	 * Combine modification time and length, as the modification time may only have a resolution of seconds
+	 */
+	private long getFileStamp() {
+		return compiledFile.lastModified() * 31 + compiledFile.length();
+	}
+
+	/**
+	 * Start a background daemon thread which checks the compiled file for changes and reloads it. If a reload fails
+	 * the error is logged and the current snapshot is kept.
+	 * 
+	 * @param pollMillis
+	 */
+	public synchronized void startWatching(long pollMillis) {
+		if (compiledFile == null) {
+			throw new RuntimeException("Reloadable lookup was not created from a file");
+		}
+		if (watcher != null) {
+			throw new RuntimeException("Already watching " + compiledFile.getAbsolutePath());
+		}
+
+		watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "speedregions-reload-" + compiledFile.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		watcher.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (checkForChanges()) {
+						LOGGER.info("Reloaded " + compiledFile.getAbsolutePath() + " as generation " + getGeneration());
+					}
+				} catch (Exception e) {
+					LOGGER.log(Level.WARNING, "Failed to reload " + compiledFile.getAbsolutePath(), e);
+				}
+			}
+		}, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop watching the compiled file. The lookup can still be queried and reloaded manually.
+	 */
+	@Override
+	public synchronized void close() {
+		if (watcher != null) {
+			watcher.shutdownNow();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * Get the current snapshot
+	 * 
+	 * @return
+	 */
+	public Snapshot getSnapshot() {
+		return current.get();
+	}
+
+	/**
+	 * Get a lookup which will never change underneath the caller: the current snapshot's lookup if the input is a
+	 * {@link ReloadableSpeedRegionLookup}, otherwise the input itself. Anything which stores region ordinals (e.g. a
+	 * graph) must be built with a fixed lookup, and is then bound to that lookup's region types.
+	 *
+	 * @param lookup
+	 * @return
+	 */
+	public static SpeedRegionLookup fixed(SpeedRegionLookup lookup) {
+		if (lookup instanceof ReloadableSpeedRegionLookup) {
+			return ((ReloadableSpeedRegionLookup) lookup).getSnapshot().getLookup();
+		}
+		return lookup;
+	}
+
+	/**
+	 * Get the generation of the current snapshot
+	 *
+	 * @return
+	 */
+	public long getGeneration() {
+		return current.get().generation;
+	}
+
+	private SpeedRegionLookup lookup() {
+		return current.get().lookup;
+	}
+
+	@Override
+	public String findRegionType(Geometry edge) {
+		return lookup().findRegionType(edge);
+	}
+
+	@Override
+	public String findRegionType(double lng, double lat) {
+		return lookup().findRegionType(lng, lat);
+	}
+
+	@Override
+	public int findRegionOrdinal(Geometry edge) {
+		return lookup().findRegionOrdinal(edge);
+	}
+
+	@Override
+	public int findRegionOrdinal(double lng, double lat) {
+		return lookup().findRegionOrdinal(lng, lat);
+	}
+
+	@Override
+	public int findRegionOrdinal(double[] lngs, double[] lats, LinestringMode mode) {
+		return lookup().findRegionOrdinal(lngs, lats, mode);
+	}
+
+	@Override
+	public List<RegionInterval> findRegionIntervals(double[] lngs, double[] lats) {
+		return lookup().findRegionIntervals(lngs, lats);
+	}
+
+	@Override
+	public int[] findRegionOrdinals(double[] lngs, double[] lats, int parallelism) {
+		return lookup().findRegionOrdinals(lngs, lats, parallelism);
+	}
+
+	@Override
+	public String[] findRegionTypes(double[] lngs, double[] lats, int parallelism) {
+		return lookup().findRegionTypes(lngs, lats, parallelism);
+	}
+
+	@Override
+	public String getRegionType(int ordinal) {
+		return lookup().getRegionType(ordinal);
+	}
+
+	@Override
+	public int getNbRegionTypes() {
+		return lookup().getNbRegionTypes();
+	}
+
+	@Override
+	public long getPointCacheHits() {
+		return lookup().getPointCacheHits();
+	}
+
+	@Override
+	public long getPointCacheMisses() {
+		return lookup().getPointCacheMisses();
+	}
+
+	/**
+	 * Create the rules lookup for the current snapshot. The rules lookup keeps using that snapshot after a reload, so
+	 * take it from the same {@link Snapshot} as the region ordinals it's used with.
+	 */
+	@Override
+	public SpeedRuleLookup createLookupForEncoder(String encoder) {
+		return lookup().createLookupForEncoder(encoder);
+	}
+
+	@Override
+	public SpeedMatrix getSpeedMatrix() {
+		return lookup().getSpeedMatrix();
+	}
+
+	@Override
+	public RegionsSpatialTreeNode getTree() {
+		return lookup().getTree();
+	}
+
+	@Override
+	public Set<String> getEncoderTypes() {
+		return lookup().getEncoderTypes();
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.opendoorlogistics.speedregions.beans.SpeedRule;
+import com.opendoorlogistics.speedregions.beans.SpeedUnit;
+import com.opendoorlogistics.speedregions.spatialtree.RegionTypeDictionary;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
+
+/**
+ * Speed rules compiled into dense arrays indexed by encoder ordinal, region ordinal and highway type ordinal. Speeds
+ * are stored already converted to km/h, so applying a rule is just array lookups with no maps or unit conversion. The
+ * results are the same as {@link SpeedRule#applyRule(String, double, boolean)} on the self-contained rules, except
+ * highway type speeds are held as floats in km/h.
+ * <p>
+ * Encoder ordinals follow the sorted standardised encoder names and highway type ordinals the sorted highway types
+ * found in the rules. Highway types are matched exactly, as in {@link SpeedRule}. The matrix is immutable so can be
+ * shared between threads.
+ * 
+ */
+public class SpeedMatrix {
+	/**
+	 * Ordinal for a highway type which has no speed in any rule
+	 */
+	public static final int NO_HIGHWAY_ORDINAL = -1;
+
+	private final String[] encoders;
+	private final HashMap<String, Integer> encoderOrdinals = new HashMap<>();
+	private final String[] highwayTypes;
+	private final HashMap<String, Integer> highwayOrdinals = new HashMap<>();
+	private final int nbRegions;
+
+	/**
+	 * Speed in km/h by [encoder][region][highway type], or NaN if not set
+	 */
+	private final float[] speeds;
+
+	/**
+	 * Multiplier by [encoder][region], or NaN if there's no rule
+	 */
+	private final double[] multipliers;
+
+	/**
+	 * Create the matrix
+	 * 
+	 * @param rulesMap
+	 *            Self-contained rules by encoder and region type, as created by
+	 *            {@link SpeedRulesProcesser#createSelfContainedRulesLookupMap(List)}
+	 * @param dictionary
+	 *            Region type ordinals. Rules for region types not in the dictionary are ignored.
+	 */
+	public SpeedMatrix(TreeMap<String, TreeMap<String, SpeedRule>> rulesMap, RegionTypeDictionary dictionary) {
+		encoders = rulesMap.keySet().toArray(new String[rulesMap.size()]);
+		for (int i = 0; i < encoders.length; i++) {
+			encoderOrdinals.put(encoders[i], i);
+		}
+
+		TreeSet<String> highwaySet = new TreeSet<>();
+		for (TreeMap<String, SpeedRule> map : rulesMap.values()) {
+			for (SpeedRule rule : map.values()) {
+				highwaySet.addAll(rule.getSpeedsByRoadType().keySet());
+			}
+		}
+		highwayTypes = highwaySet.toArray(new String[highwaySet.size()]);
+		for (int i = 0; i < highwayTypes.length; i++) {
+			highwayOrdinals.put(highwayTypes[i], i);
+		}
+
+		nbRegions = dictionary.size();
+		int nbHighways = highwayTypes.length;
+		speeds = new float[encoders.length * nbRegions * nbHighways];
+		multipliers = new double[encoders.length * nbRegions];
+		Arrays.fill(speeds, Float.NaN);
+		Arrays.fill(multipliers, Double.NaN);
+
+		for (int encoder = 0; encoder < encoders.length; encoder++) {
+			TreeMap<String, SpeedRule> map = rulesMap.get(encoders[encoder]);
+			for (int region = 0; region < nbRegions; region++) {
+				SpeedRule rule = map.get(dictionary.getRegionType(region));
+				if (rule == null) {
+					continue;
+				}
+
+				int ruleIndex = encoder * nbRegions + region;
+				multipliers[ruleIndex] = rule.getMultiplier();
+				for (Map.Entry<String, Float> entry : rule.getSpeedsByRoadType().entrySet()) {
+					if (entry.getValue() != null) {
+						speeds[ruleIndex * nbHighways + highwayOrdinals.get(entry.getKey())] = (float) SpeedUnit.convert(entry.getValue(),
+								rule.getSpeedUnit(), SpeedUnit.KM_PER_HOUR);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the encoder ordinal
+	 * 
+	 * @param encoder
+	 * @return Ordinal or -1 if there are no rules for the encoder
+	 */
+	public int getEncoderOrdinal(String encoder) {
+		Integer ret = encoderOrdinals.get(TextUtils.stdString(encoder));
+		return ret != null ? ret : -1;
+	}
+
+	/**
+	 * Get the highway type ordinal. Do this once per way and reuse it for all encoders.
+	 * 
+	 * @param highwayType
+	 * @return Ordinal or {@link #NO_HIGHWAY_ORDINAL} if no rule has a speed for the highway type (or it's null)
+	 */
+	public int getHighwayOrdinal(String highwayType) {
+		if (highwayType == null) {
+			return NO_HIGHWAY_ORDINAL;
+		}
+		Integer ret = highwayOrdinals.get(highwayType);
+		return ret != null ? ret : NO_HIGHWAY_ORDINAL;
+	}
+
+	public int getNbEncoders() {
+		return encoders.length;
+	}
+
+	public int getNbRegions() {
+		return nbRegions;
+	}
+
+	public int getNbHighwayTypes() {
+		return highwayTypes.length;
+	}
+
+	public List<String> getEncoders() {
+		return new ArrayList<>(Arrays.asList(encoders));
+	}
+
+	public List<String> getHighwayTypes() {
+		return new ArrayList<>(Arrays.asList(highwayTypes));
+	}
+
+	/**
+	 * Is there a rule for the encoder and region?
+	 * 
+	 * @param encoderOrdinal
+	 * @param regionOrdinal
+	 * @return False if either ordinal is out of range
+	 */
+	public boolean hasRule(int encoderOrdinal, int regionOrdinal) {
+		return !Double.isNaN(getMultiplier(encoderOrdinal, regionOrdinal));
+	}
+
+	private double getMultiplier(int encoderOrdinal, int regionOrdinal) {
+		if (encoderOrdinal < 0 || encoderOrdinal >= encoders.length || regionOrdinal < 0 || regionOrdinal >= nbRegions) {
+			return Double.NaN;
+		}
+		return multipliers[encoderOrdinal * nbRegions + regionOrdinal];
+	}
+
+	/**
+	 * Get an upper bound on the speed {@link #applyRule(int, int, int, double, boolean)} can return for the encoder,
+	 * e.g. for the minimum weight used by A* routing
+	 * 
+	 * @param encoderOrdinal
+	 * @param maxOriginalSpeedKmH
+	 *            Maximum original speed passed to applyRule
+	 * @return
+	 */
+	public double getMaxSpeed(int encoderOrdinal, double maxOriginalSpeedKmH) {
+		// regions without a rule keep the original speed
+		double ret = maxOriginalSpeedKmH;
+		if (encoderOrdinal < 0 || encoderOrdinal >= encoders.length) {
+			return ret;
+		}
+
+		int nbHighways = highwayTypes.length;
+		for (int region = 0; region < nbRegions; region++) {
+			int ruleIndex = encoderOrdinal * nbRegions + region;
+			double multiplier = multipliers[ruleIndex];
+			if (Double.isNaN(multiplier)) {
+				continue;
+			}
+			ret = Math.max(ret, maxOriginalSpeedKmH * multiplier);
+			for (int highway = 0; highway < nbHighways; highway++) {
+				float speed = speeds[ruleIndex * nbHighways + highway];
+				if (!Float.isNaN(speed)) {
+					ret = Math.max(ret, speed);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Primitive version of {@link SpeedRule#applyRule(String, double, boolean)}. If there is no rule for the encoder
+	 * and region, the original speed is returned unchanged.
+	 * 
+	 * @param encoderOrdinal
+	 * @param regionOrdinal
+	 *            Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 * @param highwayOrdinal
+	 *            Highway type ordinal or {@link #NO_HIGHWAY_ORDINAL}
+	 * @param originalSpeedKmH
+	 * @param usedMaxSpeed
+	 *            If true, originalSpeedKmH is calculated from the max speed instead of the highway type
+	 * @return Speed in km/h
+	 */
+	public double applyRule(int encoderOrdinal, int regionOrdinal, int highwayOrdinal, double originalSpeedKmH, boolean usedMaxSpeed) {
+		double multiplier = getMultiplier(encoderOrdinal, regionOrdinal);
+		if (Double.isNaN(multiplier)) {
+			return originalSpeedKmH;
+		}
+
+		double multipliedSpeed = originalSpeedKmH * multiplier;
+		if (highwayOrdinal >= 0 && highwayOrdinal < highwayTypes.length) {
+			float highwayTypeSpeed = speeds[(encoderOrdinal * nbRegions + regionOrdinal) * highwayTypes.length + highwayOrdinal];
+
+			// Use the highway type speed if its set and either (a) we didn't use max speed or (b) its slower than the max speed x multiplier
+			if (!Float.isNaN(highwayTypeSpeed) && (!usedMaxSpeed || highwayTypeSpeed < multipliedSpeed)) {
+				return highwayTypeSpeed;
+			}
+		}
+		return multipliedSpeed;
+	}
+}
@@ -29,8 +29,69 @@ public class SpeedRegionConsts {
 	 */
 	public static final String COMMAND_LINE_TOLERANCE= "speedregions.tolerance";
 	
+	/**
+	 * Poll interval in milliseconds for reloading the compiled file when it changes. If not set the compiled file is
+	 * only loaded once.
+	 */
+	public static final String COMMAND_LINE_RELOAD_POLL_MILLIS = "speedregions.reload.pollmillis";
+	
+	/**
+	 * Number of threads for resolving all way regions in a pre-pass over the OSM file before the graph import (see
+	 * {@link WayRegionResolver}). If not set the regions are found on the OSM reader's thread during the import.
+	 */
+	public static final String COMMAND_LINE_PREPASS_THREADS = "speedregions.prepass.threads";
+	
+	/**
+	 * If true the pre-pass finds the region of each tower node once and derives the way regions from their tower nodes
+	 * (see {@link WayRegionResolver}). Runs the pre-pass on all cores unless {@link #COMMAND_LINE_PREPASS_THREADS} is set.
+	 */
+	public static final String COMMAND_LINE_PREPASS_BY_TOWER_NODES = "speedregions.prepass.bytowernodes";
+	
 	public static final String REGION_ID_TAG_IN_OSM_WAY = "odl_speed_region_id";
 	
+	public static final String REGION_ORDINAL_TAG_IN_OSM_WAY = "odl_speed_region_ordinal";
+	
+	/**
+	 * Flag encoder configuration key for how the region of a way is found. If not set the way's estimated
+	 * centre is used, otherwise the value is the name of a {@link SpeedRegionLookup.LinestringMode} (case insensitive)
+	 * and the region is found per edge using the edge's full geometry. The value
+	 * {@link #ENCODER_LINESTRING_MODE_SPLIT_EDGE} instead gives each edge a distance-weighted speed over all regions it
+	 * crosses.
+	 */
+	public static final String ENCODER_LINESTRING_MODE = "speedregions_linestring_mode";
+	
+	/**
+	 * Value of {@link #ENCODER_LINESTRING_MODE} which splits each edge into its intervals within each region
+	 * (see {@link SpeedRegionLookup#findRegionIntervals(double[], double[])}) and sets the edge speed so the
+	 * travel time is the sum of the travel times in each interval.
+	 */
+	public static final String ENCODER_LINESTRING_MODE_SPLIT_EDGE = "SPLIT_EDGE";
+	
+	/**
+	 * Flag encoder configuration key which, if true, reserves bits in the edge flags to store each edge's region
+	 * ordinal, so it can be read at routing time without querying the spatial tree.
+	 */
+	public static final String ENCODER_STORE_REGION_ORDINAL = "speedregions_store_region_ordinal";
+	
+	/**
+	 * Flag encoder configuration key which, if true, stores the speed before any rule together with the region and
+	 * highway type ordinals in the edge flags instead of applying the rules during import. A weighting then applies
+	 * the rules for the requested time profile from the {@link SpeedMatrix} at query time, so one encoder per vehicle
+	 * type serves all its time profiles.
+	 */
+	public static final String ENCODER_QUERY_TIME_RULES = "speedregions_query_time_rules";
+
+	/**
+	 * Routing request hint naming the time profile whose rules are applied at query time to a vehicle imported with
+	 * {@link #ENCODER_QUERY_TIME_RULES}. An empty value selects the vehicle's rules without a time profile.
+	 */
+	public static final String QUERY_TIME_PROFILE = "speedregions_time_profile";
+
+	/**
+	 * Ordinal returned by integer region lookups when no region is found
+	 */
+	public static final int NO_REGION_ORDINAL = -1;
+	
 //	public static final String SPEED_RULE_OBJECT_IN_OSM_WAY = "odl_speed_rule_object";
 
 }
@@ -15,12 +15,24 @@
  */
 package com.opendoorlogistics.speedregions;
 
+import java.util.List;
 import java.util.Set;
 
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
 import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
 import com.opendoorlogistics.speedregions.beans.SpeedRule;
 import com.vividsolutions.jts.geom.Geometry;
 
+/**
+ * Lookup of region types and speed rules.
+ * <p>
+ * Lookups created by {@link SpeedRegionLookupBuilder} are immutable once created and are safe to share between any
+ * number of threads. All queries are lock-free and only read shared state; any per-query working data is local to
+ * the call. The same applies to the {@link SpeedRuleLookup} objects created from them. Callers must not modify the tree
+ * returned by {@link #getTree()} or the returned speed rules, and geometries passed in should not be modified by
+ * another thread while they're being queried.
+ *
+ */
 public interface SpeedRegionLookup {
 	/**
 	 * For a given edge, find what region it sits within and returned
@@ -30,8 +42,120 @@ public interface SpeedRegionLookup {
 	 */
 	String findRegionType(Geometry edge);
 
+	/**
+	 * Find the region a point sits within. This avoids creating any geometry objects
+	 * and should be preferred when querying single positions.
+	 * @param lng
+	 * @param lat
+	 * @return Region id (standardised) or null if none found.
+	 */
+	String findRegionType(double lng, double lat);
+
+	/**
+	 * Integer version of {@link #findRegionType(Geometry)} which avoids strings in the hot path.
+	 * @param edge
+	 * @return Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL} if none found.
+	 */
+	int findRegionOrdinal(Geometry edge);
+
+	/**
+	 * Integer version of {@link #findRegionType(double, double)} which avoids strings in the hot path.
+	 * @param lng
+	 * @param lat
+	 * @return Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL} if none found.
+	 */
+	int findRegionOrdinal(double lng, double lat);
+
+	/**
+	 * How a region is chosen for a linestring which crosses more than one region
+	 */
+	public enum LinestringMode {
+		/**
+		 * The highest priority region the linestring touches. This is the same as {@link SpeedRegionLookup#findRegionOrdinal(Geometry)}.
+		 */
+		HIGHEST_PRIORITY,
+
+		/**
+		 * The region containing the greatest length of the linestring, or no region if more of the linestring is
+		 * outside all regions than in any single region.
+		 */
+		LENGTH_WEIGHTED_MAJORITY
+	}
+
+	/**
+	 * Find the region for a linestring given as coordinate arrays. No geometry objects are created and the tree is
+	 * tested using segment-rectangle tests rather than JTS.
+	 * @param lngs
+	 * @param lats
+	 * @param mode
+	 * @return Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL} if none found.
+	 */
+	int findRegionOrdinal(double[] lngs, double[] lats, LinestringMode mode);
+
+	/**
+	 * Split a linestring given as coordinate arrays into the intervals within each region, so for example the
+	 * speed of a long edge crossing a region border can be weighted by the distance in each region.
+	 * @param lngs
+	 * @param lats
+	 * @return Intervals covering the whole linestring in order, with fractions of the linestring's length. Parts
+	 * outside all regions have the region ordinal {@link SpeedRegionConsts#NO_REGION_ORDINAL}.
+	 */
+	List<RegionInterval> findRegionIntervals(double[] lngs, double[] lats);
+
+	/**
+	 * Find the region ordinals of many points at once. This is much faster than repeated single calls for large
+	 * batches as the points are queried in spatial order internally.
+	 * @param lngs
+	 * @param lats
+	 * @param parallelism Number of threads to use. 1 or less queries on the calling thread.
+	 * @return Region ordinals or {@link SpeedRegionConsts#NO_REGION_ORDINAL}, in the same order as the input points.
+	 */
+	int[] findRegionOrdinals(double[] lngs, double[] lats, int parallelism);
+
+	/**
+	 * String version of {@link #findRegionOrdinals(double[], double[], int)}
+	 * @param lngs
+	 * @param lats
+	 * @param parallelism
+	 * @return Region types (standardised) or null if none found, in the same order as the input points.
+	 */
+	String[] findRegionTypes(double[] lngs, double[] lats, int parallelism);
+
+	/**
+	 * Get the standardised region type for an ordinal 
+	 * @param ordinal
+	 * @return Region type or null if the ordinal is {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 */
+	String getRegionType(int ordinal);
+
+	/**
+	 * Region ordinals run from 0 to getNbRegionTypes()-1 
+	 * @return
+	 */
+	int getNbRegionTypes();
+
+	/**
+	 * Number of point queries answered by the per-thread point cache, if the lookup was created with one
+	 * (see {@link SpeedRegionLookupBuilder#fromCompiled(com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile, SpeedRegionLookupBuilder.QueryEngine, int)}).
+	 * @return Hit count, summed over all threads, or 0 if there is no cache
+	 */
+	long getPointCacheHits();
+
+	/**
+	 * Number of point queries which weren't answered by the per-thread point cache and so walked the tree
+	 * @return Miss count, summed over all threads, or 0 if there is no cache
+	 */
+	long getPointCacheMisses();
+
 	public interface SpeedRuleLookup{
 		SpeedRule getSpeedRule(String standardisedRegionType);
+		
+		/**
+		 * Get the speed rule using an array lookup on the region ordinal
+		 * @param regionOrdinal
+		 * @return Speed rule or null if none exists (or the ordinal is {@link SpeedRegionConsts#NO_REGION_ORDINAL})
+		 */
+		SpeedRule getSpeedRule(int regionOrdinal);
 	}
 	
 	/**
@@ -41,6 +165,13 @@ public interface SpeedRegionLookup {
 	 */
 	SpeedRuleLookup createLookupForEncoder(String encoder);
 	
+	/**
+	 * Get the speed rules for all encoders compiled into a dense matrix by region and highway type ordinals, for
+	 * applying rules without any map lookups. Region ordinals are the same as this lookup's.
+	 * @return
+	 */
+	SpeedMatrix getSpeedMatrix();
+	
 	RegionsSpatialTreeNode getTree();
 	
 	Set<String> getEncoderTypes();
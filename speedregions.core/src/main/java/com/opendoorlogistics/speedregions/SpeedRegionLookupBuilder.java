@@ -16,22 +16,33 @@
 package com.opendoorlogistics.speedregions;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.zip.CRC32;
 
 import org.geojson.FeatureCollection;
 
+import com.opendoorlogistics.speedregions.SpeedRegionLookup.LinestringMode;
 import com.opendoorlogistics.speedregions.SpeedRegionLookup.SpeedRuleLookup;
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
 import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
 import com.opendoorlogistics.speedregions.beans.SpeedRule;
 import com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile;
 import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.spatialtree.BatchQueryProcessor;
+import com.opendoorlogistics.speedregions.spatialtree.BinaryCompiledFileIO;
+import com.opendoorlogistics.speedregions.spatialtree.BinaryCompiledFileIO.MappedCompiledFile;
+import com.opendoorlogistics.speedregions.spatialtree.CachedPointQueryProcessor;
+import com.opendoorlogistics.speedregions.spatialtree.FlatQueryProcessor;
 import com.opendoorlogistics.speedregions.spatialtree.QueryProcessor;
+import com.opendoorlogistics.speedregions.spatialtree.RegionTypeDictionary;
 import com.opendoorlogistics.speedregions.spatialtree.TreeBuilder;
+import com.opendoorlogistics.speedregions.spatialtree.UncompiledFileStreamReader;
 import com.opendoorlogistics.speedregions.utils.GeomUtils;
 import com.opendoorlogistics.speedregions.utils.TextUtils;
 import com.vividsolutions.jts.geom.Geometry;
@@ -41,13 +52,55 @@ public class SpeedRegionLookupBuilder {
 //	private static final Logger LOGGER = Logger.getLogger(SpeedRegionLookupBuilder.class.getName());
 
 	/**
-	 * Load the lookup from a text file containing {@link com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile} in JSON form.
-	 * The spatial tree in the file has already been compiled.
+	 * Load the lookup from a file containing {@link com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile} in JSON form,
+	 * or in the binary form written by {@link BinaryCompiledFileIO}. The spatial tree in the file has already been compiled.
 	 * @param compiled
 	 * @return
 	 */
 	public static SpeedRegionLookup loadFromCompiledFile(File built) {
-		return fromCompiled(TextUtils.fromJSON(built, CompiledSpeedRulesFile.class));
+		return loadFromCompiledFile(built, QueryEngine.TREE);
+	}
+
+	/**
+	 * Load the lookup from a compiled file. Binary files are detected automatically and are always memory-mapped
+	 * and queried in place, so the query engine only applies to JSON files.
+	 * @param built
+	 * @param engine
+	 * @return
+	 */
+	public static SpeedRegionLookup loadFromCompiledFile(File built, QueryEngine engine) {
+		return loadFromCompiledFile(built, engine, 0);
+	}
+
+	/**
+	 * Load the lookup from a compiled file, optionally with a per-thread point cache
+	 * (see {@link #fromCompiled(CompiledSpeedRulesFile, QueryEngine, int)}).
+	 * @param built
+	 * @param engine
+	 * @param pointCacheSize Number of leaves cached per thread, or 0 for no cache
+	 * @return
+	 */
+	public static SpeedRegionLookup loadFromCompiledFile(File built, QueryEngine engine, int pointCacheSize) {
+		if (BinaryCompiledFileIO.isBinaryFile(built)) {
+			return fromMapped(BinaryCompiledFileIO.map(built), pointCacheSize);
+		}
+		return fromCompiled(TextUtils.fromJSON(built, CompiledSpeedRulesFile.class), engine, pointCacheSize);
+	}
+
+	/**
+	 * Load the lookup from a compiled file and watch the file for changes, swapping in the new rules without
+	 * blocking queries (see {@link ReloadableSpeedRegionLookup}).
+	 * @param built
+	 * @param engine
+	 * @param pollMillis Poll interval for checking the file, or 0 or less to not watch it
+	 * @return
+	 */
+	public static ReloadableSpeedRegionLookup loadReloadableFromCompiledFile(File built, QueryEngine engine, long pollMillis) {
+		ReloadableSpeedRegionLookup ret = new ReloadableSpeedRegionLookup(built, engine, 0);
+		if (pollMillis > 0) {
+			ret.startWatching(pollMillis);
+		}
+		return ret;
 	}
 
 	/**
@@ -58,16 +111,31 @@ public class SpeedRegionLookupBuilder {
 	 * @return
 	 */
 	public static SpeedRegionLookup loadFromUncompiledSpeedRulesFile(File uncompiledFile, double minCellLengthMetres) {
-		UncompiledSpeedRulesFile uncompiledSpeedRulesFile = TextUtils.fromJSON(uncompiledFile, UncompiledSpeedRulesFile.class);
-		return loadFromUncompiledSpeedRulesFile(uncompiledSpeedRulesFile, minCellLengthMetres);
+		return fromCompiled(compileFile(uncompiledFile, minCellLengthMetres, 1));
 	}
 	public static SpeedRegionLookup loadFromUncompiledSpeedRulesFile(UncompiledSpeedRulesFile uncompiledSpeedRulesFile,
 			double minCellLengthMetres) {
-		CompiledSpeedRulesFile compiled = compileFiles(Arrays.asList(uncompiledSpeedRulesFile), minCellLengthMetres);
+		CompiledSpeedRulesFile compiled = compileFiles(Arrays.asList(uncompiledSpeedRulesFile), minCellLengthMetres, 1);
 		return fromCompiled(compiled);
 	}
 	
 
+	/**
+	 * The engine used to answer spatial queries
+	 */
+	public enum QueryEngine {
+		/**
+		 * Query the tree of node objects directly
+		 */
+		TREE,
+
+		/**
+		 * Compile the tree into compact primitive arrays and query these instead. Faster, uses less memory and does
+		 * not allocate for point queries.
+		 */
+		FLATTENED
+	}
+
 	/**
 	 * Convert an {@link com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile} object
 	 * into the lookup object. The speed rules are validated as part of the conversion.
@@ -75,39 +143,259 @@ public class SpeedRegionLookupBuilder {
 	 * @return
 	 */
 	public static SpeedRegionLookup fromCompiled(final CompiledSpeedRulesFile compiled) {
+		return fromCompiled(compiled, QueryEngine.TREE);
+	}
+
+	/**
+	 * Convert an {@link com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile} object
+	 * into the lookup object, using the input query engine. The speed rules are validated as part of the conversion.
+	 * @param compiled
+	 * @param engine
+	 * @return
+	 */
+	public static SpeedRegionLookup fromCompiled(final CompiledSpeedRulesFile compiled, QueryEngine engine) {
+		return fromCompiled(compiled, engine, 0);
+	}
+
+	/**
+	 * Convert an {@link com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile} object
+	 * into the lookup object, using the input query engine and optionally a per-thread cache of recently found
+	 * leaves for point queries (see {@link CachedPointQueryProcessor}). The cache is worthwhile when consecutive
+	 * queries are spatially close, e.g. when processing ways in OSM file order.
+	 * @param compiled
+	 * @param engine
+	 * @param pointCacheSize Number of leaves cached per thread, or 0 for no cache
+	 * @return
+	 */
+	public static SpeedRegionLookup fromCompiled(final CompiledSpeedRulesFile compiled, QueryEngine engine, final int pointCacheSize) {
 		
-		SpeedRulesProcesser processer = new SpeedRulesProcesser();
-		processer.validateSpeedRules(Arrays.asList(compiled));
-		final TreeMap<String, TreeMap<String, SpeedRule>> rulesMap =processer.createSelfContainedRulesLookupMap(compiled.getRules());
-				
-		final QueryProcessor queryProcessor = new QueryProcessor(GeomUtils.newGeomFactory(), compiled.getTree());
-		return new SpeedRegionLookup() {
-			
-			public String findRegionType(Geometry edge) {
-				String regionId =queryProcessor.query(edge);
-				return regionId;
+		final TreeMap<String, TreeMap<String, SpeedRule>> rulesMap =createRulesMap(compiled);
+		
+		// Also interns the region type strings in the tree so they're shared
+		RegionTypeDictionary dictionary = RegionTypeDictionary.create(compiled.getRegionTypes(), compiled.getTree());
+
+		switch (engine) {
+		case FLATTENED:
+			final FlatQueryProcessor flatQueryProcessor = new FlatQueryProcessor(compiled.getTree(), dictionary);
+			return new CompiledLookup(rulesMap, dictionary, new BatchQueryProcessor(flatQueryProcessor),
+					pointCacheSize > 0 ? new CachedPointQueryProcessor(flatQueryProcessor, pointCacheSize) : null) {
+
+				public int findRegionOrdinal(Geometry edge) {
+					return flatQueryProcessor.queryOrdinal(edge);
+				}
+
+				public int findRegionOrdinal(double[] lngs, double[] lats, LinestringMode mode) {
+					return flatQueryProcessor.queryOrdinal(lngs, lats, mode);
+				}
+
+				public List<RegionInterval> findRegionIntervals(double[] lngs, double[] lats) {
+					return flatQueryProcessor.queryIntervals(lngs, lats);
+				}
+
+				protected int queryOrdinal(double lng, double lat) {
+					return flatQueryProcessor.queryOrdinal(lng, lat);
+				}
+
+				public RegionsSpatialTreeNode getTree() {
+					return compiled.getTree();
+				}
+			};
+
+		default:
+			final QueryProcessor queryProcessor = new QueryProcessor(GeomUtils.newGeomFactory(), compiled.getTree(), dictionary);
+			return new CompiledLookup(rulesMap, dictionary, new BatchQueryProcessor(queryProcessor),
+					pointCacheSize > 0 ? new CachedPointQueryProcessor(queryProcessor, pointCacheSize) : null) {
+
+				public int findRegionOrdinal(Geometry edge) {
+					return queryProcessor.queryOrdinal(edge);
+				}
+
+				public int findRegionOrdinal(double[] lngs, double[] lats, LinestringMode mode) {
+					return queryProcessor.queryOrdinal(lngs, lats, mode);
+				}
+
+				public List<RegionInterval> findRegionIntervals(double[] lngs, double[] lats) {
+					return queryProcessor.queryIntervals(lngs, lats);
+				}
+
+				protected int queryOrdinal(double lng, double lat) {
+					return queryProcessor.queryOrdinal(lng, lat);
+				}
+
+				public RegionsSpatialTreeNode getTree() {
+					return compiled.getTree();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Create the lookup from a memory-mapped binary compiled file. The tree is queried in place; node objects
+	 * are only created if {@link SpeedRegionLookup#getTree()} is called.
+	 * @param mapped
+	 * @return
+	 */
+	public static SpeedRegionLookup fromMapped(final MappedCompiledFile mapped) {
+		return fromMapped(mapped, 0);
+	}
+
+	/**
+	 * Create the lookup from a memory-mapped binary compiled file, optionally with a per-thread point cache
+	 * (see {@link #fromCompiled(CompiledSpeedRulesFile, QueryEngine, int)}).
+	 * @param mapped
+	 * @param pointCacheSize Number of leaves cached per thread, or 0 for no cache
+	 * @return
+	 */
+	public static SpeedRegionLookup fromMapped(final MappedCompiledFile mapped, final int pointCacheSize) {
+		final FlatQueryProcessor flatQueryProcessor = mapped.getQueryProcessor();
+		return new CompiledLookup(createRulesMap(mapped.getRules()), flatQueryProcessor.getDictionary(),
+				new BatchQueryProcessor(flatQueryProcessor),
+				pointCacheSize > 0 ? new CachedPointQueryProcessor(flatQueryProcessor, pointCacheSize) : null) {
+			private volatile RegionsSpatialTreeNode tree;
+
+			public int findRegionOrdinal(Geometry edge) {
+				return flatQueryProcessor.queryOrdinal(edge);
 			}
-			
-			public SpeedRuleLookup createLookupForEncoder(String encoder) {
-				return createRulesLookupForEncoder(rulesMap, encoder);
+
+			public int findRegionOrdinal(double[] lngs, double[] lats, LinestringMode mode) {
+				return flatQueryProcessor.queryOrdinal(lngs, lats, mode);
 			}
 
-			@Override
-			public RegionsSpatialTreeNode getTree() {
-				return compiled.getTree();
+			public List<RegionInterval> findRegionIntervals(double[] lngs, double[] lats) {
+				return flatQueryProcessor.queryIntervals(lngs, lats);
+			}
+
+			protected int queryOrdinal(double lng, double lat) {
+				return flatQueryProcessor.queryOrdinal(lng, lat);
 			}
 
-			@Override
-			public Set<String> getEncoderTypes() {
-				return rulesMap.keySet();
+			public RegionsSpatialTreeNode getTree() {
+				// only lock when the tree is first created
+				RegionsSpatialTreeNode ret = tree;
+				if (ret == null) {
+					synchronized (this) {
+						ret = tree;
+						if (ret == null) {
+							ret = flatQueryProcessor.toTree();
+							tree = ret;
+						}
+					}
+				}
+				return ret;
 			}
 		};
 	}
+
+	private static TreeMap<String, TreeMap<String, SpeedRule>> createRulesMap(CompiledSpeedRulesFile compiled) {
+		SpeedRulesProcesser processer = new SpeedRulesProcesser();
+		processer.validateSpeedRules(Arrays.asList(compiled));
+		return processer.createSelfContainedRulesLookupMap(compiled.getRules());
+	}
+
+	/**
+	 * Base class for lookups built from compiled rules, leaving the spatial query and tree access to the subclass.
+	 */
+	private static abstract class CompiledLookup implements SpeedRegionLookup {
+		private final TreeMap<String, TreeMap<String, SpeedRule>> rulesMap;
+		private final RegionTypeDictionary dictionary;
+		private final BatchQueryProcessor batchQueryProcessor;
+		private final CachedPointQueryProcessor pointCache;
+		private final SpeedMatrix speedMatrix;
+
+		CompiledLookup(TreeMap<String, TreeMap<String, SpeedRule>> rulesMap, RegionTypeDictionary dictionary,
+				BatchQueryProcessor batchQueryProcessor, CachedPointQueryProcessor pointCache) {
+			this.rulesMap = rulesMap;
+			this.dictionary = dictionary;
+			this.batchQueryProcessor = batchQueryProcessor;
+			this.pointCache = pointCache;
+			this.speedMatrix = new SpeedMatrix(rulesMap, dictionary);
+		}
+
+		/**
+		 * Query a point without the point cache
+		 * @param lng
+		 * @param lat
+		 * @return
+		 */
+		protected abstract int queryOrdinal(double lng, double lat);
+
+		@Override
+		public int findRegionOrdinal(double lng, double lat) {
+			return pointCache != null ? pointCache.queryOrdinal(lng, lat) : queryOrdinal(lng, lat);
+		}
+
+		@Override
+		public long getPointCacheHits() {
+			return pointCache != null ? pointCache.getHits() : 0;
+		}
+
+		@Override
+		public long getPointCacheMisses() {
+			return pointCache != null ? pointCache.getMisses() : 0;
+		}
+
+		@Override
+		public int[] findRegionOrdinals(double[] lngs, double[] lats, int parallelism) {
+			return batchQueryProcessor.queryOrdinals(lngs, lats, parallelism);
+		}
+
+		@Override
+		public String[] findRegionTypes(double[] lngs, double[] lats, int parallelism) {
+			int[] ordinals = findRegionOrdinals(lngs, lats, parallelism);
+			String[] ret = new String[ordinals.length];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = dictionary.getRegionType(ordinals[i]);
+			}
+			return ret;
+		}
+
+		public String findRegionType(Geometry edge) {
+			return dictionary.getRegionType(findRegionOrdinal(edge));
+		}
+
+		public String findRegionType(double lng, double lat) {
+			return dictionary.getRegionType(findRegionOrdinal(lng, lat));
+		}
+
+		@Override
+		public String getRegionType(int ordinal) {
+			return dictionary.getRegionType(ordinal);
+		}
+
+		@Override
+		public int getNbRegionTypes() {
+			return dictionary.size();
+		}
+
+		public SpeedRuleLookup createLookupForEncoder(String encoder) {
+			return createRulesLookupForEncoder(rulesMap, encoder, dictionary);
+		}
+
+		@Override
+		public Set<String> getEncoderTypes() {
+			return rulesMap.keySet();
+		}
+
+		@Override
+		public SpeedMatrix getSpeedMatrix() {
+			return speedMatrix;
+		}
+	}
 	
 	public static SpeedRegionLookup loadFromCommandLineParameters(Map<String, String> parameters){
 		// try loading from compiled first
 		String compiled = parameters.get(SpeedRegionConsts.COMMAND_LINE_COMPILED_FILE);
 		if(compiled!=null){
+			String poll = parameters.get(SpeedRegionConsts.COMMAND_LINE_RELOAD_POLL_MILLIS);
+			if(poll!=null){
+				long pollMillis;
+				try {
+					pollMillis = Long.parseLong(poll.trim());
+				} catch (Exception e) {
+					throw new RuntimeException("Could not parse " + SpeedRegionConsts.COMMAND_LINE_RELOAD_POLL_MILLIS + " as a whole number. Input string was: " + poll);
+				}
+				return loadReloadableFromCompiledFile(new File(compiled), QueryEngine.TREE, pollMillis);
+			}
 			return loadFromCompiledFile(new File(compiled));
 		}
 		
@@ -130,18 +418,29 @@ public class SpeedRegionLookupBuilder {
 		return null;
 	}
 
-	private static SpeedRuleLookup createRulesLookupForEncoder(final TreeMap<String, TreeMap<String, SpeedRule>> rulesMap, String encoder) {
+	private static SpeedRuleLookup createRulesLookupForEncoder(final TreeMap<String, TreeMap<String, SpeedRule>> rulesMap, String encoder,
+			RegionTypeDictionary dictionary) {
 		TreeMap<String, SpeedRule> map = rulesMap.get(TextUtils.stdString(encoder));
 		if(map==null){
 			map = new TreeMap<String, SpeedRule>();
 		}
 		final TreeMap<String, SpeedRule> finalMap = map;
+		
+		// build array lookup by region ordinal so we don't do string compares in the hot path
+		final SpeedRule [] byOrdinal = new SpeedRule[dictionary.size()];
+		for(int i =0 ; i < byOrdinal.length ; i++){
+			byOrdinal[i] = finalMap.get(dictionary.getRegionType(i));
+		}
+		
 		return new SpeedRuleLookup(){
 
 			public SpeedRule getSpeedRule(String standardisedRegionId) {
 				return finalMap.get(standardisedRegionId);
 			};
 		
+			public SpeedRule getSpeedRule(int regionOrdinal) {
+				return regionOrdinal >= 0 && regionOrdinal < byOrdinal.length ? byOrdinal[regionOrdinal] : null;
+			};
 		};
 	}
 
@@ -154,11 +453,69 @@ public class SpeedRegionLookupBuilder {
 	 * @return
 	 */
 	public static CompiledSpeedRulesFile compileFile(UncompiledSpeedRulesFile file, double minCellLengthMetres) {
-		return compileFiles(Arrays.asList(file), minCellLengthMetres);
+		return compileFiles(Arrays.asList(file), minCellLengthMetres, 1);
 	}
 	
+	/**
+	 * Create a 'compiled' {@link com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile} from an 
+	 * {@link com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile} object, building the
+	 * spatial tree using the input number of threads. The result is the same as the single-threaded build.
+	 * @param file
+	 * @param minCellLengthMetres
+	 * @param parallelism
+	 * @return
+	 */
+	public static CompiledSpeedRulesFile compileFile(UncompiledSpeedRulesFile file, double minCellLengthMetres, int parallelism) {
+		return compileFiles(Arrays.asList(file), minCellLengthMetres, parallelism);
+	}
+
+	/**
+	 * Create a 'compiled' {@link com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile} from a text
+	 * file containing {@link com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile} in JSON form.
+	 * The file is streamed one feature at a time (see {@link UncompiledFileStreamReader}) rather than loaded into
+	 * a feature collection, so large files can be compiled in much less memory. The result is the same as compiling
+	 * the loaded file.
+	 * @param uncompiledFile
+	 * @param minCellLengthMetres
+	 * @param parallelism
+	 * @return
+	 */
+	public static CompiledSpeedRulesFile compileFile(File uncompiledFile, double minCellLengthMetres, int parallelism) {
+		return compileStreamedFiles(Arrays.asList(uncompiledFile), minCellLengthMetres, parallelism);
+	}
+
+	private static CompiledSpeedRulesFile compileStreamedFiles(List<File> files, double minCellLengthMetres, int parallelism) {
+		List<UncompiledFileStreamReader> readers = new ArrayList<>(files.size());
+		try {
+			for (File file : files) {
+				readers.add(new UncompiledFileStreamReader(file));
+			}
+
+			RegionTypeDictionary dictionary = new RegionTypeDictionary();
+			RegionsSpatialTreeNode root = TreeBuilder.buildStreamed(readers, minCellLengthMetres, dictionary, parallelism);
+
+			// rules files without the geoJSON, just for validation
+			List<UncompiledSpeedRulesFile> rulesFiles = new ArrayList<>(readers.size());
+			for (UncompiledFileStreamReader reader : readers) {
+				UncompiledSpeedRulesFile rulesFile = new UncompiledSpeedRulesFile();
+				rulesFile.setGeoJson(null);
+				rulesFile.setRules(reader.readRules());
+				rulesFiles.add(rulesFile);
+			}
+
+			CompiledSpeedRulesFile built = new CompiledSpeedRulesFile();
+			built.setTree(root);
+			built.setRegionTypes(new ArrayList<>(dictionary.getRegionTypes()));
+			built.setRules(new SpeedRulesProcesser().validateSpeedRules(rulesFiles));
+			return built;
+		} finally {
+			for (UncompiledFileStreamReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
 
-	private static CompiledSpeedRulesFile compileFiles(List<UncompiledSpeedRulesFile> files, double minCellLengthMetres) {
+	private static CompiledSpeedRulesFile compileFiles(List<UncompiledSpeedRulesFile> files, double minCellLengthMetres, int parallelism) {
 		SpeedRulesProcesser processer = new SpeedRulesProcesser();
 		List<FeatureCollection> collections = new ArrayList<>(files.size());
 		for(UncompiledSpeedRulesFile file:files){
@@ -166,15 +523,44 @@ public class SpeedRegionLookupBuilder {
 				collections.add(file.getGeoJson());				
 			}
 		}
-		final RegionsSpatialTreeNode root=TreeBuilder.build(collections, minCellLengthMetres);
+		RegionTypeDictionary dictionary = new RegionTypeDictionary();
+		final RegionsSpatialTreeNode root=TreeBuilder.build(collections, minCellLengthMetres, dictionary, parallelism);
 	//	LOGGER.info("Built quadtree: " + SpatialTreeStats.build(root).toString());
 		
 		CompiledSpeedRulesFile built = new CompiledSpeedRulesFile();
 		built.setTree(root);
+		built.setRegionTypes(new ArrayList<>(dictionary.getRegionTypes()));
 		
 		built.setRules(processer.validateSpeedRules(files));
 		return built;
 	}
+
+	/**
+	 * Get a fingerprint of everything region and highway ordinals stored outside the lookup depend on: the region
+	 * types in ordinal order and the {@link SpeedMatrix} highway types. A graph storing ordinals should save this
+	 * and refuse to load with a lookup whose fingerprint differs (e.g. after a {@link ReloadableSpeedRegionLookup}
+	 * reload with new region types).
+	 * 
+	 * @param lookup
+	 * @return
+	 */
+	public static String getOrdinalsFingerprint(SpeedRegionLookup lookup) {
+		CRC32 crc = new CRC32();
+		int n = lookup.getNbRegionTypes();
+		for (int i = 0; i < n; i++) {
+			crc.update((lookup.getRegionType(i) + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		int nbHighways = 0;
+		SpeedMatrix matrix = lookup.getSpeedMatrix();
+		if (matrix != null) {
+			crc.update('|');
+			for (String highway : matrix.getHighwayTypes()) {
+				crc.update((highway + "\n").getBytes(StandardCharsets.UTF_8));
+				nbHighways++;
+			}
+		}
+		return n + "-" + nbHighways + "-" + Long.toHexString(crc.getValue());
+	}
 	
 
 	
@@ -23,11 +23,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import com.opendoorlogistics.speedregions.beans.MatchRule;
 import com.opendoorlogistics.speedregions.beans.SpeedRule;
 import com.opendoorlogistics.speedregions.beans.SpeedUnit;
 import com.opendoorlogistics.speedregions.beans.files.AbstractSpeedRulesFile;
 import com.opendoorlogistics.speedregions.utils.TextUtils;
-import com.rits.cloning.Cloner;
 
 public class SpeedRulesProcesser {
 	
@@ -123,76 +123,136 @@ public class SpeedRulesProcesser {
 	}
 
 	/**
+	 * Speed inherited from a rule or one of its ancestors, kept in the units of the rule which defined it. The speed
+	 * for a rule is the converted value times the factor, which is the product of the multipliers of the rule and its
+	 * ancestors below the defining one.
+	 */
+	private static class ResolvedSpeed {
+		final double value;
+		final SpeedUnit unit;
+		final double factor;
+
+		ResolvedSpeed(double value, SpeedUnit unit, double factor) {
+			this.value = value;
+			this.unit = unit;
+			this.factor = factor;
+		}
+	}
+
+	/**
+	 * A rule with all its ancestors' information included
+	 */
+	private static class ResolvedRule {
+		final HashMap<String, ResolvedSpeed> speeds = new HashMap<>();
+		double multiplier;
+	}
+
+	/**
+	 * Collapse the parent relations of all rules so each rule is self-contained. Each rule with an id is resolved only
+	 * once and reused by all its descendants, so the total cost is linear in the number of rules. The input rules are
+	 * not modified.
 	 * 
-	 * @param rules Map of original rule to collapsed rule
-	 * @return
+	 * @param rules
+	 * @return Map of original rule to collapsed rule
 	 */
 	public HashMap<SpeedRule, SpeedRule> collapseParentRelations(Iterable<SpeedRule> rules) {
-		// build id map and clone rules so we don't modify the input data
+		// build id map
 		final HashMap<String, SpeedRule> originalRulesById = new HashMap<>();
-		HashMap<SpeedRule, SpeedRule>  original2Collapsed = new HashMap<>();
-		for(SpeedRule rule : rules){
-			
-			// save to original map first
-			if(rule.getId()!=null){
+		for (SpeedRule rule : rules) {
+			if (rule.getId() != null) {
 				originalRulesById.put(TextUtils.stdString(rule.getId()), rule);
 			}
-			
-			// then clone and standardise road type strings
-			SpeedRule cloned= Cloner.standard().deepClone(rule);
-			if(rule.getSpeedsByRoadType()!=null){
-				cloned.getSpeedsByRoadType().clear();
-				for(Map.Entry<String, Float> entry : rule.getSpeedsByRoadType().entrySet()){
-					cloned.getSpeedsByRoadType().put(TextUtils.stdString(entry.getKey()), entry.getValue());
-				}					
-			}
-			
-			original2Collapsed.put(rule, cloned);
 		}
 
-		// collapse parent relations
-		for(SpeedRule clonedRule : original2Collapsed.values()){
-			if(clonedRule.getSpeedsByRoadType()==null){
-				clonedRule.setSpeedsByRoadType(new TreeMap<String, Float>());
-			}
-			
-			String parentId = clonedRule.getParentId();
-			while(TextUtils.stdString(parentId).length()>0){
-				
-				// standardise parent string and find parent (should already be validated so should exist)
-				parentId = TextUtils.stdString(parentId);
-				SpeedRule originalParent = originalRulesById.get(parentId);
-				if(originalParent==null){
-					throw new RuntimeException("Cannot find parent speed rule with id \"" + parentId + "\" for rule with id \"" + clonedRule.getId() + "\"");
+		HashMap<SpeedRule, ResolvedRule> resolved = new HashMap<>();
+		HashMap<SpeedRule, SpeedRule> original2Collapsed = new HashMap<>();
+		ArrayList<SpeedRule> chain = new ArrayList<>();
+		HashSet<SpeedRule> inChain = new HashSet<>();
+		for (SpeedRule rule : rules) {
+			// walk up to the first resolved ancestor (or the top), then resolve back down the chain.
+			// This is done without recursion so long chains can't overflow the stack.
+			chain.clear();
+			inChain.clear();
+			SpeedRule current = rule;
+			while (current != null && !resolved.containsKey(current)) {
+				if (!inChain.add(current)) {
+					throw new RuntimeException("Found circular dependencies in rule parent ids around rule id " + current.getId());
 				}
-				
-				// combine speeds by type, including our current multiplier
-				if(originalParent.getSpeedsByRoadType()!=null){
-					for(Map.Entry<String, Float> entry : originalParent.getSpeedsByRoadType().entrySet()){
-						String type = entry.getKey();
-						type = TextUtils.stdString(type);
-						if(!clonedRule.getSpeedsByRoadType().containsKey(type)){
-							double parentSpeedInParentUnits = entry.getValue();
-							double parentSpeedInChildUnits = SpeedUnit.convert(parentSpeedInParentUnits, originalParent.getSpeedUnit(), clonedRule.getSpeedUnit());
-							double childSpeed= parentSpeedInChildUnits * clonedRule.getMultiplier();
-							clonedRule.getSpeedsByRoadType().put(type,(float)childSpeed);
-						}
-					}					
+				chain.add(current);
+
+				String parentId = TextUtils.stdString(current.getParentId());
+				if (parentId.length() == 0) {
+					current = null;
+				} else {
+					current = originalRulesById.get(parentId);
+					if (current == null) {
+						throw new RuntimeException("Cannot find parent speed rule with id \"" + parentId + "\" for rule with id \""
+								+ chain.get(chain.size() - 1).getId() + "\"");
+					}
 				}
-	
-				// update multiplier with the parent multiplier
-				clonedRule.setMultiplier(clonedRule.getMultiplier() * originalParent.getMultiplier());
-				
-				// go to next parent
-				parentId = originalParent.getParentId();
 			}
-			
-			// blank parent id now we've taken all its information
-			clonedRule.setParentId(null);
+
+			for (int i = chain.size() - 1; i >= 0; i--) {
+				SpeedRule child = chain.get(i);
+				resolved.put(child, resolve(child, current != null ? resolved.get(current) : null));
+				current = child;
+			}
+
+			original2Collapsed.put(rule, createCollapsed(rule, resolved.get(rule)));
 		}
 		return original2Collapsed;
 	}
 
+	private static ResolvedRule resolve(SpeedRule rule, ResolvedRule parent) {
+		ResolvedRule ret = new ResolvedRule();
+		if (rule.getSpeedsByRoadType() != null) {
+			for (Map.Entry<String, Float> entry : rule.getSpeedsByRoadType().entrySet()) {
+				// a null speed is kept so it still stops the type being inherited
+				ret.speeds.put(TextUtils.stdString(entry.getKey()),
+						entry.getValue() != null ? new ResolvedSpeed(entry.getValue(), rule.getSpeedUnit(), 1) : null);
+			}
+		}
+
+		ret.multiplier = rule.getMultiplier();
+		if (parent != null) {
+			// take the parent's speeds for types we don't have, including our multiplier
+			for (Map.Entry<String, ResolvedSpeed> entry : parent.speeds.entrySet()) {
+				if (!ret.speeds.containsKey(entry.getKey())) {
+					ResolvedSpeed speed = entry.getValue();
+					ret.speeds.put(entry.getKey(),
+							speed != null ? new ResolvedSpeed(speed.value, speed.unit, rule.getMultiplier() * speed.factor) : null);
+				}
+			}
+			ret.multiplier *= parent.multiplier;
+		}
+		return ret;
+	}
+
+	/**
+	 * Create the self-contained copy of the rule. The parent id is blanked now we've taken all its information.
+	 */
+	private static SpeedRule createCollapsed(SpeedRule rule, ResolvedRule resolved) {
+		SpeedRule ret = new SpeedRule();
+		ret.setId(rule.getId());
+		ret.setSpeedUnit(rule.getSpeedUnit());
+		ret.setMultiplier(resolved.multiplier);
+		for (Map.Entry<String, ResolvedSpeed> entry : resolved.speeds.entrySet()) {
+			ResolvedSpeed speed = entry.getValue();
+			ret.getSpeedsByRoadType().put(entry.getKey(),
+					speed != null ? (float) (SpeedUnit.convert(speed.value, speed.unit, rule.getSpeedUnit()) * speed.factor) : null);
+		}
 
+		MatchRule matchRule = new MatchRule();
+		if (rule.getMatchRule() != null) {
+			if (rule.getMatchRule().getFlagEncoders() != null) {
+				matchRule.getFlagEncoders().addAll(rule.getMatchRule().getFlagEncoders());
+			}
+			if (rule.getMatchRule().getRegionTypes() != null) {
+				matchRule.getRegionTypes().addAll(rule.getMatchRule().getRegionTypes());
+			}
+		}
+		ret.setMatchRule(matchRule);
+		return ret;
+	}
 
 }
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions;
+
+import java.util.Arrays;
+
+import com.opendoorlogistics.speedregions.utils.LongIntHashMap;
+import com.opendoorlogistics.speedregions.utils.OffHeapLongIntHashMap;
+import com.opendoorlogistics.speedregions.utils.PagedDirectArray;
+
+/**
+ * Resolves the region ordinals of all OSM ways in a pre-pass before the graph import, so the spatial tree queries run
+ * in parallel instead of on the OSM reader's single thread. OSM files store nodes before ways, so the file is read in
+ * two passes as in Graphhopper's own reader:
+ * <ol>
+ * <li>Call {@link #addWay(long, long[])} for each way. This records the nodes the way needs.</li>
+ * <li>Call {@link #setNodeCoordinate(long, double, double)} for each node. Nodes which aren't needed are ignored.</li>
+ * </ol>
+ * Then call {@link #resolve(int)} to get the compact way id to region ordinal map the flag encoders read during the
+ * real import.
+ * 
+ * The region is found at the way's estimated centre, i.e. the middle of its first and last nodes, matching the
+ * "estimated_center" tag Graphhopper sets, so only the first and last nodes are stored. This is the way region the
+ * encoders would otherwise query during the import. Encoders configured with
+ * {@link SpeedRegionConsts#ENCODER_LINESTRING_MODE} still find each edge's region from its geometry during the import.
+ * 
+ * In tower node mode the region is found once for each tower node (a way end or a node shared by several ways, as in
+ * Graphhopper) and each way takes the region most of its tower nodes are in. Ways with a tie between regions (e.g. a
+ * way with only two tower nodes in different regions) fall back to the estimated centre. As ways share their tower
+ * nodes this queries the tree far fewer times than once per way. The node regions can be read with
+ * {@link #getNodeRegionOrdinal(long)}.
+ * 
+ * Everything sized by the number of nodes or ways is kept off-heap in {@link PagedDirectArray}s: the node id to
+ * index map (about 16-32 bytes per node), node flags, coordinates and regions (21 bytes per node), the node index of
+ * each stored way node (4 bytes each) and each way's id and node offset (16 bytes per way). Node indices are unsigned
+ * ints, allowing up to 2^32 - 1 distinct way nodes. Spatial queries are made in batches of {@link #QUERY_BATCH_SIZE}.
+ * Only the returned way map is on-heap, so its size is limited to {@link LongIntHashMap#MAX_SIZE} ways.
+ *
+ */
+public class WayRegionResolver {
+	/**
+	 * Returned by {@link #getRegionOrdinal(LongIntHashMap, long)} for a way which wasn't resolved in the pre-pass
+	 */
+	public static final int UNRESOLVED_WAY = Integer.MIN_VALUE;
+
+	/**
+	 * Number of points in each batch query, so the query arrays stay small whatever the number of ways or nodes
+	 */
+	public static final int QUERY_BATCH_SIZE = 1 << 20;
+
+	/**
+	 * Node indices are stored as unsigned ints, with all bits set reserved for a missing node
+	 */
+	private static final long MAX_NODES = 0xFFFFFFFFL;
+
+	/**
+	 * Bits of the node flags holding the number of ways using the node (saturating at 2), only in tower node mode
+	 */
+	private static final int USE_COUNT_MASK = 3;
+
+	/**
+	 * Node flag set once the node's coordinate is known
+	 */
+	private static final int HAS_COORDINATE = 4;
+
+	private final SpeedRegionLookup lookup;
+	private final boolean byTowerNodes;
+	private final int pageBits;
+	private final OffHeapLongIntHashMap nodeIndices;
+	private final PagedDirectArray nodeFlags;
+	private long nbNodes;
+
+	/**
+	 * Region ordinal of each node by index, or {@link #UNRESOLVED_WAY} for pillar nodes and nodes without
+	 * coordinates. Only set in tower node mode.
+	 */
+	private PagedDirectArray nodeOrdinals;
+
+	private final PagedDirectArray wayIds;
+	private final PagedDirectArray wayNodeOffsets;
+	private final PagedDirectArray wayNodes;
+	private long nbWays;
+	private long nbWayNodes;
+	private PagedDirectArray nodeLngs;
+	private PagedDirectArray nodeLats;
+
+	/**
+	 * @param lookup
+	 */
+	public WayRegionResolver(SpeedRegionLookup lookup) {
+		this(lookup, false);
+	}
+
+	/**
+	 * @param lookup
+	 * @param byTowerNodes
+	 *            If true find the region for each tower node once and derive the way regions from them
+	 */
+	public WayRegionResolver(SpeedRegionLookup lookup, boolean byTowerNodes) {
+		this(lookup, byTowerNodes, PagedDirectArray.DEFAULT_PAGE_BITS);
+	}
+
+	/**
+	 * @param lookup
+	 * @param byTowerNodes
+	 *            If true find the region for each tower node once and derive the way regions from them
+	 * @param pageBits
+	 *            Number of elements per off-heap page as a power of two, see {@link PagedDirectArray}
+	 */
+	public WayRegionResolver(SpeedRegionLookup lookup, boolean byTowerNodes, int pageBits) {
+		this.lookup = lookup;
+		this.byTowerNodes = byTowerNodes;
+		this.pageBits = pageBits;
+		this.nodeIndices = new OffHeapLongIntHashMap(16, pageBits);
+		this.nodeFlags = new PagedDirectArray(1, pageBits);
+		this.wayIds = new PagedDirectArray(8, pageBits);
+		this.wayNodeOffsets = new PagedDirectArray(8, pageBits);
+		this.wayNodes = new PagedDirectArray(4, pageBits);
+		wayNodeOffsets.ensureCapacity(1);
+	}
+
+	/**
+	 * Add a way in the first pass. Ways with fewer than 2 nodes are skipped.
+	 * 
+	 * @param wayId
+	 * @param nodeIds
+	 */
+	public void addWay(long wayId, long[] nodeIds) {
+		if (nodeLngs != null) {
+			throw new RuntimeException("Cannot add ways after node coordinates have been set");
+		}
+		if (nodeIds.length < 2) {
+			return;
+		}
+
+		int nbStored = byTowerNodes ? nodeIds.length : 2;
+		wayNodes.ensureCapacity(nbWayNodes + nbStored);
+		for (int i = 0; i < nbStored; i++) {
+			long nodeId = byTowerNodes || i == 0 ? nodeIds[i] : nodeIds[nodeIds.length - 1];
+			long index = getNodeIndex(nodeId);
+			if (index == -1) {
+				if (nbNodes >= MAX_NODES) {
+					throw new RuntimeException("Cannot resolve ways with more than " + MAX_NODES + " distinct nodes");
+				}
+				index = nbNodes++;
+				nodeIndices.put(nodeId, (int) index);
+				nodeFlags.ensureCapacity(nbNodes);
+			}
+			wayNodes.setInt(nbWayNodes + i, (int) index);
+
+			if (byTowerNodes) {
+				// way ends are always tower nodes
+				boolean end = i == 0 || i == nbStored - 1;
+				int count = nodeFlags.getByte(index) & USE_COUNT_MASK;
+				nodeFlags.setByte(index, (byte) (end ? 2 : Math.min(2, count + 1)));
+			}
+		}
+		nbWayNodes += nbStored;
+
+		wayIds.ensureCapacity(nbWays + 1);
+		wayNodeOffsets.ensureCapacity(nbWays + 2);
+		wayIds.setLong(nbWays, wayId);
+		nbWays++;
+		wayNodeOffsets.setLong(nbWays, nbWayNodes);
+	}
+
+	/**
+	 * Get a node's index, or -1 if no way uses it
+	 */
+	private long getNodeIndex(long nodeId) {
+		int index = nodeIndices.get(nodeId);
+		return index == -1 ? -1 : index & MAX_NODES;
+	}
+
+	/**
+	 * Get the index of the way's j-th stored node
+	 */
+	private long getWayNode(long way, long j) {
+		return wayNodes.getInt(wayNodeOffsets.getLong(way) + j) & MAX_NODES;
+	}
+
+	/**
+	 * Set a node's coordinate in the second pass
+	 * 
+	 * @param nodeId
+	 * @param lng
+	 * @param lat
+	 */
+	public void setNodeCoordinate(long nodeId, double lng, double lat) {
+		if (nodeLngs == null) {
+			nodeLngs = new PagedDirectArray(8, pageBits);
+			nodeLats = new PagedDirectArray(8, pageBits);
+			nodeLngs.ensureCapacity(nbNodes);
+			nodeLats.ensureCapacity(nbNodes);
+		}
+		long index = getNodeIndex(nodeId);
+		if (index != -1) {
+			nodeLngs.setDouble(index, lng);
+			nodeLats.setDouble(index, lat);
+			nodeFlags.setByte(index, (byte) (nodeFlags.getByte(index) | HAS_COORDINATE));
+		}
+	}
+
+	public long getNbWays() {
+		return nbWays;
+	}
+
+	/**
+	 * Resolve the region ordinals of all ways. Ways whose nodes weren't all found are left out of the map.
+	 * 
+	 * @param parallelism
+	 *            Number of threads to use. 1 or less resolves on the calling thread.
+	 * @return Map of way id to region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 */
+	public LongIntHashMap resolve(int parallelism) {
+		LongIntHashMap ret = new LongIntHashMap((int) Math.min(nbWays, Integer.MAX_VALUE));
+		if (byTowerNodes) {
+			resolveByTowerNodes(ret, parallelism);
+		} else {
+			resolveCentres(ret, parallelism);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get a way's region ordinal from the map returned by {@link #resolve(int)}
+	 * 
+	 * @param wayOrdinals
+	 *            Map, which may be null
+	 * @param wayId
+	 * @return Region ordinal, {@link SpeedRegionConsts#NO_REGION_ORDINAL}, or {@link #UNRESOLVED_WAY} if the way isn't
+	 *         in the map so it should be queried instead
+	 */
+	public static int getRegionOrdinal(LongIntHashMap wayOrdinals, long wayId) {
+		return wayOrdinals != null ? wayOrdinals.get(wayId, UNRESOLVED_WAY) : UNRESOLVED_WAY;
+	}
+
+	/**
+	 * Get a node's region ordinal, only available after {@link #resolve(int)} in tower node mode
+	 * 
+	 * @param nodeId
+	 * @return Region ordinal, {@link SpeedRegionConsts#NO_REGION_ORDINAL}, or {@link #UNRESOLVED_WAY} if the node
+	 *         isn't a tower node with a coordinate
+	 */
+	public int getNodeRegionOrdinal(long nodeId) {
+		long index = getNodeIndex(nodeId);
+		if (nodeOrdinals == null || index == -1) {
+			return UNRESOLVED_WAY;
+		}
+		return nodeOrdinals.getInt(index);
+	}
+
+	private void resolveByTowerNodes(LongIntHashMap ret, int parallelism) {
+		// batch query the tower nodes only
+		nodeOrdinals = new PagedDirectArray(4, pageBits);
+		nodeOrdinals.ensureCapacity(nbNodes);
+		for (long from = 0; from < nbNodes; from += QUERY_BATCH_SIZE) {
+			int n = (int) Math.min(QUERY_BATCH_SIZE, nbNodes - from);
+			double[] lngs = new double[n];
+			double[] lats = new double[n];
+			long[] towerNodes = new long[n];
+			int nbTowers = 0;
+			for (long node = from; node < from + n; node++) {
+				nodeOrdinals.setInt(node, UNRESOLVED_WAY);
+				if (isTowerWithCoordinate(node)) {
+					lngs[nbTowers] = nodeLngs.getDouble(node);
+					lats[nbTowers] = nodeLats.getDouble(node);
+					towerNodes[nbTowers++] = node;
+				}
+			}
+			int[] found = lookup.findRegionOrdinals(Arrays.copyOf(lngs, nbTowers), Arrays.copyOf(lats, nbTowers), parallelism);
+			for (int i = 0; i < nbTowers; i++) {
+				nodeOrdinals.setInt(towerNodes[i], found[i]);
+			}
+		}
+
+		// then take the majority region of each way's tower nodes
+		int[] wayOrdinals = new int[8];
+		int[] wayCounts = new int[8];
+		for (long way = 0; way < nbWays; way++) {
+			int nbDistinct = 0;
+			long nbStored = wayNodeOffsets.getLong(way + 1) - wayNodeOffsets.getLong(way);
+			for (long j = 0; j < nbStored; j++) {
+				int ordinal = nodeOrdinals.getInt(getWayNode(way, j));
+				if (ordinal == UNRESOLVED_WAY) {
+					continue;
+				}
+				int k = 0;
+				while (k < nbDistinct && wayOrdinals[k] != ordinal) {
+					k++;
+				}
+				if (k == nbDistinct) {
+					if (nbDistinct == wayOrdinals.length) {
+						wayOrdinals = Arrays.copyOf(wayOrdinals, nbDistinct * 2);
+						wayCounts = Arrays.copyOf(wayCounts, nbDistinct * 2);
+					}
+					wayOrdinals[k] = ordinal;
+					wayCounts[k] = 0;
+					nbDistinct++;
+				}
+				wayCounts[k]++;
+			}
+
+			int best = -1;
+			boolean tie = false;
+			for (int k = 0; k < nbDistinct; k++) {
+				if (best == -1 || wayCounts[k] > wayCounts[best]) {
+					best = k;
+					tie = false;
+				} else if (wayCounts[k] == wayCounts[best]) {
+					tie = true;
+				}
+			}
+
+			if (best == -1) {
+				continue;
+			}
+			long wayId = wayIds.getLong(way);
+			if (!tie) {
+				ret.put(wayId, wayOrdinals[best]);
+			} else {
+				// mixed region way without a majority, use the estimated centre
+				long first = getWayNode(way, 0);
+				long last = getWayNode(way, nbStored - 1);
+				if (hasCoordinate(first) && hasCoordinate(last)) {
+					ret.put(wayId, lookup.findRegionOrdinal((nodeLngs.getDouble(first) + nodeLngs.getDouble(last)) / 2,
+							(nodeLats.getDouble(first) + nodeLats.getDouble(last)) / 2));
+				} else {
+					ret.put(wayId, wayOrdinals[best]);
+				}
+			}
+		}
+	}
+
+	private boolean hasCoordinate(long node) {
+		return (nodeFlags.getByte(node) & HAS_COORDINATE) != 0;
+	}
+
+	private boolean isTowerWithCoordinate(long node) {
+		int flags = nodeFlags.getByte(node);
+		return (flags & USE_COUNT_MASK) > 1 && (flags & HAS_COORDINATE) != 0;
+	}
+
+	private void resolveCentres(LongIntHashMap ret, int parallelism) {
+		// batch query the centres, which sorts them spatially and splits them across threads
+		for (long from = 0; from < nbWays; from += QUERY_BATCH_SIZE) {
+			int n = (int) Math.min(QUERY_BATCH_SIZE, nbWays - from);
+			double[] lngs = new double[n];
+			double[] lats = new double[n];
+			long[] ways = new long[n];
+			int nbFound = 0;
+			for (long way = from; way < from + n; way++) {
+				long first = getWayNode(way, 0);
+				long last = getWayNode(way, 1);
+				if (hasCoordinate(first) && hasCoordinate(last)) {
+					lngs[nbFound] = (nodeLngs.getDouble(first) + nodeLngs.getDouble(last)) / 2;
+					lats[nbFound] = (nodeLats.getDouble(first) + nodeLats.getDouble(last)) / 2;
+					ways[nbFound++] = way;
+				}
+			}
+
+			int[] found = lookup.findRegionOrdinals(Arrays.copyOf(lngs, nbFound), Arrays.copyOf(lats, nbFound), parallelism);
+			for (int i = 0; i < nbFound; i++) {
+				ret.put(wayIds.getLong(ways[i]), found[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.beans;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+
+/**
+ * Part of a polyline within a single region, given as fractions of the polyline's total length
+ */
+public class RegionInterval extends JSONToString{
+	private double fromFraction;
+	private double toFraction;
+	private int regionOrdinal = SpeedRegionConsts.NO_REGION_ORDINAL;
+
+	public RegionInterval(){
+		
+	}
+	
+	public RegionInterval(double fromFraction, double toFraction, int regionOrdinal) {
+		this.fromFraction = fromFraction;
+		this.toFraction = toFraction;
+		this.regionOrdinal = regionOrdinal;
+	}
+
+	public double getFromFraction() {
+		return fromFraction;
+	}
+
+	public void setFromFraction(double fromFraction) {
+		this.fromFraction = fromFraction;
+	}
+
+	public double getToFraction() {
+		return toFraction;
+	}
+
+	public void setToFraction(double toFraction) {
+		this.toFraction = toFraction;
+	}
+
+	/**
+	 * Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL} for parts of the polyline outside all regions
+	 * @return
+	 */
+	public int getRegionOrdinal() {
+		return regionOrdinal;
+	}
+
+	public void setRegionOrdinal(int regionOrdinal) {
+		this.regionOrdinal = regionOrdinal;
+	}
+
+	@JsonIgnore
+	public double getFraction() {
+		return toFraction - fromFraction;
+	}
+}
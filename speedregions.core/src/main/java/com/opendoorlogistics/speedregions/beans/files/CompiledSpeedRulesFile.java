@@ -1,5 +1,7 @@
 package com.opendoorlogistics.speedregions.beans.files;
 
+import java.util.List;
+
 import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
 
 /**
@@ -9,6 +11,7 @@ import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
  */
 public class CompiledSpeedRulesFile extends AbstractSpeedRulesFile{
 	private RegionsSpatialTreeNode tree;
+	private List<String> regionTypes;
 	
 	public RegionsSpatialTreeNode getTree() {
 		return tree;
@@ -17,5 +20,17 @@ public class CompiledSpeedRulesFile extends AbstractSpeedRulesFile{
 		this.tree = quadtree;
 	}
 	
+	/**
+	 * Standardised region types in the tree, indexed by their integer ordinal.
+	 * This can be null for files compiled before ordinals were introduced.
+	 * @return
+	 */
+	public List<String> getRegionTypes() {
+		return regionTypes;
+	}
+	public void setRegionTypes(List<String> regionTypes) {
+		this.regionTypes = regionTypes;
+	}
+	
 	
 }
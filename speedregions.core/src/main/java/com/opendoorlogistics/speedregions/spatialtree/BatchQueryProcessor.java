@@ -0,0 +1,186 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+
+/**
+ * Looks up region ordinals for many points at once. The points are sorted internally along a Z-order (Morton) curve
+ * so consecutive lookups are spatially close. With a {@link FlatQueryProcessor} a lookup strictly inside the previous
+ * lookup's leaf reuses it without walking the tree; with either processor consecutive lookups touch the same tree
+ * nodes so they stay in cache. The sorted points can be split into contiguous chunks across several threads. Results
+ * are always returned in the original order.
+ *
+ */
+public class BatchQueryProcessor {
+	private static final int MORTON_BITS = 16;
+
+	private final FlatQueryProcessor flat;
+	private final QueryProcessor tree;
+
+	public BatchQueryProcessor(FlatQueryProcessor flat) {
+		this.flat = flat;
+		this.tree = null;
+	}
+
+	public BatchQueryProcessor(QueryProcessor tree) {
+		this.flat = null;
+		this.tree = tree;
+	}
+
+	/**
+	 * Query the points
+	 * 
+	 * @param lngs
+	 * @param lats
+	 * @param parallelism
+	 *            Number of threads to use. 1 or less queries on the calling thread.
+	 * @return Region ordinals (or {@link SpeedRegionConsts#NO_REGION_ORDINAL}) in the same order as the input
+	 */
+	public int[] queryOrdinals(double[] lngs, double[] lats, int parallelism) {
+		int[] ret = new int[lngs.length];
+		queryOrdinals(lngs, lats, ret, parallelism);
+		return ret;
+	}
+
+	/**
+	 * Query the points, writing the region ordinals (or {@link SpeedRegionConsts#NO_REGION_ORDINAL}) to the output
+	 * array in the same order as the input
+	 * 
+	 * @param lngs
+	 * @param lats
+	 * @param out
+	 * @param parallelism
+	 *            Number of threads to use. 1 or less queries on the calling thread.
+	 */
+	public void queryOrdinals(final double[] lngs, final double[] lats, final int[] out, int parallelism) {
+		if (lngs.length != lats.length || out.length < lngs.length) {
+			throw new RuntimeException("Longitude, latitude and output arrays must have the same length");
+		}
+
+		final long[] sorted = mortonSort(lngs, lats);
+		int n = sorted.length;
+		int nbChunks = Math.max(1, Math.min(parallelism, n));
+		if (nbChunks == 1) {
+			queryRange(sorted, 0, n, lngs, lats, out);
+			return;
+		}
+
+		// split into contiguous chunks along the curve so each thread works on a compact area
+		List<Callable<Void>> tasks = new ArrayList<>(nbChunks);
+		for (int i = 0; i < nbChunks; i++) {
+			final int from = (int) ((long) n * i / nbChunks);
+			final int to = (int) ((long) n * (i + 1) / nbChunks);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					queryRange(sorted, from, to, lngs, lats, out);
+					return null;
+				}
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(nbChunks);
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void queryRange(long[] sorted, int from, int to, double[] lngs, double[] lats, int[] out) {
+		int leaf = -1;
+		for (int i = from; i < to; i++) {
+			int index = (int) sorted[i];
+			double lng = lngs[index];
+			double lat = lats[index];
+			if (flat != null) {
+				if (leaf == -1 || !flat.isStrictlyInside(leaf, lng, lat)) {
+					leaf = flat.queryLeaf(lng, lat);
+				}
+				out[index] = leaf != -1 ? flat.getRegionOrdinal(leaf) : SpeedRegionConsts.NO_REGION_ORDINAL;
+			} else {
+				out[index] = tree.queryOrdinal(lng, lat);
+			}
+		}
+	}
+
+	/**
+	 * Sort the points along a Z-order curve over their bounding box
+	 * 
+	 * @param lngs
+	 * @param lats
+	 * @return For each point in sorted order, the Morton code in the high 32 bits and the point's original index in the
+	 *         low 32 bits
+	 */
+	static long[] mortonSort(double[] lngs, double[] lats) {
+		int n = lngs.length;
+		double minLng = Double.POSITIVE_INFINITY, maxLng = Double.NEGATIVE_INFINITY;
+		double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			minLng = Math.min(minLng, lngs[i]);
+			maxLng = Math.max(maxLng, lngs[i]);
+			minLat = Math.min(minLat, lats[i]);
+			maxLat = Math.max(maxLat, lats[i]);
+		}
+
+		int maxCell = (1 << MORTON_BITS) - 1;
+		double lngScale = maxLng > minLng ? maxCell / (maxLng - minLng) : 0;
+		double latScale = maxLat > minLat ? maxCell / (maxLat - minLat) : 0;
+		long[] ret = new long[n];
+		for (int i = 0; i < n; i++) {
+			// invalid coordinates (e.g. NaN) just go to cell 0
+			int x = clamp((lngs[i] - minLng) * lngScale, maxCell);
+			int y = clamp((lats[i] - minLat) * latScale, maxCell);
+			long morton = interleave(x) | (interleave(y) << 1);
+			ret[i] = (morton << 32) | i;
+		}
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	private static int clamp(double value, int max) {
+		if (!(value > 0)) {
+			return 0;
+		}
+		return value >= max ? max : (int) value;
+	}
+
+	/**
+	 * Spread the lower 16 bits of the value so there's a zero bit between each
+	 */
+	private static long interleave(int value) {
+		long x = value & 0xFFFFL;
+		x = (x | (x << 8)) & 0x00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0FL;
+		x = (x | (x << 2)) & 0x33333333L;
+		x = (x | (x << 1)) & 0x55555555L;
+		return x;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
+
+/**
+ * Reads and writes the binary version of a {@link CompiledSpeedRulesFile}. The file holds the flattened tree used by
+ * {@link FlatQueryProcessor} and is memory-mapped on loading, so the tree is queried in place without being
+ * deserialised into node objects. All values are little-endian. Layout (version 1):
+ * 
+ * <pre>
+ * 8 bytes   magic "ODLSRBIN"
+ * int       version
+ * int       number of nodes (n)
+ * long      offset of the node data (8 byte aligned)
+ * int       number of region types, then for each: int byte length + UTF-8 bytes
+ * int       byte length of the rules JSON + UTF-8 bytes
+ * padding   to the node data offset
+ * double[4n] bounds (minLng, maxLng, minLat, maxLat)
+ * long[n]   assigned priorities
+ * int[n]    skip indices
+ * int[n]    region ordinals
+ * </pre>
+ * 
+ * The rules are small so are kept as a JSON block rather than given their own binary encoding.
+ *
+ */
+public class BinaryCompiledFileIO {
+	private static final byte[] MAGIC = "ODLSRBIN".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 1;
+	private static final int WRITE_CHUNK_BYTES = 1 << 16;
+
+	/**
+	 * The contents of a memory-mapped binary compiled file
+	 */
+	public static class MappedCompiledFile {
+		private final CompiledSpeedRulesFile rules;
+		private final FlatQueryProcessor queryProcessor;
+
+		MappedCompiledFile(CompiledSpeedRulesFile rules, FlatQueryProcessor queryProcessor) {
+			this.rules = rules;
+			this.queryProcessor = queryProcessor;
+		}
+
+		/**
+		 * @return A compiled file holding the rules only, the tree is not set
+		 */
+		public CompiledSpeedRulesFile getRules() {
+			return rules;
+		}
+
+		public FlatQueryProcessor getQueryProcessor() {
+			return queryProcessor;
+		}
+
+	}
+
+	/**
+	 * Test if the file starts with the binary file's magic bytes
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static boolean isBinaryFile(File file) {
+		if (!file.isFile() || file.length() < MAGIC.length) {
+			return false;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			byte[] bytes = new byte[MAGIC.length];
+			raf.readFully(bytes);
+			return Arrays.equals(bytes, MAGIC);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write the compiled file in binary form. The data is written to a temporary file in the same directory which then
+	 * atomically replaces the target, so a lookup which has the old file memory-mapped keeps reading the old data.
+	 * 
+	 * @param compiled
+	 * @param file
+	 */
+	public static void write(CompiledSpeedRulesFile compiled, File file) {
+		RegionTypeDictionary dictionary = RegionTypeDictionary.create(compiled.getRegionTypes(), compiled.getTree());
+		FlatQueryProcessor flat = new FlatQueryProcessor(compiled.getTree(), dictionary);
+		int n = flat.getNbNodes();
+
+		// rules only header
+		CompiledSpeedRulesFile rulesOnly = new CompiledSpeedRulesFile();
+		rulesOnly.setRules(compiled.getRules());
+		byte[] rulesJSON = TextUtils.toJSON(rulesOnly).getBytes(StandardCharsets.UTF_8);
+
+		List<byte[]> regionTypes = new ArrayList<>();
+		int headerBytes = MAGIC.length + 4 + 4 + 8 + 4;
+		for (String regionType : dictionary.getRegionTypes()) {
+			byte[] bytes = regionType.getBytes(StandardCharsets.UTF_8);
+			regionTypes.add(bytes);
+			headerBytes += 4 + bytes.length;
+		}
+		headerBytes += 4 + rulesJSON.length;
+		long dataOffset = align8(headerBytes);
+
+		ByteBuffer header = ByteBuffer.allocate((int) dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(n);
+		header.putLong(dataOffset);
+		header.putInt(regionTypes.size());
+		for (byte[] bytes : regionTypes) {
+			header.putInt(bytes.length);
+			header.put(bytes);
+		}
+		header.putInt(rulesJSON.length);
+		header.put(rulesJSON);
+		header.position(0);
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp;
+		try {
+			tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		boolean moved = false;
+		try (FileOutputStream fos = new FileOutputStream(tmp); FileChannel channel = fos.getChannel()) {
+			writeFully(channel, header);
+
+			ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			DoubleBuffer bounds = flat.getBounds();
+			for (int i = 0; i < 4 * n; i++) {
+				if (chunk.remaining() < 8) {
+					flush(channel, chunk);
+				}
+				chunk.putDouble(bounds.get(i));
+			}
+			LongBuffer priorities = flat.getPriorities();
+			for (int i = 0; i < n; i++) {
+				if (chunk.remaining() < 8) {
+					flush(channel, chunk);
+				}
+				chunk.putLong(priorities.get(i));
+			}
+			for (IntBuffer ints : new IntBuffer[] { flat.getSkip(), flat.getRegionOrdinals() }) {
+				for (int i = 0; i < n; i++) {
+					if (chunk.remaining() < 4) {
+						flush(channel, chunk);
+					}
+					chunk.putInt(ints.get(i));
+				}
+			}
+			flush(channel, chunk);
+			channel.force(true);
+			channel.close();
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			moved = true;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (!moved) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Memory-map the binary file. The mapping stays valid after this method returns and is released when the
+	 * returned object is garbage collected.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static MappedCompiledFile map(File file) {
+		MappedByteBuffer mapped;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new RuntimeException("Binary compiled file is too large to map: " + file.getAbsolutePath());
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = new byte[MAGIC.length];
+		if (buffer.remaining() < MAGIC.length + 16) {
+			throw new RuntimeException("File is not a binary compiled speed rules file: " + file.getAbsolutePath());
+		}
+		buffer.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new RuntimeException("File is not a binary compiled speed rules file: " + file.getAbsolutePath());
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new RuntimeException("Unsupported binary compiled speed rules file version " + version + ", expected " + VERSION);
+		}
+		int n = buffer.getInt();
+		long dataOffset = buffer.getLong();
+		long expectedSize = dataOffset + (long) n * (4 * 8 + 8 + 4 + 4);
+		if (n < 1 || expectedSize != buffer.capacity()) {
+			throw new RuntimeException("Binary compiled speed rules file is corrupt or truncated: " + file.getAbsolutePath());
+		}
+
+		int nbTypes = buffer.getInt();
+		List<String> regionTypes = new ArrayList<>(nbTypes);
+		for (int i = 0; i < nbTypes; i++) {
+			regionTypes.add(readString(buffer));
+		}
+		CompiledSpeedRulesFile rules = TextUtils.fromJSON(readString(buffer), CompiledSpeedRulesFile.class);
+		rules.setRegionTypes(regionTypes);
+		RegionTypeDictionary dictionary = RegionTypeDictionary.create(regionTypes, null);
+
+		long offset = dataOffset;
+		DoubleBuffer bounds = section(buffer, offset, 4L * 8 * n).asDoubleBuffer();
+		offset += 4L * 8 * n;
+		LongBuffer priorities = section(buffer, offset, 8L * n).asLongBuffer();
+		offset += 8L * n;
+		IntBuffer skip = section(buffer, offset, 4L * n).asIntBuffer();
+		offset += 4L * n;
+		IntBuffer ordinals = section(buffer, offset, 4L * n).asIntBuffer();
+
+		return new MappedCompiledFile(rules, new FlatQueryProcessor(n, bounds, skip, ordinals, priorities, dictionary));
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static ByteBuffer section(ByteBuffer buffer, long offset, long length) {
+		ByteBuffer ret = buffer.duplicate();
+		ret.limit((int) (offset + length));
+		ret.position((int) offset);
+
+		// slice resets the byte order
+		return ret.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static long align8(long value) {
+		return (value + 7) & ~7L;
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer chunk) throws IOException {
+		chunk.flip();
+		writeFully(channel, chunk);
+		chunk.clear();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
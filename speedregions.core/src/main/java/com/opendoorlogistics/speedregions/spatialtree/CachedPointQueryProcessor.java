@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.nio.DoubleBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.beans.Bounds;
+
+/**
+ * Point query processor which remembers the most recently found leaves for each thread. Leaves partition space, so a
+ * point strictly inside a remembered leaf's bounds always belongs to that leaf and is answered with a rectangle test
+ * instead of walking the tree. For spatially coherent input (e.g. consecutive ways from an OSM file) most queries hit
+ * the cache.
+ * <p>
+ * Each thread has its own cache so there is no contention between threads, and a thread's cache is garbage collected
+ * with the thread. Hit and miss counts are kept in counters striped by thread and summed when read, so they're only
+ * approximate while queries are running on other threads.
+ *
+ */
+public class CachedPointQueryProcessor {
+	public static final int DEFAULT_CACHE_SIZE = 8;
+
+	private final FlatQueryProcessor flat;
+	private final QueryProcessor tree;
+	private final int cacheSize;
+
+	/**
+	 * Longs between stripes so stripes used by different threads don't share a cache line
+	 */
+	private static final int STRIPE_STRIDE = 8;
+	private final int nbStripes;
+
+	/**
+	 * Hits then misses for each stripe
+	 */
+	private final AtomicLongArray counts;
+	private final ThreadLocal<LeafCache> threadCache = new ThreadLocal<LeafCache>() {
+		@Override
+		protected LeafCache initialValue() {
+			// thread ids are handed out sequentially so consecutive threads get different stripes
+			int stripe = (int) (Thread.currentThread().getId() & (nbStripes - 1));
+			return new LeafCache(cacheSize, stripe * STRIPE_STRIDE);
+		}
+	};
+
+	public CachedPointQueryProcessor(FlatQueryProcessor flat, int cacheSize) {
+		this(flat, null, cacheSize);
+	}
+
+	public CachedPointQueryProcessor(QueryProcessor tree, int cacheSize) {
+		this(null, tree, cacheSize);
+	}
+
+	private CachedPointQueryProcessor(FlatQueryProcessor flat, QueryProcessor tree, int cacheSize) {
+		if (cacheSize < 1) {
+			throw new RuntimeException("Point cache size must be at least 1");
+		}
+		this.flat = flat;
+		this.tree = tree;
+		this.cacheSize = cacheSize;
+		this.nbStripes = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1);
+		this.counts = new AtomicLongArray(nbStripes * STRIPE_STRIDE);
+	}
+
+	/**
+	 * Leaves recently found by one thread. Entries are replaced round-robin.
+	 */
+	private static class LeafCache {
+		/**
+		 * 4 values per entry: minLng, maxLng, minLat, maxLat
+		 */
+		final double[] bounds;
+		final int[] ordinals;
+		int size;
+		int last;
+		int nextReplace;
+
+		/**
+		 * Index of the thread's hit counter, with its miss counter next
+		 */
+		final int countIndex;
+
+		LeafCache(int capacity, int countIndex) {
+			bounds = new double[4 * capacity];
+			ordinals = new int[capacity];
+			this.countIndex = countIndex;
+		}
+
+		boolean isStrictlyInside(int entry, double lng, double lat) {
+			int b = 4 * entry;
+			return lng > bounds[b] && lng < bounds[b + 1] && lat > bounds[b + 2] && lat < bounds[b + 3];
+		}
+
+		int add(double minLng, double maxLng, double minLat, double maxLat, int ordinal) {
+			int entry = nextReplace;
+			nextReplace = (nextReplace + 1) % ordinals.length;
+			if (size < ordinals.length) {
+				size++;
+			}
+			int b = 4 * entry;
+			bounds[b] = minLng;
+			bounds[b + 1] = maxLng;
+			bounds[b + 2] = minLat;
+			bounds[b + 3] = maxLat;
+			ordinals[entry] = ordinal;
+			return entry;
+		}
+	}
+
+	/**
+	 * Query a point, returning the region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 * 
+	 * @param lng
+	 * @param lat
+	 * @return
+	 */
+	public int queryOrdinal(double lng, double lat) {
+		LeafCache cache = threadCache.get();
+
+		// most recent leaf first as this is the most likely
+		if (cache.size > 0 && cache.isStrictlyInside(cache.last, lng, lat)) {
+			counts.incrementAndGet(cache.countIndex);
+			return cache.ordinals[cache.last];
+		}
+		for (int i = 0; i < cache.size; i++) {
+			if (i != cache.last && cache.isStrictlyInside(i, lng, lat)) {
+				counts.incrementAndGet(cache.countIndex);
+				cache.last = i;
+				return cache.ordinals[i];
+			}
+		}
+
+		counts.incrementAndGet(cache.countIndex + 1);
+		if (flat != null) {
+			int leaf = flat.queryLeaf(lng, lat);
+			if (leaf == -1) {
+				return SpeedRegionConsts.NO_REGION_ORDINAL;
+			}
+			DoubleBuffer bounds = flat.getBounds();
+			int b = 4 * leaf;
+			cache.last = cache.add(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2), bounds.get(b + 3), flat.getRegionOrdinal(leaf));
+		} else {
+			RegionsSpatialTreeNodeWithGeometry leaf = tree.queryLeaf(lng, lat);
+			if (leaf == null) {
+				return SpeedRegionConsts.NO_REGION_ORDINAL;
+			}
+			Bounds b = leaf.getBounds();
+			cache.last = cache.add(b.getMinLng(), b.getMaxLng(), b.getMinLat(), b.getMaxLat(), leaf.getRegionOrdinal());
+		}
+		return cache.ordinals[cache.last];
+	}
+
+	/**
+	 * Number of queries answered from the cache, summed over all threads
+	 * 
+	 * @return
+	 */
+	public long getHits() {
+		return sumCounts(0);
+	}
+
+	/**
+	 * Number of queries which walked the tree, summed over all threads
+	 * 
+	 * @return
+	 */
+	public long getMisses() {
+		return sumCounts(1);
+	}
+
+	private long sumCounts(int offset) {
+		long ret = 0;
+		for (int i = 0; i < nbStripes; i++) {
+			ret += counts.get(i * STRIPE_STRIDE + offset);
+		}
+		return ret;
+	}
+}
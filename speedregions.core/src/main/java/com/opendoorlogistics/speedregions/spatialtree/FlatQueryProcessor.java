@@ -0,0 +1,425 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup.LinestringMode;
+import com.opendoorlogistics.speedregions.beans.Bounds;
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
+import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Compact read-only version of the {@link QueryProcessor}. The tree is compiled into parallel primitive arrays, with
+ * nodes stored in depth-first pre-order and each node's children in priority order (highest first). Instead of child
+ * lists each node stores a 'skip' offset - the index of the first node after its subtree - so the tree can be walked
+ * iteratively without recursion, a stack or any memory allocation.
+ * <p>
+ * The arrays are held as nio buffers so the same processor can either query heap arrays or query a memory-mapped
+ * binary file in place (see {@link BinaryCompiledFileIO}). Only absolute buffer reads are used, which don't change the
+ * buffers' positions, so the processor can be queried concurrently from any number of threads without locking.
+ *
+ */
+public class FlatQueryProcessor {
+	private final int nbNodes;
+
+	/**
+	 * 4 values per node: minLng, maxLng, minLat, maxLat
+	 */
+	private final DoubleBuffer bounds;
+
+	/**
+	 * Index of the next node after this node's subtree
+	 */
+	private final IntBuffer skip;
+
+	/**
+	 * Region ordinal for leaf nodes, {@link SpeedRegionConsts#NO_REGION_ORDINAL} for non-leaf nodes
+	 */
+	private final IntBuffer regionOrdinal;
+
+	/**
+	 * Assigned priority (numerically lower is higher priority)
+	 */
+	private final LongBuffer priority;
+
+	private final RegionTypeDictionary dictionary;
+
+	public FlatQueryProcessor(RegionsSpatialTreeNode root) {
+		this(root, RegionTypeDictionary.create(null, root));
+	}
+
+	/**
+	 * Create the query processor with region ordinals taken from the dictionary
+	 * 
+	 * @param root
+	 * @param dictionary
+	 *            Dictionary which must contain all region types in the tree
+	 */
+	public FlatQueryProcessor(RegionsSpatialTreeNode root, RegionTypeDictionary dictionary) {
+		this.dictionary = dictionary;
+		long count = root.countNodes();
+		if (count > Integer.MAX_VALUE / 4) {
+			throw new RuntimeException("Spatial tree has too many nodes to flatten: " + count);
+		}
+		nbNodes = (int) count;
+		bounds = DoubleBuffer.wrap(new double[4 * nbNodes]);
+		skip = IntBuffer.wrap(new int[nbNodes]);
+		regionOrdinal = IntBuffer.wrap(new int[nbNodes]);
+		priority = LongBuffer.wrap(new long[nbNodes]);
+
+		new Flattener().flatten(root);
+	}
+
+	/**
+	 * Create the query processor on already-flattened data (e.g. a memory mapped file)
+	 * 
+	 * @param nbNodes
+	 * @param bounds
+	 * @param skip
+	 * @param regionOrdinal
+	 * @param priority
+	 * @param dictionary
+	 */
+	FlatQueryProcessor(int nbNodes, DoubleBuffer bounds, IntBuffer skip, IntBuffer regionOrdinal, LongBuffer priority,
+			RegionTypeDictionary dictionary) {
+		this.nbNodes = nbNodes;
+		this.bounds = bounds;
+		this.skip = skip;
+		this.regionOrdinal = regionOrdinal;
+		this.priority = priority;
+		this.dictionary = dictionary;
+	}
+
+	private class Flattener {
+		int next = 0;
+
+		void flatten(RegionsSpatialTreeNode node) {
+			int index = next++;
+			int b = 4 * index;
+			bounds.put(b, node.getBounds().getMinLng());
+			bounds.put(b + 1, node.getBounds().getMaxLng());
+			bounds.put(b + 2, node.getBounds().getMinLat());
+			bounds.put(b + 3, node.getBounds().getMaxLat());
+			priority.put(index, node.getAssignedPriority());
+			regionOrdinal.put(index, dictionary.getOrdinal(node.getRegionType()));
+
+			if (node.getRegionType() == null) {
+				// Children are already sorted by priority in the built tree
+				for (RegionsSpatialTreeNode child : node.getChildren()) {
+					flatten(child);
+				}
+			}
+
+			skip.put(index, next);
+		}
+	}
+
+	/**
+	 * Rebuild the tree of node objects from the flattened data
+	 * 
+	 * @return
+	 */
+	public RegionsSpatialTreeNode toTree() {
+		return toTree(0);
+	}
+
+	private RegionsSpatialTreeNode toTree(int index) {
+		RegionsSpatialTreeNode ret = new RegionsSpatialTreeNode();
+		int b = 4 * index;
+		ret.setBounds(new Bounds(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2), bounds.get(b + 3)));
+		ret.setAssignedPriority(priority.get(index));
+		ret.setRegionType(dictionary.getRegionType(regionOrdinal.get(index)));
+		int end = skip.get(index);
+		int child = index + 1;
+		while (child < end) {
+			ret.getChildren().add(toTree(child));
+			child = skip.get(child);
+		}
+		return ret;
+	}
+
+	/**
+	 * Query a point, returning the ordinal of the highest priority region containing it or
+	 * {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 *
+	 * @param lng
+	 * @param lat
+	 * @return
+	 */
+	public int queryOrdinal(double lng, double lat) {
+		int leaf = queryLeaf(lng, lat);
+		return leaf != -1 ? regionOrdinal.get(leaf) : SpeedRegionConsts.NO_REGION_ORDINAL;
+	}
+
+	/**
+	 * Query a point, returning the index of the highest priority leaf node containing it or -1 if none.
+	 * <p>
+	 * Leaves are cells of the spatial subdivision so they never overlap except along shared edges. A point strictly
+	 * inside a leaf (see {@link #isStrictlyInside(int, double, double)}) therefore always gives that leaf, which lets
+	 * callers reuse a previous result for nearby points without walking the tree.
+	 *
+	 * @param lng
+	 * @param lat
+	 * @return
+	 */
+	public int queryLeaf(double lng, double lat) {
+		long bestPriority = Long.MAX_VALUE;
+		int bestLeaf = -1;
+		int i = 0;
+		while (i < nbNodes) {
+			int b = 4 * i;
+
+			// Can't beat the highest priority found so far, or point not inside, so exclude the subtree
+			long p = priority.get(i);
+			if (p >= bestPriority || lng < bounds.get(b) || lng > bounds.get(b + 1) || lat < bounds.get(b + 2)
+					|| lat > bounds.get(b + 3)) {
+				i = skip.get(i);
+				continue;
+			}
+
+			if (regionOrdinal.get(i) != SpeedRegionConsts.NO_REGION_ORDINAL) {
+				bestPriority = p;
+				bestLeaf = i;
+				i = skip.get(i);
+			} else {
+				// go to first child
+				i++;
+			}
+		}
+		return bestLeaf;
+	}
+
+	/**
+	 * Test if the point is strictly inside the node's bounds (i.e. not on its edges)
+	 * 
+	 * @param node
+	 * @param lng
+	 * @param lat
+	 * @return
+	 */
+	public boolean isStrictlyInside(int node, double lng, double lat) {
+		int b = 4 * node;
+		return lng > bounds.get(b) && lng < bounds.get(b + 1) && lat > bounds.get(b + 2) && lat < bounds.get(b + 3);
+	}
+
+	/**
+	 * Get the region ordinal of a node, which is {@link SpeedRegionConsts#NO_REGION_ORDINAL} for non-leaf nodes
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public int getRegionOrdinal(int node) {
+		return regionOrdinal.get(node);
+	}
+
+	/**
+	 * Query a general geometry, returning the ordinal of the highest priority region intersecting it or
+	 * {@link SpeedRegionConsts#NO_REGION_ORDINAL}. Points are handled without allocation and linestrings are tested
+	 * with segment-rectangle tests; other geometry types do an envelope test first and then a full JTS intersection
+	 * test against the node's rectangle.
+	 *
+	 * @param geometry
+	 * @return
+	 */
+	public int queryOrdinal(Geometry geometry) {
+		if (geometry instanceof Point) {
+			Coordinate coordinate = ((Point) geometry).getCoordinate();
+			return queryOrdinal(coordinate.x, coordinate.y);
+		}
+
+		if (geometry instanceof LineString) {
+			return queryOrdinal(Polyline.fromLineString((LineString) geometry), LinestringMode.HIGHEST_PRIORITY);
+		}
+
+		Envelope envelope = geometry.getEnvelopeInternal();
+		long bestPriority = Long.MAX_VALUE;
+		int bestOrdinal = SpeedRegionConsts.NO_REGION_ORDINAL;
+		int i = 0;
+		while (i < nbNodes) {
+			int b = 4 * i;
+			long p = priority.get(i);
+			if (p >= bestPriority || envelope.getMaxX() < bounds.get(b) || envelope.getMinX() > bounds.get(b + 1)
+					|| envelope.getMaxY() < bounds.get(b + 2) || envelope.getMinY() > bounds.get(b + 3)) {
+				i = skip.get(i);
+				continue;
+			}
+
+			Envelope nodeEnvelope = new Envelope(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2), bounds.get(b + 3));
+			if (!geometry.getFactory().toGeometry(nodeEnvelope).intersects(geometry)) {
+				i = skip.get(i);
+				continue;
+			}
+
+			int ordinal = regionOrdinal.get(i);
+			if (ordinal != SpeedRegionConsts.NO_REGION_ORDINAL) {
+				bestPriority = p;
+				bestOrdinal = ordinal;
+				i = skip.get(i);
+			} else {
+				i++;
+			}
+		}
+		return bestOrdinal;
+	}
+
+	/**
+	 * Query a linestring given as coordinate arrays, without creating any geometry objects
+	 * 
+	 * @param lngs
+	 * @param lats
+	 * @param mode
+	 * @return Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 */
+	public int queryOrdinal(double[] lngs, double[] lats, LinestringMode mode) {
+		return queryOrdinal(new Polyline(lngs, lats), mode);
+	}
+
+	private int queryOrdinal(Polyline polyline, LinestringMode mode) {
+		if (polyline.getNbPoints() == 0) {
+			return SpeedRegionConsts.NO_REGION_ORDINAL;
+		}
+
+		if (mode == LinestringMode.LENGTH_WEIGHTED_MAJORITY) {
+			if (polyline.getLength() == 0) {
+				return queryOrdinal(polyline.getLng(0), polyline.getLat(0));
+			}
+
+			addLeaves(polyline);
+			return polyline.getMajorityOrdinal(dictionary.size());
+		}
+
+		long bestPriority = Long.MAX_VALUE;
+		int bestOrdinal = SpeedRegionConsts.NO_REGION_ORDINAL;
+		int i = 0;
+		while (i < nbNodes) {
+			int b = 4 * i;
+			long p = priority.get(i);
+			if (p >= bestPriority
+					|| !polyline.intersects(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2), bounds.get(b + 3))) {
+				i = skip.get(i);
+				continue;
+			}
+
+			int ordinal = regionOrdinal.get(i);
+			if (ordinal != SpeedRegionConsts.NO_REGION_ORDINAL) {
+				bestPriority = p;
+				bestOrdinal = ordinal;
+				i = skip.get(i);
+			} else {
+				i++;
+			}
+		}
+		return bestOrdinal;
+	}
+
+	/**
+	 * Add every leaf the polyline touches to it. Leaves don't overlap so there's no priority pruning.
+	 * 
+	 * @param polyline
+	 */
+	private void addLeaves(Polyline polyline) {
+		int i = 0;
+		while (i < nbNodes) {
+			int b = 4 * i;
+			if (!polyline.intersects(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2), bounds.get(b + 3))) {
+				i = skip.get(i);
+				continue;
+			}
+
+			int ordinal = regionOrdinal.get(i);
+			if (ordinal != SpeedRegionConsts.NO_REGION_ORDINAL) {
+				polyline.addLeaf(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2), bounds.get(b + 3), ordinal);
+				i = skip.get(i);
+			} else {
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Split a polyline given as coordinate arrays into the intervals within each region
+	 * 
+	 * @param lngs
+	 * @param lats
+	 * @return Intervals covering the whole polyline in order (see {@link RegionInterval})
+	 */
+	public List<RegionInterval> queryIntervals(double[] lngs, double[] lats) {
+		Polyline polyline = new Polyline(lngs, lats);
+		if (polyline.getNbPoints() == 0) {
+			return new ArrayList<>();
+		}
+		if (polyline.getLength() == 0) {
+			return new ArrayList<>(Arrays.asList(new RegionInterval(0, 1, queryOrdinal(lngs[0], lats[0]))));
+		}
+		addLeaves(polyline);
+		return polyline.getIntervals();
+	}
+
+	public String query(Geometry geometry) {
+		return getRegionType(queryOrdinal(geometry));
+	}
+
+	public String query(double lng, double lat) {
+		return getRegionType(queryOrdinal(lng, lat));
+	}
+
+	/**
+	 * Get the region type for the ordinal, or null if the ordinal is {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 *
+	 * @param ordinal
+	 * @return
+	 */
+	public String getRegionType(int ordinal) {
+		return dictionary.getRegionType(ordinal);
+	}
+
+	public RegionTypeDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public int getNbNodes() {
+		return nbNodes;
+	}
+
+	DoubleBuffer getBounds() {
+		return bounds;
+	}
+
+	IntBuffer getSkip() {
+		return skip;
+	}
+
+	IntBuffer getRegionOrdinals() {
+		return regionOrdinal;
+	}
+
+	LongBuffer getPriorities() {
+		return priority;
+	}
+
+}
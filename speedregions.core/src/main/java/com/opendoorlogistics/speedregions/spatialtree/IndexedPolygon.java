@@ -0,0 +1,447 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.geojson.LngLatAlt;
+
+import com.opendoorlogistics.speedregions.beans.Bounds;
+import com.opendoorlogistics.speedregions.utils.GeomUtils;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Immutable polygon (with holes) specialised for testing against the axis-aligned rectangles of the tree's cells. The
+ * edges are held in flat arrays with a packed R-tree over them. As consecutive edges of a ring are adjacent, blocks of
+ * consecutive edges already have tight bounding boxes so no sorting is needed to build the tree.
+ * <p>
+ * Inside / outside is decided by the even-odd rule over all rings, so holes and the degenerate zero-width edges which
+ * rectangle clipping can create along the clip boundary are handled without special cases.
+ *
+ */
+public class IndexedPolygon {
+	private static final int NODE_SIZE = 8;
+
+	public enum Classification {
+		/**
+		 * The rectangle is entirely within the polygon and doesn't touch its boundary
+		 */
+		INSIDE,
+
+		/**
+		 * The rectangle doesn't intersect or touch the polygon
+		 */
+		OUTSIDE,
+
+		/**
+		 * At least one polygon edge intersects or touches the rectangle
+		 */
+		BOUNDARY
+	}
+
+	/**
+	 * Rings as interleaved x,y coordinates, without the closing coordinate
+	 */
+	private final double[][] rings;
+
+	/**
+	 * 4 values per edge: x1,y1,x2,y2
+	 */
+	private final double[] edges;
+	private final int nbEdges;
+
+	/**
+	 * Packed R-tree. Level 0 holds a box (minX, maxX, minY, maxY) for each block of NODE_SIZE edges, each higher level
+	 * holds a box for each block of NODE_SIZE boxes below it. The top level has a single box.
+	 */
+	private final double[][] levels;
+
+	private final int nbPoints;
+
+	public IndexedPolygon(Polygon polygon) {
+		this(toRings(polygon));
+	}
+
+	/**
+	 * Create the polygon from rings of interleaved x,y coordinates. A closing coordinate is optional. Rings with fewer
+	 * than 3 distinct coordinates are ignored.
+	 * 
+	 * @param rings
+	 */
+	public IndexedPolygon(List<double[]> rings) {
+		// copy rings removing closing coordinates and degenerate rings
+		List<double[]> cleaned = new ArrayList<>(rings.size());
+		int points = 0;
+		for (double[] ring : rings) {
+			int n = ring.length / 2;
+			if (n > 1 && ring[0] == ring[2 * n - 2] && ring[1] == ring[2 * n - 1]) {
+				n--;
+			}
+			if (n >= 3) {
+				cleaned.add(Arrays.copyOf(ring, 2 * n));
+				points += n;
+			}
+		}
+		this.rings = cleaned.toArray(new double[cleaned.size()][]);
+		this.nbPoints = points;
+
+		// build edges
+		nbEdges = points;
+		edges = new double[4 * nbEdges];
+		int e = 0;
+		for (double[] ring : this.rings) {
+			int n = ring.length / 2;
+			for (int i = 0; i < n; i++) {
+				int j = (i + 1) % n;
+				edges[e++] = ring[2 * i];
+				edges[e++] = ring[2 * i + 1];
+				edges[e++] = ring[2 * j];
+				edges[e++] = ring[2 * j + 1];
+			}
+		}
+
+		levels = buildIndex();
+	}
+
+	/**
+	 * Create from a geoJSON polygon without going through JTS
+	 * 
+	 * @param polygon
+	 * @return
+	 */
+	public static IndexedPolygon fromGeoJSON(org.geojson.Polygon polygon) {
+		List<double[]> rings = new ArrayList<>(polygon.getCoordinates().size());
+		for (List<LngLatAlt> list : polygon.getCoordinates()) {
+			double[] ring = new double[2 * list.size()];
+			int i = 0;
+			for (LngLatAlt ll : list) {
+				ring[i++] = ll.getLongitude();
+				ring[i++] = ll.getLatitude();
+			}
+			rings.add(ring);
+		}
+		return new IndexedPolygon(rings);
+	}
+
+	private static List<double[]> toRings(Polygon polygon) {
+		List<double[]> ret = new ArrayList<>(1 + polygon.getNumInteriorRing());
+		ret.add(toRing(polygon.getExteriorRing()));
+		for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+			ret.add(toRing(polygon.getInteriorRingN(i)));
+		}
+		return ret;
+	}
+
+	private static double[] toRing(LineString lineString) {
+		Coordinate[] coords = lineString.getCoordinates();
+		double[] ret = new double[2 * coords.length];
+		for (int i = 0; i < coords.length; i++) {
+			ret[2 * i] = coords[i].x;
+			ret[2 * i + 1] = coords[i].y;
+		}
+		return ret;
+	}
+
+	private double[][] buildIndex() {
+		if (nbEdges == 0) {
+			return new double[0][];
+		}
+
+		List<double[]> ret = new ArrayList<>();
+
+		// level 0 over the edges
+		int nbBoxes = (nbEdges + NODE_SIZE - 1) / NODE_SIZE;
+		double[] level = new double[4 * nbBoxes];
+		for (int box = 0; box < nbBoxes; box++) {
+			initEmptyBox(level, box);
+			int end = Math.min((box + 1) * NODE_SIZE, nbEdges);
+			for (int edge = box * NODE_SIZE; edge < end; edge++) {
+				int i = 4 * edge;
+				expandBox(level, box, edges[i], edges[i + 1]);
+				expandBox(level, box, edges[i + 2], edges[i + 3]);
+			}
+		}
+		ret.add(level);
+
+		// higher levels over the boxes below
+		while (nbBoxes > 1) {
+			double[] below = level;
+			int nbBelow = nbBoxes;
+			nbBoxes = (nbBelow + NODE_SIZE - 1) / NODE_SIZE;
+			level = new double[4 * nbBoxes];
+			for (int box = 0; box < nbBoxes; box++) {
+				initEmptyBox(level, box);
+				int end = Math.min((box + 1) * NODE_SIZE, nbBelow);
+				for (int child = box * NODE_SIZE; child < end; child++) {
+					int i = 4 * child;
+					expandBox(level, box, below[i], below[i + 2]);
+					expandBox(level, box, below[i + 1], below[i + 3]);
+				}
+			}
+			ret.add(level);
+		}
+		return ret.toArray(new double[ret.size()][]);
+	}
+
+	private static void initEmptyBox(double[] level, int box) {
+		int i = 4 * box;
+		level[i] = Double.POSITIVE_INFINITY;
+		level[i + 1] = Double.NEGATIVE_INFINITY;
+		level[i + 2] = Double.POSITIVE_INFINITY;
+		level[i + 3] = Double.NEGATIVE_INFINITY;
+	}
+
+	private static void expandBox(double[] level, int box, double x, double y) {
+		int i = 4 * box;
+		level[i] = Math.min(level[i], x);
+		level[i + 1] = Math.max(level[i + 1], x);
+		level[i + 2] = Math.min(level[i + 2], y);
+		level[i + 3] = Math.max(level[i + 3], y);
+	}
+
+	public boolean isEmpty() {
+		return nbEdges == 0;
+	}
+
+	public int getNbPoints() {
+		return nbPoints;
+	}
+
+	public double getMinX() {
+		return isEmpty() ? Double.POSITIVE_INFINITY : levels[levels.length - 1][0];
+	}
+
+	public double getMaxX() {
+		return isEmpty() ? Double.NEGATIVE_INFINITY : levels[levels.length - 1][1];
+	}
+
+	public double getMinY() {
+		return isEmpty() ? Double.POSITIVE_INFINITY : levels[levels.length - 1][2];
+	}
+
+	public double getMaxY() {
+		return isEmpty() ? Double.NEGATIVE_INFINITY : levels[levels.length - 1][3];
+	}
+
+	/**
+	 * Test if the polygon's envelope intersects or touches the rectangle
+	 */
+	public boolean envelopeIntersects(double minX, double maxX, double minY, double maxY) {
+		return !isEmpty() && getMinX() <= maxX && getMaxX() >= minX && getMinY() <= maxY && getMaxY() >= minY;
+	}
+
+	/**
+	 * Test if the polygon's envelope lies within the rectangle
+	 */
+	public boolean envelopeWithin(double minX, double maxX, double minY, double maxY) {
+		return getMinX() >= minX && getMaxX() <= maxX && getMinY() >= minY && getMaxY() <= maxY;
+	}
+
+	public Classification classify(Bounds b) {
+		return classify(b.getMinLng(), b.getMaxLng(), b.getMinLat(), b.getMaxLat());
+	}
+
+	/**
+	 * Classify the rectangle against the polygon. If no edge touches the rectangle then the rectangle is either
+	 * entirely inside or entirely outside the polygon, so a single point-in-polygon test decides which.
+	 * 
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @return
+	 */
+	public Classification classify(double minX, double maxX, double minY, double maxY) {
+		if (!envelopeIntersects(minX, maxX, minY, maxY)) {
+			return Classification.OUTSIDE;
+		}
+
+		if (anyEdgeIntersects(levels.length - 1, 0, minX, maxX, minY, maxY)) {
+			return Classification.BOUNDARY;
+		}
+
+		return contains(0.5 * (minX + maxX), 0.5 * (minY + maxY)) ? Classification.INSIDE : Classification.OUTSIDE;
+	}
+
+	private boolean anyEdgeIntersects(int level, int box, double minX, double maxX, double minY, double maxY) {
+		double[] boxes = levels[level];
+		int i = 4 * box;
+		if (boxes[i] > maxX || boxes[i + 1] < minX || boxes[i + 2] > maxY || boxes[i + 3] < minY) {
+			return false;
+		}
+
+		if (level == 0) {
+			int end = Math.min((box + 1) * NODE_SIZE, nbEdges);
+			for (int edge = box * NODE_SIZE; edge < end; edge++) {
+				int e = 4 * edge;
+				if (GeomUtils.segmentIntersectsRectangle(edges[e], edges[e + 1], edges[e + 2], edges[e + 3], minX, maxX, minY, maxY)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		int end = Math.min((box + 1) * NODE_SIZE, levels[level - 1].length / 4);
+		for (int child = box * NODE_SIZE; child < end; child++) {
+			if (anyEdgeIntersects(level - 1, child, minX, maxX, minY, maxY)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Point-in-polygon test using the crossing number (even-odd rule). Points exactly on the boundary may be
+	 * classified either way.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean contains(double x, double y) {
+		if (isEmpty()) {
+			return false;
+		}
+		return (countCrossings(levels.length - 1, 0, x, y) & 1) == 1;
+	}
+
+	/**
+	 * Count edges crossed by the ray from (x,y) in the positive x direction
+	 */
+	private int countCrossings(int level, int box, double x, double y) {
+		double[] boxes = levels[level];
+		int i = 4 * box;
+		if (boxes[i + 1] < x || boxes[i + 2] > y || boxes[i + 3] < y) {
+			return 0;
+		}
+
+		int count = 0;
+		if (level == 0) {
+			int end = Math.min((box + 1) * NODE_SIZE, nbEdges);
+			for (int edge = box * NODE_SIZE; edge < end; edge++) {
+				int e = 4 * edge;
+				double x1 = edges[e];
+				double y1 = edges[e + 1];
+				double x2 = edges[e + 2];
+				double y2 = edges[e + 3];
+				if ((y1 > y) != (y2 > y)) {
+					double xCross = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+					if (x < xCross) {
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+
+		int end = Math.min((box + 1) * NODE_SIZE, levels[level - 1].length / 4);
+		for (int child = box * NODE_SIZE; child < end; child++) {
+			count += countCrossings(level - 1, child, x, y);
+		}
+		return count;
+	}
+
+	/**
+	 * Clip the polygon to the rectangle, one side at a time as in Sutherland-Hodgman clipping. Edges crossing a side are
+	 * kept whole rather than cut at an interpolated crossing point, as rounding would move them slightly and change
+	 * whether rectangles which only just touch them are on the boundary. Each run of vertices outside a side is
+	 * replaced by a path from the last kept vertex perpendicular to the side, along the side and back out to the next
+	 * kept vertex. The new path lies entirely outside the side, so edges within the rectangle and the even-odd
+	 * classification of any point strictly inside it are unchanged. The result can extend slightly outside the
+	 * rectangle and contain zero-width edges along its sides.
+	 * 
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @return
+	 */
+	public IndexedPolygon clip(double minX, double maxX, double minY, double maxY) {
+		List<double[]> clipped = new ArrayList<>(rings.length);
+		for (double[] ring : rings) {
+			double[] r = ring;
+			r = clipRing(r, 0, minX, true);
+			r = clipRing(r, 0, maxX, false);
+			r = clipRing(r, 1, minY, true);
+			r = clipRing(r, 1, maxY, false);
+			if (r.length >= 6) {
+				clipped.add(r);
+			}
+		}
+		return new IndexedPolygon(clipped);
+	}
+
+	/**
+	 * Clip the ring against a single axis-aligned half-plane, keeping edges which cross it whole
+	 * 
+	 * @param ring
+	 * @param axis
+	 *            0 for x, 1 for y
+	 * @param value
+	 * @param keepGreater
+	 *            Keep the side with coordinate >= value, otherwise keep <= value
+	 * @return
+	 */
+	private static double[] clipRing(double[] ring, int axis, double value, boolean keepGreater) {
+		int n = ring.length / 2;
+		if (n == 0) {
+			return ring;
+		}
+
+		// each vertex adds at most 3 vertices
+		double[] out = new double[6 * n];
+		int count = 0;
+		int prev = n - 1;
+		boolean prevIn = isInside(ring[2 * prev + axis], value, keepGreater);
+		for (int cur = 0; cur < n; cur++) {
+			boolean curIn = isInside(ring[2 * cur + axis], value, keepGreater);
+			if (prevIn && !curIn) {
+				// leaving: keep the outside vertex so the edge is unchanged, then go perpendicular onto the side
+				count = addVertex(out, count, ring, cur, -1, 0);
+				count = addVertex(out, count, ring, cur, axis, value);
+			} else if (!prevIn && curIn) {
+				// entering: come back out from the side perpendicular to the previous outside vertex
+				count = addVertex(out, count, ring, prev, axis, value);
+				count = addVertex(out, count, ring, prev, -1, 0);
+			}
+			if (curIn) {
+				count = addVertex(out, count, ring, cur, -1, 0);
+			}
+			prev = cur;
+			prevIn = curIn;
+		}
+		return count == out.length ? out : Arrays.copyOf(out, count);
+	}
+
+	/**
+	 * Add a ring vertex to the output, optionally with one axis set to a value
+	 * 
+	 * @return New output count
+	 */
+	private static int addVertex(double[] out, int count, double[] ring, int vertex, int setAxis, double value) {
+		out[count] = setAxis == 0 ? value : ring[2 * vertex];
+		out[count + 1] = setAxis == 1 ? value : ring[2 * vertex + 1];
+		return count + 2;
+	}
+
+	private static boolean isInside(double coord, double value, boolean keepGreater) {
+		return keepGreater ? coord >= value : coord <= value;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
+import com.opendoorlogistics.speedregions.utils.GeomUtils;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Polyline held as coordinate arrays, for testing against the tree's rectangles without JTS. Lengths are planar with
+ * longitude scaled by the cosine of the polyline's mean latitude, which is accurate enough to compare the lengths of
+ * different parts of the same polyline.
+ * <p>
+ * The parts of the polyline within the leaves it touches are recorded using
+ * {@link #addLeaf(double, double, double, double, int)}, giving the majority region or the region intervals along the
+ * polyline. Not thread-safe; create one per query.
+ *
+ */
+final class Polyline {
+	private final double[] lngs;
+	private final double[] lats;
+	private final int n;
+	private final double minLng, maxLng, minLat, maxLat;
+	private final double lngScale;
+	private final double length;
+
+	/**
+	 * Length from the start to each point
+	 */
+	private final double[] cumulativeLength;
+	private final double[] fractions = new double[2];
+
+	/**
+	 * Parts of the polyline within each leaf added by {@link #addLeaf(double, double, double, double, int)}, as
+	 * fractions of the total length
+	 */
+	private double[] pieceFrom = new double[8];
+	private double[] pieceTo = new double[8];
+	private int[] pieceOrdinal = new int[8];
+	private int nbPieces;
+
+	Polyline(double[] lngs, double[] lats) {
+		if (lngs.length != lats.length) {
+			throw new RuntimeException("Longitude and latitude arrays must have the same length");
+		}
+		this.lngs = lngs;
+		this.lats = lats;
+		this.n = lngs.length;
+
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double sumLat = 0;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, lngs[i]);
+			maxX = Math.max(maxX, lngs[i]);
+			minY = Math.min(minY, lats[i]);
+			maxY = Math.max(maxY, lats[i]);
+			sumLat += lats[i];
+		}
+		minLng = minX;
+		maxLng = maxX;
+		minLat = minY;
+		maxLat = maxY;
+		lngScale = n > 0 ? Math.cos(Math.toRadians(sumLat / n)) : 1;
+
+		cumulativeLength = new double[n];
+		double sum = 0;
+		for (int i = 1; i < n; i++) {
+			sum += getSegmentLength(i - 1);
+			cumulativeLength[i] = sum;
+		}
+		length = sum;
+	}
+
+	static Polyline fromLineString(LineString lineString) {
+		Coordinate[] coords = lineString.getCoordinates();
+		double[] lngs = new double[coords.length];
+		double[] lats = new double[coords.length];
+		for (int i = 0; i < coords.length; i++) {
+			lngs[i] = coords[i].x;
+			lats[i] = coords[i].y;
+		}
+		return new Polyline(lngs, lats);
+	}
+
+	int getNbPoints() {
+		return n;
+	}
+
+	double getLng(int i) {
+		return lngs[i];
+	}
+
+	double getLat(int i) {
+		return lats[i];
+	}
+
+	double getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the (scaled) length of the segment from point i to point i+1
+	 * 
+	 * @param i
+	 * @return
+	 */
+	double getSegmentLength(int i) {
+		double dx = (lngs[i + 1] - lngs[i]) * lngScale;
+		double dy = lats[i + 1] - lats[i];
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Test if the polyline intersects or touches the rectangle. A single point polyline is treated as a point.
+	 * 
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @return
+	 */
+	boolean intersects(double minX, double maxX, double minY, double maxY) {
+		if (n == 0 || maxLng < minX || minLng > maxX || maxLat < minY || minLat > maxY) {
+			return false;
+		}
+		if (n == 1) {
+			return lngs[0] >= minX && lngs[0] <= maxX && lats[0] >= minY && lats[0] <= maxY;
+		}
+		for (int i = 1; i < n; i++) {
+			if (GeomUtils.segmentIntersectsRectangle(lngs[i - 1], lats[i - 1], lngs[i], lats[i], minX, maxX, minY, maxY)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Record the parts of the polyline within a leaf. Only call this when the polyline has a non-zero length.
+	 * 
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @param ordinal
+	 */
+	void addLeaf(double minX, double maxX, double minY, double maxY, int ordinal) {
+		for (int i = 1; i < n; i++) {
+			if (GeomUtils.clipSegmentToRectangle(lngs[i - 1], lats[i - 1], lngs[i], lats[i], minX, maxX, minY, maxY, fractions)
+					&& fractions[1] > fractions[0]) {
+				double segmentLength = cumulativeLength[i] - cumulativeLength[i - 1];
+				double from = (cumulativeLength[i - 1] + fractions[0] * segmentLength) / length;
+				double to = (cumulativeLength[i - 1] + fractions[1] * segmentLength) / length;
+				if (to > from) {
+					addPiece(from, to, ordinal);
+				}
+			}
+		}
+	}
+
+	private void addPiece(double from, double to, int ordinal) {
+		if (nbPieces == pieceOrdinal.length) {
+			pieceFrom = Arrays.copyOf(pieceFrom, 2 * nbPieces);
+			pieceTo = Arrays.copyOf(pieceTo, 2 * nbPieces);
+			pieceOrdinal = Arrays.copyOf(pieceOrdinal, 2 * nbPieces);
+		}
+		pieceFrom[nbPieces] = from;
+		pieceTo[nbPieces] = to;
+		pieceOrdinal[nbPieces] = ordinal;
+		nbPieces++;
+	}
+
+	/**
+	 * Get the region with the most length within the leaves added so far. If more of the polyline is outside all
+	 * regions than in any single region, there is no majority region. Ties go to the lowest ordinal.
+	 * 
+	 * @param nbOrdinals
+	 * @return Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 */
+	int getMajorityOrdinal(int nbOrdinals) {
+		double[] fractionByOrdinal = new double[nbOrdinals];
+		double sum = 0;
+		for (int i = 0; i < nbPieces; i++) {
+			fractionByOrdinal[pieceOrdinal[i]] += pieceTo[i] - pieceFrom[i];
+			sum += pieceTo[i] - pieceFrom[i];
+		}
+
+		int best = SpeedRegionConsts.NO_REGION_ORDINAL;
+		double bestFraction = 0;
+		for (int i = 0; i < nbOrdinals; i++) {
+			if (fractionByOrdinal[i] > bestFraction) {
+				best = i;
+				bestFraction = fractionByOrdinal[i];
+			}
+		}
+		if (1 - sum > bestFraction) {
+			return SpeedRegionConsts.NO_REGION_ORDINAL;
+		}
+		return best;
+	}
+
+	/**
+	 * Get the intervals along the polyline within each region, using the leaves added so far. The intervals cover
+	 * the whole polyline in order, with parts outside all regions given {@link SpeedRegionConsts#NO_REGION_ORDINAL},
+	 * and consecutive intervals always have different regions. If a polyline runs exactly along the shared edge of two
+	 * leaves, the overlapping part goes to whichever leaf's part starts first.
+	 * 
+	 * @return
+	 */
+	List<RegionInterval> getIntervals() {
+		// sort pieces by start, keeping the order they were added for equal starts
+		Integer[] order = new Integer[nbPieces];
+		for (int i = 0; i < nbPieces; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int diff = Double.compare(pieceFrom[o1], pieceFrom[o2]);
+				return diff != 0 ? diff : Integer.compare(o1, o2);
+			}
+		});
+
+		List<RegionInterval> ret = new ArrayList<>();
+		double end = 0;
+		for (int i : order) {
+			double from = Math.max(pieceFrom[i], end);
+			double to = pieceTo[i];
+			if (to <= from) {
+				// already covered
+				continue;
+			}
+			if (from > end) {
+				addInterval(ret, end, from, SpeedRegionConsts.NO_REGION_ORDINAL);
+			}
+			addInterval(ret, from, to, pieceOrdinal[i]);
+			end = to;
+		}
+		if (end < 1) {
+			addInterval(ret, end, 1, SpeedRegionConsts.NO_REGION_ORDINAL);
+		}
+		return ret;
+	}
+
+	private static void addInterval(List<RegionInterval> intervals, double from, double to, int ordinal) {
+		if (intervals.size() > 0) {
+			RegionInterval last = intervals.get(intervals.size() - 1);
+			if (last.getRegionOrdinal() == ordinal) {
+				last.setToFraction(to);
+				return;
+			}
+		}
+		intervals.add(new RegionInterval(from, to, ordinal));
+	}
+}
@@ -15,31 +15,207 @@
  */
 package com.opendoorlogistics.speedregions.spatialtree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.SpeedRegionLookup.LinestringMode;
+import com.opendoorlogistics.speedregions.beans.Bounds;
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
 import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 
+/**
+ * Queries the tree of node objects. The tree is never modified after construction and each query keeps its state in
+ * local objects, so a processor can be queried concurrently from any number of threads without locking. Node
+ * geometries are created lazily but safely published (see {@link RegionsSpatialTreeNodeWithGeometry}).
+ *
+ */
 public class QueryProcessor {
+	private final GeometryFactory factory;
 	private final RegionsSpatialTreeNodeWithGeometry root;
+	private final RegionTypeDictionary dictionary;
 
 	public QueryProcessor(GeometryFactory factory, RegionsSpatialTreeNode root) {
+		this(factory, root, RegionTypeDictionary.create(null, root));
+	}
+
+	/**
+	 * Create the query processor with region ordinals taken from the dictionary
+	 * @param factory
+	 * @param root
+	 * @param dictionary Dictionary which must contain all region types in the tree
+	 */
+	public QueryProcessor(GeometryFactory factory, RegionsSpatialTreeNode root, RegionTypeDictionary dictionary) {
 		// add geometry objects to the tree
-		this.root = new RegionsSpatialTreeNodeWithGeometry(factory, root);
+		this.factory = factory;
+		this.dictionary = dictionary;
+		this.root = new RegionsSpatialTreeNodeWithGeometry(root, dictionary);
 	}
 
 	public String query(Geometry edge) {
+		return dictionary.getRegionType(queryOrdinal(edge));
+	}
+
+	/**
+	 * Query a point without creating any geometry objects
+	 * @param lng
+	 * @param lat
+	 * @return
+	 */
+	public String query(double lng, double lat) {
+		return dictionary.getRegionType(queryOrdinal(lng, lat));
+	}
+
+	/**
+	 * Query returning the region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 * @param edge
+	 * @return
+	 */
+	public int queryOrdinal(Geometry edge) {
 		QueryObj queryObj = new QueryObj();
 		queryObj.geom = edge;
+		if (edge instanceof LineString) {
+			// fast path using segment-rectangle tests instead of JTS
+			queryObj.polyline = Polyline.fromLineString((LineString) edge);
+		}
+		queryRecurse(root, queryObj);
+		return queryObj.currentBestOrdinal;
+	}
+
+	/**
+	 * Query a linestring given as coordinate arrays, without creating any geometry objects
+	 * @param lngs
+	 * @param lats
+	 * @param mode
+	 * @return Region ordinal or {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 */
+	public int queryOrdinal(double[] lngs, double[] lats, LinestringMode mode) {
+		Polyline polyline = new Polyline(lngs, lats);
+		if (polyline.getNbPoints() == 0) {
+			return SpeedRegionConsts.NO_REGION_ORDINAL;
+		}
+
+		if (mode == LinestringMode.LENGTH_WEIGHTED_MAJORITY) {
+			if (polyline.getLength() == 0) {
+				return queryOrdinal(polyline.getLng(0), polyline.getLat(0));
+			}
+			addLeavesRecurse(root, polyline);
+			return polyline.getMajorityOrdinal(dictionary.size());
+		}
+
+		QueryObj queryObj = new QueryObj();
+		queryObj.polyline = polyline;
 		queryRecurse(root, queryObj);
-		return queryObj.currentBestId;
+		return queryObj.currentBestOrdinal;
+	}
+
+	/**
+	 * Split a polyline given as coordinate arrays into the intervals within each region
+	 * @param lngs
+	 * @param lats
+	 * @return Intervals covering the whole polyline in order (see {@link RegionInterval})
+	 */
+	public List<RegionInterval> queryIntervals(double[] lngs, double[] lats) {
+		Polyline polyline = new Polyline(lngs, lats);
+		if (polyline.getNbPoints() == 0) {
+			return new ArrayList<>();
+		}
+		if (polyline.getLength() == 0) {
+			return new ArrayList<>(Arrays.asList(new RegionInterval(0, 1, queryOrdinal(lngs[0], lats[0]))));
+		}
+		addLeavesRecurse(root, polyline);
+		return polyline.getIntervals();
+	}
+
+	/**
+	 * Add every leaf the polyline touches to it. Leaves don't overlap so there's no priority pruning.
+	 * @param node
+	 * @param polyline
+	 */
+	private static void addLeavesRecurse(RegionsSpatialTreeNodeWithGeometry node, Polyline polyline) {
+		Bounds b = node.getBounds();
+		if (!polyline.intersects(b.getMinLng(), b.getMaxLng(), b.getMinLat(), b.getMaxLat())) {
+			return;
+		}
+
+		if (node.getRegionType() != null) {
+			polyline.addLeaf(b.getMinLng(), b.getMaxLng(), b.getMinLat(), b.getMaxLat(), node.getRegionOrdinal());
+		} else {
+			int n = node.getChildren().size();
+			for (int i = 0; i < n; i++) {
+				addLeavesRecurse((RegionsSpatialTreeNodeWithGeometry) node.getChildren().get(i), polyline);
+			}
+		}
+	}
+
+	/**
+	 * Query a point without creating any geometry objects, returning the region ordinal or
+	 * {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 * @param lng
+	 * @param lat
+	 * @return
+	 */
+	public int queryOrdinal(double lng, double lat) {
+		RegionsSpatialTreeNodeWithGeometry best = queryLeaf(lng, lat);
+		return best != null ? best.getRegionOrdinal() : SpeedRegionConsts.NO_REGION_ORDINAL;
+	}
+
+	/**
+	 * Query a point, returning the highest priority leaf containing it or null if none. See
+	 * {@link FlatQueryProcessor#queryLeaf(double, double)} for how leaves can be reused.
+	 * @param lng
+	 * @param lat
+	 * @return
+	 */
+	RegionsSpatialTreeNodeWithGeometry queryLeaf(double lng, double lat) {
+		return queryPointRecurse(root, lng, lat, null);
+	}
+
+	/**
+	 * Point-only version of {@link #queryRecurse(RegionsSpatialTreeNodeWithGeometry, QueryObj)} which tests the bounds
+	 * directly on doubles and returns the best leaf found so-far, so no query object is needed.
+	 * @param node
+	 * @param lng
+	 * @param lat
+	 * @param best
+	 * @return
+	 */
+	private static RegionsSpatialTreeNodeWithGeometry queryPointRecurse(RegionsSpatialTreeNodeWithGeometry node, double lng, double lat,
+			RegionsSpatialTreeNodeWithGeometry best) {
+		if (best != null && node.getAssignedPriority() >= best.getAssignedPriority()) {
+			return best;
+		}
+
+		Bounds b = node.getBounds();
+		if (lng < b.getMinLng() || lng > b.getMaxLng() || lat < b.getMinLat() || lat > b.getMaxLat()) {
+			return best;
+		}
+
+		if (node.getRegionType() != null) {
+			return node;
+		}
+
+		int n = node.getChildren().size();
+		for (int i = 0; i < n; i++) {
+			best = queryPointRecurse((RegionsSpatialTreeNodeWithGeometry) node.getChildren().get(i), lng, lat, best);
+		}
+		return best;
 	}
 
 	private static class QueryObj {
 		Geometry geom;
-		String currentBestId;
+
+		/**
+		 * Set instead of (or as well as) the geometry for linestring queries
+		 */
+		Polyline polyline;
+		int currentBestOrdinal = SpeedRegionConsts.NO_REGION_ORDINAL;
 
 		// Remember priority is higher for numerically lower values!!
 		long currentBestPriority = Long.MAX_VALUE;
@@ -60,17 +236,27 @@ public class QueryProcessor {
 			return;
 		}
 
-		if(obj.geom instanceof Point){
+		if (obj.polyline != null) {
+			Bounds b = node.getBounds();
+			if (!obj.polyline.intersects(b.getMinLng(), b.getMaxLng(), b.getMinLat(), b.getMaxLat())) {
+				return;
+			}
+		}
+		else if(obj.geom instanceof Point){
 			// Version of JTS used appears not to support optimised point-in-rectangle tests yet, so we do it explicitly here
+			// (this uses the bounds so no envelope or geometry is created for the node)
 			Coordinate coordinate = ((Point)obj.geom).getCoordinate();
-			Envelope envelope = node.getEnvelope();
-			if(!envelope.contains(coordinate)){
+			Bounds b = node.getBounds();
+			if (coordinate.x < b.getMinLng() || coordinate.x > b.getMaxLng() || coordinate.y < b.getMinLat()
+					|| coordinate.y > b.getMaxLat()) {
 				return;
 			}
 		}
 		else{
-			// General case (e.g. for a linestring). This still does a bounding box test first before doing the expensive one
-			if (!node.getGeometry().intersects(obj.geom)) {
+			// General case for geometries other than points and linestrings (linestrings take the polyline
+			// path above). Do a bounding box test first before creating the node geometry and doing the expensive one
+			if (!node.getEnvelope().intersects(obj.geom.getEnvelopeInternal())
+					|| !node.getGeometry(factory).intersects(obj.geom)) {
 				return;
 			}			
 		}
@@ -82,7 +268,7 @@ public class QueryProcessor {
 			// (numerically lower) priority than already found, so take the node
 			// is the node higher priority than the current result?
 			obj.currentBestPriority = node.getAssignedPriority();
-			obj.currentBestId = node.getRegionType();
+			obj.currentBestOrdinal = node.getRegionOrdinal();
 
 		} else {
 			// Children are sorted by priority so we do highest (numerically lowest) first.
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
+import com.opendoorlogistics.speedregions.utils.AbstractNode;
+import com.opendoorlogistics.speedregions.utils.AbstractNode.NodeVisitor;
+
+/**
+ * Dense dictionary mapping standardised region types to integer ordinals (0...n-1), so the hot query path can work on
+ * ints instead of strings. Region types are added in the order they're first seen, which for the
+ * {@link TreeBuilder} is polygon priority order. The same String instance is returned for every lookup of a region
+ * type, so trees interned against the dictionary share their region type strings.
+ * <p>
+ * The dictionary is not synchronised. Once populated it can be safely read from multiple threads.
+ * 
+ */
+public class RegionTypeDictionary {
+	private final HashMap<String, Integer> ordinals = new HashMap<>();
+	private final ArrayList<String> regionTypes = new ArrayList<>();
+
+	public RegionTypeDictionary() {
+
+	}
+
+	public RegionTypeDictionary(List<String> standardisedRegionTypes) {
+		for (String regionType : standardisedRegionTypes) {
+			intern(regionType);
+		}
+	}
+
+	/**
+	 * Get the ordinal for the region type, adding it to the dictionary if not already present
+	 * 
+	 * @param standardisedRegionType
+	 * @return
+	 */
+	public int intern(String standardisedRegionType) {
+		Integer ret = ordinals.get(standardisedRegionType);
+		if (ret == null) {
+			ret = regionTypes.size();
+			regionTypes.add(standardisedRegionType);
+			ordinals.put(standardisedRegionType, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the canonical String instance for the region type, adding it to the dictionary if needed
+	 * 
+	 * @param standardisedRegionType
+	 * @return
+	 */
+	public String internString(String standardisedRegionType) {
+		return getRegionType(intern(standardisedRegionType));
+	}
+
+	/**
+	 * Get the ordinal for the region type or {@link SpeedRegionConsts#NO_REGION_ORDINAL} if not in the dictionary
+	 * 
+	 * @param standardisedRegionType
+	 * @return
+	 */
+	public int getOrdinal(String standardisedRegionType) {
+		if (standardisedRegionType == null) {
+			return SpeedRegionConsts.NO_REGION_ORDINAL;
+		}
+		Integer ret = ordinals.get(standardisedRegionType);
+		return ret != null ? ret : SpeedRegionConsts.NO_REGION_ORDINAL;
+	}
+
+	/**
+	 * Get the region type or null if the ordinal is {@link SpeedRegionConsts#NO_REGION_ORDINAL}
+	 * 
+	 * @param ordinal
+	 * @return
+	 */
+	public String getRegionType(int ordinal) {
+		return ordinal != SpeedRegionConsts.NO_REGION_ORDINAL ? regionTypes.get(ordinal) : null;
+	}
+
+	public int size() {
+		return regionTypes.size();
+	}
+
+	/**
+	 * Get a copy of the region types, indexed by ordinal
+	 * 
+	 * @return
+	 */
+	public List<String> getRegionTypes() {
+		return Collections.unmodifiableList(new ArrayList<>(regionTypes));
+	}
+
+	/**
+	 * Replace the region type strings in the tree with the dictionary's canonical instances, adding any region types
+	 * not already in the dictionary
+	 * 
+	 * @param root
+	 */
+	public void internTree(RegionsSpatialTreeNode root) {
+		root.visitNodes(new NodeVisitor() {
+
+			@Override
+			public boolean visit(AbstractNode node) {
+				RegionsSpatialTreeNode rn = (RegionsSpatialTreeNode) node;
+				if (rn.getRegionType() != null) {
+					rn.setRegionType(internString(rn.getRegionType()));
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Create the dictionary for a compiled tree. If the list of region types saved with the tree is null (e.g. older
+	 * compiled files) the dictionary is created from the tree leaves instead.
+	 * 
+	 * @param standardisedRegionTypes
+	 * @param root
+	 * @return
+	 */
+	public static RegionTypeDictionary create(List<String> standardisedRegionTypes, RegionsSpatialTreeNode root) {
+		RegionTypeDictionary ret = standardisedRegionTypes != null ? new RegionTypeDictionary(standardisedRegionTypes)
+				: new RegionTypeDictionary();
+		if (root != null) {
+			ret.internTree(root);
+		}
+		return ret;
+	}
+}
@@ -15,75 +15,114 @@
  */
 package com.opendoorlogistics.speedregions.spatialtree;
 
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
 import com.opendoorlogistics.speedregions.beans.Bounds;
 import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
+/**
+ * Tree node with an integer region ordinal and a JTS envelope and geometry for query processing. The envelope and
+ * geometry are only created on demand, so nodes which are only tested against points (or only used during building)
+ * never create them. Lazy creation is thread-safe; two threads may race to create the same object but only
+ * identical objects will be published.
+ */
 class RegionsSpatialTreeNodeWithGeometry extends RegionsSpatialTreeNode{
-	private Geometry geometry;
-	private Envelope envelope;
+	private volatile Geometry geometry;
+	private volatile Envelope envelope;
+	private int regionOrdinal = SpeedRegionConsts.NO_REGION_ORDINAL;
 
-	public RegionsSpatialTreeNodeWithGeometry(GeometryFactory factory, Bounds bounds){
+	/**
+	 * Split decisions cached by the {@link TreeBuilder}, or -1 if not calculated yet
+	 */
+	private byte splitFlags = -1;
+
+	public RegionsSpatialTreeNodeWithGeometry(Bounds bounds){
 		setBounds(bounds);
-		initGeometry(factory);
 	}
 
-	private void initGeometry(GeometryFactory factory) {
-		this.envelope = getBounds().asEnvelope();
-		this.geometry = factory.toGeometry(envelope);
-		
-
-	}
-	
-	public Geometry getExpandedGeometry(GeometryFactory factory,double expandFraction){
-		// work out centre and width
-		Bounds bounds = getBounds();
-		double centreLng = 0.5*(bounds.getMinLng() + bounds.getMaxLng());
-		double centreLat = 0.5*(bounds.getMinLat() + bounds.getMaxLat());
-		double widthLng = bounds.getMaxLng() - bounds.getMinLng();
-		double heightLat = bounds.getMaxLat() - bounds.getMinLat();
-		
-		// get expanded bounds
-		double fraction = 0.5 + expandFraction*0.5;
-		double xMinLng = centreLng - widthLng * fraction;
-		double xMaxLng = centreLng + widthLng * fraction;
-		double xMinLat= centreLat - heightLat * fraction;
-		double xMaxLat = centreLat + heightLat * fraction;
-		Bounds xBounds = new Bounds(xMinLng, xMaxLng, xMinLat, xMaxLat);
-		Geometry xGeometry = factory.toGeometry(xBounds.asEnvelope());
-		
-		return xGeometry;
+	/**
+	 * Copy the node and its descendants
+	 * @param node
+	 */
+	public RegionsSpatialTreeNodeWithGeometry(RegionsSpatialTreeNode node){
+		this(node, null);
 	}
 	
 	/**
-	 * Copy and create geometry object
-	 * @param factory
+	 * Copy the node and its descendants, also setting the region ordinal from the dictionary
+	 * if its non-null
 	 * @param node
+	 * @param dictionary
 	 */
-	public RegionsSpatialTreeNodeWithGeometry(GeometryFactory factory , RegionsSpatialTreeNode node){
+	public RegionsSpatialTreeNodeWithGeometry(RegionsSpatialTreeNode node, RegionTypeDictionary dictionary){
 		RegionsSpatialTreeNode.copyNonChildFields(node, this);
-		initGeometry(factory);
+		if(dictionary!=null){
+			regionOrdinal = dictionary.getOrdinal(getRegionType());
+		}
 		for(RegionsSpatialTreeNode childToCopy: node.getChildren()){
-			getChildren().add(new RegionsSpatialTreeNodeWithGeometry(factory,childToCopy));
+			getChildren().add(new RegionsSpatialTreeNodeWithGeometry(childToCopy, dictionary));
 		}
 	}
 	
-	public static RegionsSpatialTreeNodeWithGeometry createGlobal(GeometryFactory factory){
-		RegionsSpatialTreeNodeWithGeometry ret = new RegionsSpatialTreeNodeWithGeometry(factory,Bounds.createGlobal());
-		ret.setBounds(Bounds.createGlobal());
-		return ret;
+	public static RegionsSpatialTreeNodeWithGeometry createGlobal(){
+		return new RegionsSpatialTreeNodeWithGeometry(Bounds.createGlobal());
 	}
 	
-	public Geometry getGeometry() {
-		return geometry;
+	/**
+	 * Get the node's rectangle as a geometry, creating it on first use
+	 * @param factory
+	 * @return
+	 */
+	public Geometry getGeometry(GeometryFactory factory) {
+		Geometry ret = geometry;
+		if (ret == null) {
+			ret = factory.toGeometry(getEnvelope());
+
+			// JTS caches a geometry's envelope in a non-volatile field on first use, so make sure
+			// it's calculated before publishing to other threads
+			ret.getEnvelopeInternal();
+			geometry = ret;
+		}
+		return ret;
 	}
 
+	/**
+	 * Get the node's envelope, creating it on first use
+	 * @return
+	 */
 	public Envelope getEnvelope() {
-		return envelope;
+		Envelope ret = envelope;
+		if (ret == null) {
+			ret = getBounds().asEnvelope();
+			envelope = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Region ordinal for leaf nodes or {@link SpeedRegionConsts#NO_REGION_ORDINAL}. 
+	 * This is only set when the node is created using a {@link RegionTypeDictionary}.
+	 * @return
+	 */
+	public int getRegionOrdinal() {
+		return regionOrdinal;
+	}
+
+	/**
+	 * Get the split decisions cached by the {@link TreeBuilder}. A node is only ever processed by one builder thread
+	 * at a time so no synchronisation is needed.
+	 * @return The flags or -1 if they haven't been set
+	 */
+	byte getSplitFlags() {
+		return splitFlags;
+	}
+
+	void setSplitFlags(byte splitFlags) {
+		this.splitFlags = splitFlags;
 	}
 
 
 	
-}
\ No newline at end of file
+}
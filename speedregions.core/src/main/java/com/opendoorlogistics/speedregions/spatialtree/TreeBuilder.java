@@ -20,9 +20,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Logger;
 
 import org.geojson.Feature;
@@ -32,28 +34,47 @@ import org.geojson.LngLatAlt;
 import com.opendoorlogistics.speedregions.SpeedRegionConsts;
 import com.opendoorlogistics.speedregions.beans.Bounds;
 import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
+import com.opendoorlogistics.speedregions.spatialtree.IndexedPolygon.Classification;
 import com.opendoorlogistics.speedregions.utils.GeomUtils;
 import com.opendoorlogistics.speedregions.utils.TextUtils;
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.Polygon;
 
 public class TreeBuilder {
 	private static final double INTERSECTION_GEOM_SAFETY_FRACTION = 0.01;
 	private static final Logger LOGGER = Logger.getLogger(TreeBuilder.class.getName());
 
 	private final static double MIN_SIDES_RATIO = 0.25;
-	private final GeometryFactory geomFactory;
+
+	/**
+	 * In parallel mode, only fork tasks for subtrees down to this depth. Below it the subtrees are small enough that
+	 * the task overhead isn't worth it.
+	 */
+	private static final int MAX_PARALLEL_DEPTH = 12;
+
 	private final RegionsSpatialTreeNodeWithGeometry root;
 	private final double minLengthMetres;
-	private long nextPolygonPriority = 1;
+	private final ForkJoinPool pool;
+	private final long priorityStep;
+	private long nextPolygonPriority;
+
+	/**
+	 * Polygons added so far in priority order, only kept for an incremental builder
+	 */
+	private final ArrayList<PolygonRecord> polygons;
+	private final RegionTypeDictionary dictionary;
+
+	private TreeBuilder(double minSideLengthMetres, int parallelism) {
+		this(minSideLengthMetres, parallelism, null);
+	}
 
-	private TreeBuilder(GeometryFactory geomFactory, double minSideLengthMetres) {
-		this.geomFactory = geomFactory;
-		this.root = RegionsSpatialTreeNodeWithGeometry.createGlobal(geomFactory);
+	private TreeBuilder(double minSideLengthMetres, int parallelism, RegionTypeDictionary incrementalDictionary) {
+		this.root = RegionsSpatialTreeNodeWithGeometry.createGlobal();
 		this.minLengthMetres = minSideLengthMetres;
+		this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		this.dictionary = incrementalDictionary;
+		this.polygons = incrementalDictionary != null ? new ArrayList<PolygonRecord>() : null;
+		this.priorityStep = incrementalDictionary != null ? INCREMENTAL_PRIORITY_STEP : 1;
+		this.nextPolygonPriority = priorityStep;
 
 		// distance calculations aren't valid if we stretch round the whole globe
 		// so we split the globe into quarters first to ensure they can be done
@@ -73,9 +94,41 @@ public class TreeBuilder {
 		}
 	}
 
-	private boolean isVerticallySplittable(Bounds b) {
-		double newWidth = GeomUtils.getWidthMetres(b) / 2;
-		double ratio = newWidth / GeomUtils.getHeightMetres(b);
+	/**
+	 * Split flags cached on each node, see {@link #getSplitFlags(RegionsSpatialTreeNodeWithGeometry)}
+	 */
+	private static final byte SPLIT_HORIZONTAL = 1;
+	private static final byte SPLIT_VERTICAL = 2;
+
+	/**
+	 * Get whether the node can be split horizontally and / or vertically. The splittability tests need great circle
+	 * distances, which are relatively expensive trigonometry, and a node is tested every time a polygon reaches it.
+	 * A node's bounds never change so the result is calculated once and stored on the node.
+	 * 
+	 * @param node
+	 * @return Bitwise combination of {@link #SPLIT_HORIZONTAL} and {@link #SPLIT_VERTICAL}
+	 */
+	private byte getSplitFlags(RegionsSpatialTreeNodeWithGeometry node) {
+		byte flags = node.getSplitFlags();
+		if (flags == -1) {
+			Bounds b = node.getBounds();
+			double width = GeomUtils.getWidthMetres(b);
+			double height = GeomUtils.getHeightMetres(b);
+			flags = 0;
+			if (isHorizontallySplittable(width, height)) {
+				flags |= SPLIT_HORIZONTAL;
+			}
+			if (isVerticallySplittable(width, height)) {
+				flags |= SPLIT_VERTICAL;
+			}
+			node.setSplitFlags(flags);
+		}
+		return flags;
+	}
+
+	private boolean isVerticallySplittable(double widthMetres, double heightMetres) {
+		double newWidth = widthMetres / 2;
+		double ratio = newWidth / heightMetres;
 		return isOkSidesRatio(ratio) && newWidth > minLengthMetres;
 	}
 
@@ -83,9 +136,9 @@ public class TreeBuilder {
 		return ratio >= (MIN_SIDES_RATIO - 0.0001);
 	}
 
-	private boolean isHorizontallySplittable(Bounds b) {
-		double newHeight = GeomUtils.getHeightMetres(b) / 2;
-		double ratio = newHeight / GeomUtils.getWidthMetres(b);
+	private boolean isHorizontallySplittable(double widthMetres, double heightMetres) {
+		double newHeight = heightMetres / 2;
+		double ratio = newHeight / widthMetres;
 		return isOkSidesRatio(ratio) && newHeight > minLengthMetres;
 	}
 
@@ -199,7 +252,7 @@ public class TreeBuilder {
 		return true;
 	}
 
-	private void addRecursively(RegionsSpatialTreeNodeWithGeometry node, int depth, Polygon originalGeometry, String geometryId) {
+	private void addRecursively(RegionsSpatialTreeNodeWithGeometry node, int depth, IndexedPolygon original, String geometryId, long priority) {
 		// check if node is already assigned, nodes are assigned to the first geometry
 		// that (a) totally encloses them, or (b) if the node is split to the finest granularity level,
 		// the first geometry they intersect
@@ -207,124 +260,115 @@ public class TreeBuilder {
 			return;
 		}
 
-		// Getting the intersection goes straight into costly operations so do envelopes first
-		Envelope ogEnvelope = originalGeometry.getEnvelopeInternal();
-		Envelope nEnvelope = node.getEnvelope();
-		if (!ogEnvelope.intersects(nEnvelope)) {
+		// Clipping goes straight into costly operations so do envelopes first
+		Bounds b = node.getBounds();
+		if (!original.envelopeIntersects(b.getMinLng(), b.getMaxLng(), b.getMinLat(), b.getMaxLat())) {
 			return;
 		}
 
-		// We're getting nodes on boundaries which aren't properly assigned.
-		// Get a slightly larger intersection geometry (e.g. 10% larger than node)
-		// and use this as the 'cut-down' / filtered geometry to test against
-		Geometry expandedNodeGeometry = node.getExpandedGeometry(geomFactory, INTERSECTION_GEOM_SAFETY_FRACTION);
-		Envelope expandedEnvelope = expandedNodeGeometry.getEnvelopeInternal();
-		
-		// Get intersection with the node.
-		// We can quit if the intersection is empty and crucially all calculations
-		// within this node and its children only need to be done on the intersecting geometry,
-		// so we cut out massive amount of geometry - thereby speeding up processing lots
-		Geometry intersection =null;
-		if(expandedEnvelope.contains(ogEnvelope)){
-			// If the expanded envelope totally contains the original geometry envelope,
-			// then the intersection is the original geometry...
-			intersection = originalGeometry;
-		}else if( !isHorizontallySplittable(node.getBounds()) && !isVerticallySplittable(node.getBounds())){
-			// Don't bother doing the intersection test if the node is no longer splittable (which will be the majority of nodes)
-			// In this scenario the insertion result will not be reused effectively.
-			intersection = originalGeometry;
-		}
-		else
-		{
-			// Do full intersection
-			intersection = originalGeometry.intersection(expandedNodeGeometry);			
-		}
-		
-		// Ensure geometry is a polygon(s).
-		// The intersection can sometimes create a GEOMETRYCOLLECTION containing polygons which gives an
-		// exception in the JTS contains function.
-		// Theoretically it might be able to create points and lines too.
-		LinkedList<Polygon> polygons = GeomUtils.getPolygons(intersection);
-		if (polygons.size() < originalGeometry.getNumGeometries()) {
-			LOGGER.info(
-					"...Had " + originalGeometry.getNumGeometries() + " input geometries but only " + polygons.size() + " polygons found.");
-		}
-		for (Polygon polygon : polygons) {
-
-			// Do proper intersection test for the individual polygon
-			if (polygon.intersects(node.getGeometry())) {
-
-				if (node.getChildren().size() == 0) {
-					
-					// No children already. Assign and return if:
-					// (a) a node is totally contained by the polygon or
-					// (b) we can't split the node anymore
-					if (isNodeAssign(node, polygon)) {
-						node.setRegionType(geometryId);
-						node.setAssignedPriority(nextPolygonPriority);
-
-						// No need to process any more polygons as node is assigned...
-						return;
-					}
-					else{
-						splitNode(node, depth, polygon);		
-					}
-				}
-				
-				// Must have child nodes at this point
-				
-//				// If already we have children then pass down to them
-//				if (node.getChildren().size() > 0) {
-//					for (SpatialTreeNode child : node.getChildren()) {
-//						addRecursively((SpatialTreeNodeWithGeometry) child, depth + 1, polygon, geometryId);
-//					}
-//				} else {
-//					// No children already. Assign and return if:
-//					// (a) a node is totally contained by the polygon or
-//					// (b) we can't split the node anymore
-//					if (isNodeAssign(node, polygon)) {
-//						node.setRegionType(geometryId);
-//						node.setAssignedPriority(nextPolygonPriority);
-//
-//						// No need to process any more polygons as node is assigned...
-//						return;
-//					}
-//					else{
-//	
-//						// Split and add to the child geometries after split
-//						splitNode(node, depth, polygon);
-//						for (SpatialTreeNode child : node.getChildren()) {
-//							addRecursively((SpatialTreeNodeWithGeometry) child, depth + 1, polygon, geometryId);
-//						}
-//					}
-//
-//				}
-				
-				
-				// Add to children
-				for (RegionsSpatialTreeNode child : node.getChildren()) {
-					addRecursively((RegionsSpatialTreeNodeWithGeometry) child, depth + 1, polygon, geometryId);
-				}
-				
-				// Try to recombine node and quit if this means the node is now assigned
-				recombineChildrenIfPossible(node);
-				if (node.getRegionType() != null) {
-					return;
-				}
+		// Clip the polygon to the node so all calculations within this node and its children
+		// only need to be done on the clipped polygon, cutting out massive amounts of geometry.
+		// We clip to a slightly larger rectangle than the node so boundary nodes are properly assigned.
+		// Don't bother clipping if the node is no longer splittable (which will be the majority of nodes)
+		// as the clipped polygon won't be reused.
+		boolean splittable = getSplitFlags(node) != 0;
+		IndexedPolygon polygon = original;
+		if (splittable) {
+			double expandLng = (b.getMaxLng() - b.getMinLng()) * INTERSECTION_GEOM_SAFETY_FRACTION * 0.5;
+			double expandLat = (b.getMaxLat() - b.getMinLat()) * INTERSECTION_GEOM_SAFETY_FRACTION * 0.5;
+			double minX = b.getMinLng() - expandLng;
+			double maxX = b.getMaxLng() + expandLng;
+			double minY = b.getMinLat() - expandLat;
+			double maxY = b.getMaxLat() + expandLat;
+
+			// If the expanded rectangle totally contains the polygon the clipped polygon is the original
+			if (!original.envelopeWithin(minX, maxX, minY, maxY)) {
+				polygon = original.clip(minX, maxX, minY, maxY);
+			}
+		}
+
+		Classification classification = polygon.classify(b);
+		if (classification == Classification.OUTSIDE) {
+			return;
+		}
+
+		if (node.getChildren().size() == 0) {
+
+			// No children already. Assign and return if:
+			// (a) a node is totally contained by the polygon or
+			// (b) we can't split the node anymore
+			if (!splittable || classification == Classification.INSIDE) {
+				node.setRegionType(geometryId);
+				node.setAssignedPriority(priority);
+				return;
+			} else {
+				splitNode(node, depth, polygon);
 			}
 		}
 
+		// Must have child nodes at this point so add to them
+		addToChildren(node, depth + 1, polygon, geometryId, priority);
+
+		// Try to recombine node
+		recombineChildrenIfPossible(node);
 	}
 
-	private boolean isNodeAssign(RegionsSpatialTreeNodeWithGeometry node, Polygon polygon) {
-		boolean assignNode = !isHorizontallySplittable(node.getBounds()) && !isVerticallySplittable(node.getBounds());
-		if (!assignNode) {
-			// The contains test is expensive, so we only do it after the cheap test
-			if (polygon.contains(node.getGeometry())) {
-				assignNode = true;
+	/**
+	 * Add the polygon to each child of the node. Each child's subtree is independent once the polygon has been
+	 * clipped to the parent, so in parallel mode the children are processed as separate fork-join tasks. The next
+	 * polygon is only added once all tasks for this polygon have finished, so priority order is unchanged.
+	 * 
+	 * @param node
+	 * @param childDepth
+	 * @param polygon
+	 * @param geometryId
+	 * @param priority
+	 */
+	private void addToChildren(RegionsSpatialTreeNodeWithGeometry node, int childDepth, IndexedPolygon polygon, String geometryId,
+			long priority) {
+		List<RegionsSpatialTreeNode> children = node.getChildren();
+		if (pool != null && childDepth <= MAX_PARALLEL_DEPTH && children.size() > 1) {
+			List<AddTask> tasks = new ArrayList<>(children.size());
+			for (RegionsSpatialTreeNode child : children) {
+				tasks.add(new AddTask((RegionsSpatialTreeNodeWithGeometry) child, childDepth, polygon, geometryId, priority));
+			}
+			ForkJoinTask.invokeAll(tasks);
+		} else {
+			for (RegionsSpatialTreeNode child : children) {
+				addRecursively((RegionsSpatialTreeNodeWithGeometry) child, childDepth, polygon, geometryId, priority);
 			}
 		}
-		return assignNode;
+	}
+
+	private class AddTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RegionsSpatialTreeNodeWithGeometry node;
+		private final int depth;
+		private final IndexedPolygon polygon;
+		private final String geometryId;
+		private final long priority;
+
+		AddTask(RegionsSpatialTreeNodeWithGeometry node, int depth, IndexedPolygon polygon, String geometryId, long priority) {
+			this.node = node;
+			this.depth = depth;
+			this.polygon = polygon;
+			this.geometryId = geometryId;
+			this.priority = priority;
+		}
+
+		@Override
+		protected void compute() {
+			addRecursively(node, depth, polygon, geometryId, priority);
+		}
+	}
+
+	private void addToRoot(IndexedPolygon polygon, String geometryId, long priority) {
+		// IndexedPolygon is immutable so can be shared between threads
+		if (pool != null) {
+			pool.invoke(new AddTask(root, 0, polygon, geometryId, priority));
+		} else {
+			addRecursively(root, 0, polygon, geometryId, priority);
+		}
 	}
 
 	/**
@@ -335,10 +379,11 @@ public class TreeBuilder {
 	 * @param depth
 	 * @param polygon
 	 */
-	private void splitNode(RegionsSpatialTreeNodeWithGeometry node, int depth, Polygon polygon) {
+	private void splitNode(RegionsSpatialTreeNodeWithGeometry node, int depth, IndexedPolygon polygon) {
 		Bounds b = node.getBounds();
-		boolean horizSplitOK = isHorizontallySplittable(b);
-		boolean verticalSplitOK = isVerticallySplittable(b);
+		byte flags = getSplitFlags(node);
+		boolean horizSplitOK = (flags & SPLIT_HORIZONTAL) != 0;
+		boolean verticalSplitOK = (flags & SPLIT_VERTICAL) != 0;
 		if (!horizSplitOK && !verticalSplitOK) {
 			throw new RuntimeException("Only call this method on a node which can split at least horizontally or vertically");
 		}
@@ -348,41 +393,38 @@ public class TreeBuilder {
 		} else if (!verticalSplitOK) {
 			node.getChildren().addAll(getHorizontalSplit(b));
 		} else {
-			// General case. Test both splits. If one gives a non-intersecting side, take that
-			// horizontal split along line of constant latitude
-			List<RegionsSpatialTreeNodeWithGeometry> hSplitList = getHorizontalSplit(b);
-			boolean hGood = isGoodSplit(polygon, hSplitList);
+			// General case. Test both splits. If one gives a non-intersecting side, take that.
+			// The trial splits are tested on the bounds only, so we only create nodes for the chosen split.
+			// Horizontal split along line of constant latitude
+			double latCentre = GeomUtils.getLatCentre(b);
+			boolean hGood = isIntersecting(polygon, b.getMinLng(), b.getMaxLng(), b.getMinLat(), latCentre) != isIntersecting(polygon,
+					b.getMinLng(), b.getMaxLng(), latCentre, b.getMaxLat());
 
 			// vertical split along line of constant longitude
-			List<RegionsSpatialTreeNodeWithGeometry> vSplitList = getVerticalSplit(b);
-			boolean vGood = isGoodSplit(polygon, vSplitList);
+			double lngCentre = GeomUtils.getLngCentre(b);
+			boolean vGood = isIntersecting(polygon, b.getMinLng(), lngCentre, b.getMinLat(), b.getMaxLat()) != isIntersecting(polygon,
+					lngCentre, b.getMaxLng(), b.getMinLat(), b.getMaxLat());
 
-			List<RegionsSpatialTreeNodeWithGeometry> chosen = null;
+			boolean horizontal;
 			if (hGood && !vGood) {
-				chosen = hSplitList;
+				horizontal = true;
 			} else if (!hGood && vGood) {
-				chosen = vSplitList;
-			} else if (depth % 2 == 0) {
-				chosen = hSplitList;
+				horizontal = false;
 			} else {
-				chosen = vSplitList;
+				horizontal = depth % 2 == 0;
 			}
-			node.getChildren().addAll(chosen);
+			node.getChildren().addAll(horizontal ? getHorizontalSplit(b) : getVerticalSplit(b));
 
 		}
 	}
 
-	private boolean isGoodSplit(Polygon geometry, List<RegionsSpatialTreeNodeWithGeometry> hSplitList) {
-		return isIntersecting(hSplitList.get(0), geometry) != isIntersecting(hSplitList.get(1), geometry);
-	}
-
 	private List<RegionsSpatialTreeNodeWithGeometry> getVerticalSplit(Bounds b) {
 		List<RegionsSpatialTreeNodeWithGeometry> vSplitList = new ArrayList<>(2);
 		double dLngCentre = GeomUtils.getLngCentre(b);
 		for (int i = 0; i <= 1; i++) {
 			double lngMin = i == 0 ? b.getMinLng() : dLngCentre;
 			double lngMax = i == 0 ? dLngCentre : b.getMaxLng();
-			vSplitList.add(new RegionsSpatialTreeNodeWithGeometry(geomFactory, new Bounds(lngMin, lngMax, b.getMinLat(), b.getMaxLat())));
+			vSplitList.add(new RegionsSpatialTreeNodeWithGeometry(new Bounds(lngMin, lngMax, b.getMinLat(), b.getMaxLat())));
 		}
 		return vSplitList;
 	}
@@ -393,13 +435,13 @@ public class TreeBuilder {
 		for (int i = 0; i <= 1; i++) {
 			double latMin = i == 0 ? b.getMinLat() : dLatCentre;
 			double latMax = i == 0 ? dLatCentre : b.getMaxLat();
-			hSplitList.add(new RegionsSpatialTreeNodeWithGeometry(geomFactory, new Bounds(b.getMinLng(), b.getMaxLng(), latMin, latMax)));
+			hSplitList.add(new RegionsSpatialTreeNodeWithGeometry(new Bounds(b.getMinLng(), b.getMaxLng(), latMin, latMax)));
 		}
 		return hSplitList;
 	}
 
-	private boolean isIntersecting(RegionsSpatialTreeNodeWithGeometry node, Geometry geometry) {
-		return node.getGeometry().intersects(geometry);
+	private boolean isIntersecting(IndexedPolygon polygon, double minLng, double maxLng, double minLat, double maxLat) {
+		return polygon.classify(minLng, maxLng, minLat, maxLat) != Classification.OUTSIDE;
 	}
 
 	private void recurseFinaliseNode(RegionsSpatialTreeNode node) {
@@ -458,20 +500,56 @@ public class TreeBuilder {
 		return build(Arrays.asList(fc), minDiagonalLengthMetres);
 	}
 
+	public static RegionsSpatialTreeNode build(List<FeatureCollection> featureCollections, double minDiagonalLengthMetres) {
+		return build(featureCollections, minDiagonalLengthMetres, new RegionTypeDictionary());
+	}
+
 	/**
 	 * Build the spatial tree, giving priority to polygons based on their order within each feature collection.
 	 * 
+	 * Region types are interned into the dictionary in priority order, so all tree nodes with the same region type
+	 * share the same String instance.
+	 * 
 	 * @param featureCollections
 	 * @param minDiagonalLengthMetres
+	 * @param dictionary
 	 * @return
 	 */
-	public static RegionsSpatialTreeNode build(List<FeatureCollection> featureCollections, double minDiagonalLengthMetres) {
+	public static RegionsSpatialTreeNode build(List<FeatureCollection> featureCollections, double minDiagonalLengthMetres,
+			RegionTypeDictionary dictionary) {
+		return build(featureCollections, minDiagonalLengthMetres, dictionary, 1);
+	}
+
+	/**
+	 * Build the spatial tree, giving priority to polygons based on their order within each feature collection.
+	 * Polygons are still added one at a time in priority order, but if parallelism is greater than 1 the insertion of
+	 * each polygon is spread over independent subtrees using a fork-join pool. The built tree is identical to the
+	 * single-threaded one.
+	 * 
+	 * @param featureCollections
+	 * @param minDiagonalLengthMetres
+	 * @param dictionary
+	 * @param parallelism
+	 *            Number of threads to use. 1 or less builds on the calling thread.
+	 * @return
+	 */
+	public static RegionsSpatialTreeNode build(List<FeatureCollection> featureCollections, double minDiagonalLengthMetres,
+			RegionTypeDictionary dictionary, int parallelism) {
 		LOGGER.info("Starting build of spatial tree");
 
-		GeometryFactory geomFactory = GeomUtils.newGeomFactory();
 		TreeSet<TempPolygonRecord> prioritised = prioritisePolygons(featureCollections);
 
-		TreeBuilder builder = new TreeBuilder(geomFactory, minDiagonalLengthMetres);
+		TreeBuilder builder = new TreeBuilder(minDiagonalLengthMetres, parallelism);
+		try {
+			return builder.buildPrioritised(prioritised, dictionary);
+		} finally {
+			if (builder.pool != null) {
+				builder.pool.shutdown();
+			}
+		}
+	}
+
+	private RegionsSpatialTreeNode buildPrioritised(TreeSet<TempPolygonRecord> prioritised, RegionTypeDictionary dictionary) {
 		long count = 0;
 		for (TempPolygonRecord poly : prioritised) {
 			// count points in polygon for logging only
@@ -482,13 +560,294 @@ public class TreeBuilder {
 			
 			// don't countnodes in the output here as its slow for large trees.
 			LOGGER.info("Adding polygon " + count++ + "/" + prioritised.size() + " containing " + pointsCount+ " points to spatial tree.");
-			com.vividsolutions.jts.geom.Polygon jtsPolygon = GeomUtils.toJTS(geomFactory, poly.polygon);
-			builder.addRecursively(builder.root, 0, jtsPolygon, poly.stdRegionType);
-			builder.nextPolygonPriority++;
+			addPolygon(IndexedPolygon.fromGeoJSON(poly.polygon), dictionary.internString(poly.stdRegionType));
 			// builder.add(jtsPolygon, poly.stdRegionType);
 		}
-		LOGGER.info("Spatial tree has " + builder.root.countNodes() +" nodes");
-		return builder.finishBuilding();
+		LOGGER.info("Spatial tree has " + root.countNodes() +" nodes");
+		return finishBuilding();
+	}
+
+	private void addPolygon(IndexedPolygon polygon, String regionType) {
+		addToRoot(polygon, regionType, nextPolygonPriority);
+		if (polygons != null) {
+			polygons.add(new PolygonRecord(polygon, regionType, nextPolygonPriority));
+		}
+		nextPolygonPriority += priorityStep;
+	}
+
+	/**
+	 * Build the spatial tree reading the polygons from the streaming readers, so the feature collections are never
+	 * held in memory. Polygons are prioritised in the same way as
+	 * {@link #build(List, double, RegionTypeDictionary, int)} - first by position within the file and then by file - by
+	 * reading one feature from each file in turn. The readers are left positioned after their features, so their rules
+	 * can still be read.
+	 * 
+	 * @param readers
+	 * @param minDiagonalLengthMetres
+	 * @param dictionary
+	 * @param parallelism
+	 * @return
+	 */
+	public static RegionsSpatialTreeNode buildStreamed(List<UncompiledFileStreamReader> readers, double minDiagonalLengthMetres,
+			RegionTypeDictionary dictionary, int parallelism) {
+		LOGGER.info("Starting streamed build of spatial tree");
+
+		TreeBuilder builder = new TreeBuilder(minDiagonalLengthMetres, parallelism);
+		try {
+			long count = 0;
+			boolean[] finished = new boolean[readers.size()];
+			int nbFinished = 0;
+			while (nbFinished < readers.size()) {
+				for (int ifile = 0; ifile < readers.size(); ifile++) {
+					if (finished[ifile]) {
+						continue;
+					}
+
+					UncompiledFileStreamReader.StreamedFeature feature = readers.get(ifile).next();
+					if (feature == null) {
+						finished[ifile] = true;
+						nbFinished++;
+						continue;
+					}
+
+					String regionType = dictionary.internString(feature.getRegionType());
+					for (IndexedPolygon polygon : feature.getPolygons()) {
+						LOGGER.info("Adding polygon " + count++ + " containing " + polygon.getNbPoints() + " points to spatial tree.");
+						builder.addPolygon(polygon, regionType);
+					}
+				}
+			}
+			LOGGER.info("Spatial tree has " + builder.root.countNodes() + " nodes");
+			return builder.finishBuilding();
+		} finally {
+			if (builder.pool != null) {
+				builder.pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Gap between the priorities of consecutive polygons in an incremental builder, so polygons can later be inserted
+	 * between them. The nth polygon (counting from 1) of the initial build has priority n * INCREMENTAL_PRIORITY_STEP.
+	 */
+	public static final long INCREMENTAL_PRIORITY_STEP = 1 << 16;
+
+	private static class PolygonRecord {
+		final IndexedPolygon polygon;
+		final String regionType;
+		final long priority;
+
+		PolygonRecord(IndexedPolygon polygon, String regionType, long priority) {
+			this.polygon = polygon;
+			this.regionType = regionType;
+			this.priority = priority;
+		}
+
+		boolean envelopeIntersects(Bounds b) {
+			return polygon.envelopeIntersects(b.getMinLng(), b.getMaxLng(), b.getMinLat(), b.getMaxLat());
+		}
+	}
+
+	/**
+	 * Create a builder which keeps its polygons and working tree after building, so single regions can be inserted,
+	 * removed or reprioritised afterwards without a full rebuild. Only the leaves an edited region can affect are
+	 * cleared and refilled from the polygons overlapping them, so an edit costs roughly proportional to the region's
+	 * area. Polygon priorities are spaced by {@link #INCREMENTAL_PRIORITY_STEP}.
+	 * <p>
+	 * The tree after an edit is correct for the edited polygons but isn't necessarily identical node-for-node to a
+	 * full rebuild, as nodes may already have been split a different way. Query results only differ within the
+	 * finest-level cells on region borders.
+	 * 
+	 * @param featureCollections
+	 * @param minDiagonalLengthMetres
+	 * @param dictionary
+	 * @return
+	 */
+	public static TreeBuilder createIncremental(List<FeatureCollection> featureCollections, double minDiagonalLengthMetres,
+			RegionTypeDictionary dictionary) {
+		LOGGER.info("Starting incremental build of spatial tree");
+		TreeBuilder builder = new TreeBuilder(minDiagonalLengthMetres, 1, dictionary);
+		for (TempPolygonRecord poly : prioritisePolygons(featureCollections)) {
+			builder.addPolygon(IndexedPolygon.fromGeoJSON(poly.polygon), dictionary.internString(poly.stdRegionType));
+		}
+		return builder;
+	}
+
+	/**
+	 * Get the finished tree for the polygons added so far. The builder's working tree is copied so the builder can
+	 * still be edited afterwards.
+	 * 
+	 * @return
+	 */
+	public synchronized RegionsSpatialTreeNode build() {
+		checkIncremental();
+		return finishBuilding();
+	}
+
+	/**
+	 * Insert a polygon at the given priority. Leaves already assigned to a lower priority (numerically higher) polygon
+	 * which the new polygon overlaps are refilled.
+	 * 
+	 * @param polygon
+	 * @param regionType
+	 * @param priority
+	 *            Priority, which must be positive. Numerically lower is higher priority.
+	 */
+	public synchronized void insertPolygon(org.geojson.Polygon polygon, String regionType, long priority) {
+		checkIncremental();
+		if (priority <= 0 || priority == Long.MAX_VALUE) {
+			throw new RuntimeException("Invalid polygon priority " + priority);
+		}
+		if (regionType == null || regionType.trim().length() == 0) {
+			throw new RuntimeException("Cannot insert polygon without a " + SpeedRegionConsts.REGION_TYPE_KEY);
+		}
+		String stdRegionType = dictionary.internString(TextUtils.stdString(regionType));
+		for (PolygonRecord record : polygons) {
+			if (record.priority == priority && !record.regionType.equals(stdRegionType)) {
+				throw new RuntimeException("Priority " + priority + " is already used by region " + record.regionType);
+			}
+		}
+
+		PolygonRecord record = new PolygonRecord(IndexedPolygon.fromGeoJSON(polygon), stdRegionType, priority);
+		polygons.add(getInsertPosition(priority), record);
+		insertRecursively(root, 0, record);
+	}
+
+	/**
+	 * Remove all polygons of the region type, refilling the leaves assigned to it from the remaining polygons
+	 * 
+	 * @param regionType
+	 * @return Number of polygons removed
+	 */
+	public synchronized int removeRegion(String regionType) {
+		checkIncremental();
+		String stdRegionType = TextUtils.stdString(regionType);
+		List<PolygonRecord> removed = new ArrayList<>();
+		Iterator<PolygonRecord> it = polygons.iterator();
+		while (it.hasNext()) {
+			PolygonRecord record = it.next();
+			if (record.regionType.equals(stdRegionType)) {
+				removed.add(record);
+				it.remove();
+			}
+		}
+
+		if (removed.size() > 0) {
+			removeRecursively(root, 0, stdRegionType, removed);
+		}
+		return removed.size();
+	}
+
+	/**
+	 * Move all polygons of the region type to a new priority, keeping their relative order
+	 * 
+	 * @param regionType
+	 * @param priority
+	 */
+	public synchronized void reprioritiseRegion(String regionType, long priority) {
+		checkIncremental();
+		String stdRegionType = TextUtils.stdString(regionType);
+		List<IndexedPolygon> moved = new ArrayList<>();
+		for (PolygonRecord record : polygons) {
+			if (record.regionType.equals(stdRegionType)) {
+				moved.add(record.polygon);
+			}
+		}
+		if (moved.size() == 0) {
+			throw new RuntimeException("Cannot find region " + regionType);
+		}
+
+		removeRegion(stdRegionType);
+		for (IndexedPolygon polygon : moved) {
+			// same priority for all so they stay in order after each other
+			PolygonRecord record = new PolygonRecord(polygon, dictionary.internString(stdRegionType), priority);
+			polygons.add(getInsertPosition(priority), record);
+			insertRecursively(root, 0, record);
+		}
+	}
+
+	private void checkIncremental() {
+		if (polygons == null) {
+			throw new RuntimeException("Only supported on a builder created by createIncremental");
+		}
+	}
+
+	/**
+	 * Get the position to insert a polygon in the priority-ordered list, after any others with the same priority
+	 */
+	private int getInsertPosition(long priority) {
+		int i = polygons.size();
+		while (i > 0 && polygons.get(i - 1).priority > priority) {
+			i--;
+		}
+		return i;
+	}
+
+	private void insertRecursively(RegionsSpatialTreeNodeWithGeometry node, int depth, PolygonRecord record) {
+		Bounds b = node.getBounds();
+		if (!record.envelopeIntersects(b)) {
+			return;
+		}
+
+		if (node.getRegionType() != null) {
+			// refill the leaf if the new polygon beats its current polygon and actually touches it
+			if (node.getAssignedPriority() > record.priority && record.polygon.classify(b) != Classification.OUTSIDE) {
+				refill(node, depth);
+			}
+		} else if (node.getChildren().size() == 0) {
+			addRecursively(node, depth, record.polygon, record.regionType, record.priority);
+		} else {
+			for (RegionsSpatialTreeNode child : node.getChildren()) {
+				insertRecursively((RegionsSpatialTreeNodeWithGeometry) child, depth + 1, record);
+			}
+			recombineChildrenIfPossible(node);
+		}
+	}
+
+	private void removeRecursively(RegionsSpatialTreeNodeWithGeometry node, int depth, String regionType, List<PolygonRecord> removed) {
+		Bounds b = node.getBounds();
+		boolean intersects = false;
+		for (PolygonRecord record : removed) {
+			if (record.envelopeIntersects(b)) {
+				intersects = true;
+				break;
+			}
+		}
+		if (!intersects) {
+			return;
+		}
+
+		if (node.getRegionType() != null) {
+			if (node.getRegionType().equals(regionType)) {
+				refill(node, depth);
+			}
+		} else {
+			for (RegionsSpatialTreeNode child : node.getChildren()) {
+				removeRecursively((RegionsSpatialTreeNodeWithGeometry) child, depth + 1, regionType, removed);
+			}
+			recombineChildrenIfPossible(node);
+		}
+	}
+
+	/**
+	 * Clear the node and re-add all polygons overlapping it in priority order, as a full build would have done
+	 * 
+	 * @param node
+	 * @param depth
+	 */
+	private void refill(RegionsSpatialTreeNodeWithGeometry node, int depth) {
+		node.getChildren().clear();
+		node.setRegionType(null);
+		node.setAssignedPriority(0);
+		Bounds b = node.getBounds();
+		for (PolygonRecord record : polygons) {
+			if (node.getRegionType() != null) {
+				break;
+			}
+			if (record.envelopeIntersects(b)) {
+				addRecursively(node, depth, record.polygon, record.regionType, record.priority);
+			}
+		}
 	}
 
 	private static class TempPolygonRecord implements Comparable<TempPolygonRecord> {
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.spatialtree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.opendoorlogistics.speedregions.SpeedRegionConsts;
+import com.opendoorlogistics.speedregions.beans.SpeedRule;
+import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
+
+/**
+ * Streaming reader for an {@link UncompiledSpeedRulesFile} in JSON form. Features are parsed one at a time straight
+ * into {@link IndexedPolygon} objects, so the geoJSON feature collection is never held in memory and peak memory is
+ * proportional to the largest feature rather than the whole file.
+ * <p>
+ * Whether a feature is a polygon or multipolygon is decided from the nesting depth of its coordinates, so it doesn't
+ * matter if the geometry's type field comes before or after them. The rules can be anywhere in the file; call
+ * {@link #readRules()} after the features have been read.
+ *
+ */
+public class UncompiledFileStreamReader implements Closeable {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private enum State {
+		TOP_LEVEL, GEOJSON, FEATURES, FINISHED
+	}
+
+	/**
+	 * A single feature's polygons (more than one for a multipolygon) and its standardised region type
+	 */
+	public static class StreamedFeature {
+		private final String regionType;
+		private final List<IndexedPolygon> polygons;
+
+		StreamedFeature(String regionType, List<IndexedPolygon> polygons) {
+			this.regionType = regionType;
+			this.polygons = polygons;
+		}
+
+		public String getRegionType() {
+			return regionType;
+		}
+
+		public List<IndexedPolygon> getPolygons() {
+			return polygons;
+		}
+	}
+
+	private final JsonParser parser;
+	private State state = State.TOP_LEVEL;
+	private List<SpeedRule> rules;
+
+	/**
+	 * Coordinate buffer for the current ring, reused between rings
+	 */
+	private double[] ringBuffer = new double[1024];
+
+	public UncompiledFileStreamReader(File file) {
+		try {
+			parser = MAPPER.getFactory().createParser(file);
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new RuntimeException("Uncompiled speed rules file should contain a JSON object: " + file.getAbsolutePath());
+			}
+			seekFeatures();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read the next feature from the file
+	 * 
+	 * @return The feature or null if there are no more features
+	 */
+	public StreamedFeature next() {
+		try {
+			while (state == State.FEATURES) {
+				JsonToken token = parser.nextToken();
+				if (token == JsonToken.END_ARRAY) {
+					state = State.GEOJSON;
+					seekFeatures();
+				} else if (token == JsonToken.START_OBJECT) {
+					return readFeature();
+				} else {
+					throw new RuntimeException("Found feature which is not a JSON object");
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read the rules, skipping any features which haven't been read yet
+	 * 
+	 * @return
+	 */
+	public List<SpeedRule> readRules() {
+		try {
+			while (state == State.FEATURES) {
+				JsonToken token = parser.nextToken();
+				if (token == JsonToken.END_ARRAY) {
+					state = State.GEOJSON;
+					seekFeatures();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return rules;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			parser.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read the fields of the top-level object and the geoJSON object until the features array is reached or the
+	 * file is finished
+	 * 
+	 * @throws IOException
+	 */
+	private void seekFeatures() throws IOException {
+		while (true) {
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.END_OBJECT || token == null) {
+				if (state == State.GEOJSON) {
+					state = State.TOP_LEVEL;
+					continue;
+				}
+				state = State.FINISHED;
+				return;
+			}
+
+			String name = parser.getCurrentName();
+			token = parser.nextToken();
+			if (state == State.TOP_LEVEL && "rules".equals(name)) {
+				rules = MAPPER.readValue(parser, new TypeReference<List<SpeedRule>>() {
+				});
+			} else if (state == State.TOP_LEVEL && "geoJson".equals(name) && token == JsonToken.START_OBJECT) {
+				state = State.GEOJSON;
+			} else if (state == State.GEOJSON && "features".equals(name) && token == JsonToken.START_ARRAY) {
+				state = State.FEATURES;
+				return;
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private StreamedFeature readFeature() throws IOException {
+		String regionType = null;
+		List<IndexedPolygon> polygons = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("properties".equals(name) && token == JsonToken.START_OBJECT) {
+				regionType = readRegionType();
+			} else if ("geometry".equals(name) && token == JsonToken.START_OBJECT) {
+				polygons = readGeometry();
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		// same validation as when building from a feature collection
+		if (regionType == null) {
+			throw new RuntimeException("Found record without a " + SpeedRegionConsts.REGION_TYPE_KEY + " property");
+		}
+
+		if (regionType.trim().length() == 0) {
+			throw new RuntimeException("Found record with an empty " + SpeedRegionConsts.REGION_TYPE_KEY + " property");
+		}
+
+		if (polygons == null) {
+			throw new RuntimeException("Found feature without geometry");
+		}
+
+		return new StreamedFeature(TextUtils.stdString(regionType), polygons);
+	}
+
+	/**
+	 * Read the properties object returning the first non-null region type, matching the key in the same way as
+	 * {@link TextUtils#findRegionType(org.geojson.Feature)}
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private String readRegionType() throws IOException {
+		String key = TextUtils.stdString(SpeedRegionConsts.REGION_TYPE_KEY);
+		String ret = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (ret == null && token != JsonToken.VALUE_NULL && key.equals(TextUtils.stdString(name))) {
+				ret = token.isScalarValue() ? parser.getText() : parser.readValueAs(Object.class).toString();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return ret;
+	}
+
+	private List<IndexedPolygon> readGeometry() throws IOException {
+		String type = null;
+		List<IndexedPolygon> polygons = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("type".equals(name)) {
+				type = parser.getText();
+			} else if ("coordinates".equals(name) && token == JsonToken.START_ARRAY) {
+				polygons = readPolygonCoordinates();
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (type != null && !"Polygon".equals(type) && !"MultiPolygon".equals(type)) {
+			throw new RuntimeException("Found feature with non-polygon geometry type");
+		}
+		return polygons;
+	}
+
+	/**
+	 * Read the coordinates array of a polygon or multipolygon. Positions are at depth 3 for a polygon (polygon &gt;
+	 * ring &gt; position) and depth 4 for a multipolygon, so the end of each ring and polygon is found relative to the
+	 * depth of the first position.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private List<IndexedPolygon> readPolygonCoordinates() throws IOException {
+		List<IndexedPolygon> polygons = new ArrayList<>(1);
+		List<double[]> rings = new ArrayList<>();
+		int depth = 1;
+		int positionDepth = -1;
+		int positionIndex = 0;
+		int ringSize = 0;
+		while (depth > 0) {
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_ARRAY) {
+				depth++;
+				positionIndex = 0;
+			} else if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+				if (positionDepth == -1) {
+					if (depth != 3 && depth != 4) {
+						throw new RuntimeException("Found feature with non-polygon geometry type");
+					}
+					positionDepth = depth;
+				} else if (depth != positionDepth) {
+					throw new RuntimeException("Found polygon with inconsistent coordinate nesting");
+				}
+
+				// ignore altitude
+				if (positionIndex < 2) {
+					if (ringSize == ringBuffer.length) {
+						ringBuffer = Arrays.copyOf(ringBuffer, 2 * ringBuffer.length);
+					}
+					ringBuffer[ringSize++] = parser.getDoubleValue();
+				}
+				positionIndex++;
+			} else if (token == JsonToken.END_ARRAY) {
+				if (depth == positionDepth) {
+					if (positionIndex < 2) {
+						throw new RuntimeException("Found polygon position with fewer than 2 coordinates");
+					}
+				} else if (depth == positionDepth - 1) {
+					rings.add(Arrays.copyOf(ringBuffer, ringSize));
+					ringSize = 0;
+				} else if (depth == positionDepth - 2) {
+					polygons.add(new IndexedPolygon(rings));
+					rings = new ArrayList<>();
+				}
+				depth--;
+			} else {
+				throw new RuntimeException("Found unexpected value in polygon coordinates: " + parser.getText());
+			}
+		}
+		return polygons;
+	}
+}
@@ -350,6 +350,97 @@ public class GeomUtils {
 		return toJTSMultiPolygon(outerBuffer, factory);
 	}
 	
+	/**
+	 * Test if the line segment intersects (or touches) the axis-aligned rectangle, using Liang-Barsky clipping.
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @return
+	 */
+	public static boolean segmentIntersectsRectangle(double x1, double y1, double x2, double y2, double minX, double maxX, double minY,
+			double maxY) {
+		return clipSegmentToRectangle(x1, y1, x2, y2, minX, maxX, minY, maxY, null);
+	}
+
+	/**
+	 * Clip the line segment to the axis-aligned rectangle using Liang-Barsky clipping.
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @param fractions If not null and the segment intersects the rectangle, receives the start and end of the
+	 * clipped segment as fractions (0 to 1) along the segment.
+	 * @return True if the segment intersects (or touches) the rectangle
+	 */
+	public static boolean clipSegmentToRectangle(double x1, double y1, double x2, double y2, double minX, double maxX, double minY,
+			double maxY, double[] fractions) {
+		// quick envelope rejection
+		if (Math.max(x1, x2) < minX || Math.min(x1, x2) > maxX || Math.max(y1, y2) < minY || Math.min(y1, y2) > maxY) {
+			return false;
+		}
+
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		double t0 = 0;
+		double t1 = 1;
+		for (int side = 0; side < 4; side++) {
+			double p, q;
+			switch (side) {
+			case 0:
+				p = -dx;
+				q = x1 - minX;
+				break;
+			case 1:
+				p = dx;
+				q = maxX - x1;
+				break;
+			case 2:
+				p = -dy;
+				q = y1 - minY;
+				break;
+			default:
+				p = dy;
+				q = maxY - y1;
+				break;
+			}
+
+			if (p == 0) {
+				// parallel to this side, so either all inside or all outside it
+				if (q < 0) {
+					return false;
+				}
+			} else {
+				double r = q / p;
+				if (p < 0) {
+					if (r > t1) {
+						return false;
+					}
+					t0 = Math.max(t0, r);
+				} else {
+					if (r < t0) {
+						return false;
+					}
+					t1 = Math.min(t1, r);
+				}
+			}
+		}
+
+		if (fractions != null) {
+			fractions[0] = t0;
+			fractions[1] = t1;
+		}
+		return true;
+	}
+	
 //	public static void main(String []args){
 //		Geometry geometry = toJTS("MULTIPOLYGON ( ((20 35, 10 30, 10 10, 30 5, 45 20, 20 35), (30 20, 20 15, 20 25, 30 20)))");
 //		System.out.println(toWKT(cleanPolygon((Polygon)geometry.getGeometryN(0),newGeomFactory() )));
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.utils;
+
+/**
+ * Minimal open-addressing hash map from primitive long keys to primitive int values, so large maps (e.g. millions of
+ * OSM way ids) don't box every entry. Uses linear probing with a power-of-two capacity. The arrays are on-heap so the
+ * map holds at most {@link #MAX_SIZE} entries, see {@link OffHeapLongIntHashMap} for more. Not thread safe for writes;
+ * once filled it can be read from any number of threads.
+ *
+ */
+public class LongIntHashMap {
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	/**
+	 * Maximum number of entries
+	 */
+	public static final int MAX_SIZE = (int) (MAX_CAPACITY * LOAD_FACTOR);
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+	private int resizeAt;
+
+	public LongIntHashMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            Number of entries the map can hold without resizing
+	 */
+	public LongIntHashMap(int expectedSize) {
+		checkSize(expectedSize);
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Put the value, replacing any existing value for the key
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void put(long key, int value) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		used[slot] = true;
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeAt) {
+			rehash();
+		}
+	}
+
+	/**
+	 * Get the value for the key
+	 * 
+	 * @param key
+	 * @param missingValue
+	 *            Value returned if the key isn't in the map
+	 * @return
+	 */
+	public int get(long key, int missingValue) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return missingValue;
+	}
+
+	public boolean containsKey(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static void checkSize(long size) {
+		if (size > MAX_SIZE) {
+			throw new RuntimeException("LongIntHashMap cannot hold more than " + MAX_SIZE + " entries, " + size + " needed");
+		}
+	}
+
+	private void rehash() {
+		if (keys.length == MAX_CAPACITY) {
+			checkSize(size);
+		}
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(keys.length << 1);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Mix the bits (MurmurHash3 finaliser) as OSM ids are often sequential
+	 * 
+	 * @param key
+	 * @return
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.utils;
+
+/**
+ * Open-addressing hash map from primitive long keys to primitive int values kept off-heap in
+ * {@link PagedDirectArray}s, with a long capacity so it can hold more than 2^31 entries (e.g. every node of an OSM
+ * planet file). Uses linear probing with a power-of-two capacity, 12 bytes per slot. The value -1 is reserved to mean
+ * missing. Not thread safe for writes; once filled it can be read from any number of threads.
+ *
+ */
+public class OffHeapLongIntHashMap {
+	private static final double LOAD_FACTOR = 0.75;
+
+	private final int pageBits;
+	private PagedDirectArray keys;
+
+	/**
+	 * Value + 1 for each slot, so zero (as direct memory starts) marks an empty slot
+	 */
+	private PagedDirectArray values;
+	private long mask;
+	private long size;
+	private long resizeAt;
+
+	public OffHeapLongIntHashMap() {
+		this(16, PagedDirectArray.DEFAULT_PAGE_BITS);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            Number of entries the map can hold without resizing
+	 * @param pageBits
+	 *            Number of slots per off-heap page as a power of two, see {@link PagedDirectArray}
+	 */
+	public OffHeapLongIntHashMap(long expectedSize, int pageBits) {
+		this.pageBits = pageBits;
+		long capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(long capacity) {
+		keys = new PagedDirectArray(8, pageBits);
+		values = new PagedDirectArray(4, pageBits);
+		keys.ensureCapacity(capacity);
+		values.ensureCapacity(capacity);
+		mask = capacity - 1;
+		resizeAt = (long) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Put the value, replacing any existing value for the key
+	 *
+	 * @param key
+	 * @param value
+	 *            Any value except -1
+	 */
+	public void put(long key, int value) {
+		if (value == -1) {
+			throw new RuntimeException("-1 is reserved for missing values");
+		}
+		long slot = hash(key) & mask;
+		while (values.getInt(slot) != 0) {
+			if (keys.getLong(slot) == key) {
+				values.setInt(slot, value + 1);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys.setLong(slot, key);
+		values.setInt(slot, value + 1);
+		if (++size > resizeAt) {
+			rehash();
+		}
+	}
+
+	/**
+	 * Get the value for the key
+	 *
+	 * @param key
+	 * @return Value or -1 if the key isn't in the map
+	 */
+	public int get(long key) {
+		long slot = hash(key) & mask;
+		int stored;
+		while ((stored = values.getInt(slot)) != 0) {
+			if (keys.getLong(slot) == key) {
+				return stored - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	private void rehash() {
+		PagedDirectArray oldKeys = keys;
+		PagedDirectArray oldValues = values;
+		long oldCapacity = mask + 1;
+		allocate(oldCapacity << 1);
+		size = 0;
+		for (long i = 0; i < oldCapacity; i++) {
+			int stored = oldValues.getInt(i);
+			if (stored != 0) {
+				put(oldKeys.getLong(i), stored - 1);
+			}
+		}
+	}
+
+	/**
+	 * Mix the bits (MurmurHash3 finaliser) as OSM ids are often sequential
+	 *
+	 * @param key
+	 * @return
+	 */
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Open Door Logistics Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.opendoorlogistics.speedregions.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Growable array of fixed width elements kept off-heap in pages of direct byte buffers, so it can hold more than 2^31
+ * elements (e.g. the nodes of a whole OSM planet file) without putting them in the garbage collected heap. Elements
+ * are addressed by long index and start as zero. Until the array needs more than one page it's a single smaller page
+ * which doubles in size, so small arrays don't allocate a whole page.
+ * <p>
+ * Direct memory is limited by -XX:MaxDirectMemorySize (by default the maximum heap size) and is released when the
+ * array is garbage collected. Not thread safe for writes; once filled it can be read from any number of threads.
+ *
+ */
+public class PagedDirectArray {
+	/**
+	 * Default number of elements per page as a power of two (1M elements)
+	 */
+	public static final int DEFAULT_PAGE_BITS = 20;
+
+	private final int elementBytes;
+	private final int pageBits;
+	private final long pageMask;
+	private ByteBuffer[] pages = new ByteBuffer[0];
+	private long capacity;
+
+	/**
+	 * @param elementBytes
+	 *            Bytes per element, 1, 4 or 8
+	 */
+	public PagedDirectArray(int elementBytes) {
+		this(elementBytes, DEFAULT_PAGE_BITS);
+	}
+
+	/**
+	 * @param elementBytes
+	 *            Bytes per element, 1, 4 or 8
+	 * @param pageBits
+	 *            Number of elements per page as a power of two
+	 */
+	public PagedDirectArray(int elementBytes, int pageBits) {
+		if (elementBytes != 1 && elementBytes != 4 && elementBytes != 8) {
+			throw new RuntimeException("Element size must be 1, 4 or 8 bytes");
+		}
+		if (pageBits < 4 || ((long) elementBytes << pageBits) > Integer.MAX_VALUE) {
+			throw new RuntimeException("Invalid page size of 2^" + pageBits + " elements");
+		}
+		this.elementBytes = elementBytes;
+		this.pageBits = pageBits;
+		this.pageMask = (1L << pageBits) - 1;
+	}
+
+	/**
+	 * Make sure the array can hold the number of elements, keeping the existing ones
+	 *
+	 * @param nbElements
+	 */
+	public void ensureCapacity(long nbElements) {
+		if (nbElements <= capacity) {
+			return;
+		}
+
+		long pageElements = 1L << pageBits;
+		if (nbElements <= pageElements) {
+			// still one page, double it
+			long newCapacity = Math.max(16, capacity);
+			while (newCapacity < nbElements) {
+				newCapacity <<= 1;
+			}
+			resizeFirstPage(Math.min(newCapacity, pageElements));
+			return;
+		}
+
+		long nbPages = (nbElements + pageElements - 1) >>> pageBits;
+		if (nbPages > Integer.MAX_VALUE) {
+			throw new RuntimeException("Cannot hold " + nbElements + " elements in pages of 2^" + pageBits + " elements");
+		}
+		if (capacity < pageElements) {
+			resizeFirstPage(pageElements);
+		}
+		int oldNbPages = pages.length;
+		pages = Arrays.copyOf(pages, (int) nbPages);
+		for (int i = oldNbPages; i < nbPages; i++) {
+			pages[i] = allocate(pageElements);
+		}
+		capacity = nbPages << pageBits;
+	}
+
+	private void resizeFirstPage(long nbElements) {
+		ByteBuffer page = allocate(nbElements);
+		if (pages.length > 0) {
+			ByteBuffer old = pages[0].duplicate();
+			old.clear();
+			page.put(old);
+			page.clear();
+		}
+		pages = new ByteBuffer[] { page };
+		capacity = nbElements;
+	}
+
+	private ByteBuffer allocate(long nbElements) {
+		return ByteBuffer.allocateDirect((int) (nbElements * elementBytes)).order(ByteOrder.nativeOrder());
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	private ByteBuffer page(long index) {
+		return pages[(int) (index >>> pageBits)];
+	}
+
+	private int offset(long index) {
+		return (int) (index & pageMask) * elementBytes;
+	}
+
+	public long getLong(long index) {
+		return page(index).getLong(offset(index));
+	}
+
+	public void setLong(long index, long value) {
+		page(index).putLong(offset(index), value);
+	}
+
+	public int getInt(long index) {
+		return page(index).getInt(offset(index));
+	}
+
+	public void setInt(long index, int value) {
+		page(index).putInt(offset(index), value);
+	}
+
+	public double getDouble(long index) {
+		return page(index).getDouble(offset(index));
+	}
+
+	public void setDouble(long index, double value) {
+		page(index).putDouble(offset(index), value);
+	}
+
+	public byte getByte(long index) {
+		return page(index).get(offset(index));
+	}
+
+	public void setByte(long index, byte value) {
+		page(index).put(offset(index), value);
+	}
+}
@@ -1,21 +1,53 @@
 package com.opendoorlogistics.speedregions;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.geojson.Feature;
 import org.geojson.FeatureCollection;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import com.opendoorlogistics.speedregions.SpeedRegionLookup.LinestringMode;
+import com.opendoorlogistics.speedregions.SpeedRegionLookupBuilder.QueryEngine;
 import com.opendoorlogistics.speedregions.beans.Bounds;
+import com.opendoorlogistics.speedregions.beans.RegionInterval;
+import com.opendoorlogistics.speedregions.beans.RegionsSpatialTreeNode;
+import com.opendoorlogistics.speedregions.beans.SpeedRule;
+import com.opendoorlogistics.speedregions.beans.SpeedUnit;
 import com.opendoorlogistics.speedregions.beans.files.CompiledSpeedRulesFile;
 import com.opendoorlogistics.speedregions.beans.files.UncompiledSpeedRulesFile;
+import com.opendoorlogistics.speedregions.spatialtree.BinaryCompiledFileIO;
+import com.opendoorlogistics.speedregions.spatialtree.IndexedPolygon;
+import com.opendoorlogistics.speedregions.spatialtree.IndexedPolygon.Classification;
+import com.opendoorlogistics.speedregions.spatialtree.QueryProcessor;
+import com.opendoorlogistics.speedregions.spatialtree.RegionTypeDictionary;
+import com.opendoorlogistics.speedregions.spatialtree.TreeBuilder;
 import com.opendoorlogistics.speedregions.utils.GeomUtils;
+import com.opendoorlogistics.speedregions.utils.LongIntHashMap;
+import com.opendoorlogistics.speedregions.utils.OffHeapLongIntHashMap;
+import com.opendoorlogistics.speedregions.utils.PagedDirectArray;
+import com.opendoorlogistics.speedregions.utils.TextUtils;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
 
 public class TestSpatialTree_IT {
 	static class PointRecord{
@@ -131,4 +163,913 @@ public class TestSpatialTree_IT {
 		assertEquals("No points should be wrong on first step",0, wrong);
  
 	}
+	@Test
+	public void testFlattenedMatchesTree(){
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+		
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+
+		Random random = new Random(123);
+		for(double minCellLength : new double[]{1000, 100, 10}){
+			CompiledSpeedRulesFile compiled= SpeedRegionLookupBuilder.compileFile(uncompiled, minCellLength);
+			SpeedRegionLookup tree = SpeedRegionLookupBuilder.fromCompiled(compiled, QueryEngine.TREE);
+			SpeedRegionLookup flattened = SpeedRegionLookupBuilder.fromCompiled(compiled, QueryEngine.FLATTENED);
+			
+			for (int i = 0; i < 1000; i++) {
+				Coordinate coordinate = new Coordinate(random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX(),
+						random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY());
+				Point point = GeomUtils.newGeomFactory().createPoint(coordinate);
+				String expected = tree.findRegionType(point);
+				assertEquals(expected, flattened.findRegionType(point));
+				assertEquals(expected, tree.findRegionType(coordinate.x, coordinate.y));
+				assertEquals(expected, flattened.findRegionType(coordinate.x, coordinate.y));
+				
+				int ordinal = tree.findRegionOrdinal(coordinate.x, coordinate.y);
+				assertEquals(ordinal, flattened.findRegionOrdinal(coordinate.x, coordinate.y));
+				assertEquals(expected, flattened.getRegionType(ordinal));
+			}
+		}
+	}
+
+	@Test
+	public void testBinaryFileMatchesTree() throws IOException{
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+		
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		CompiledSpeedRulesFile compiled= SpeedRegionLookupBuilder.compileFile(uncompiled, 100);
+		SpeedRegionLookup tree = SpeedRegionLookupBuilder.fromCompiled(compiled, QueryEngine.TREE);
+
+		File file = File.createTempFile("speedregions", ".bin");
+		file.deleteOnExit();
+		BinaryCompiledFileIO.write(compiled, file);
+		SpeedRegionLookup mapped = SpeedRegionLookupBuilder.loadFromCompiledFile(file);
+		assertEquals(compiled.getTree().countNodes(), mapped.getTree().countNodes());
+		
+		Random random = new Random(123);
+		for (int i = 0; i < 1000; i++) {
+			Coordinate coordinate = new Coordinate(random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX(),
+					random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY());
+			assertEquals(tree.findRegionType(coordinate.x, coordinate.y), mapped.findRegionType(coordinate.x, coordinate.y));
+		}
+
+		// rewriting the file replaces it rather than changing the mapped data underneath the loaded lookup
+		long nbNodes = mapped.getTree().countNodes();
+		BinaryCompiledFileIO.write(SpeedRegionLookupBuilder.compileFile(uncompiled, 1000), file);
+		assertEquals(nbNodes, mapped.getTree().countNodes());
+		random = new Random(123);
+		for (int i = 0; i < 1000; i++) {
+			double lng = random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX();
+			double lat = random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY();
+			assertEquals(tree.findRegionType(lng, lat), mapped.findRegionType(lng, lat));
+		}
+		assertTrue(nbNodes != SpeedRegionLookupBuilder.loadFromCompiledFile(file).getTree().countNodes());
+		for (File other : file.getParentFile().listFiles()) {
+			assertTrue(other.equals(file) || !other.getName().startsWith(file.getName()));
+		}
+	}
+
+	@Test
+	public void testParallelBuildMatchesSequential(){
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(Examples.createMaltaSingleFeatureCollection());
+		for(double minCellLength : new double[]{1000, 10}){
+			CompiledSpeedRulesFile sequential= SpeedRegionLookupBuilder.compileFile(uncompiled, minCellLength);
+			CompiledSpeedRulesFile parallel= SpeedRegionLookupBuilder.compileFile(uncompiled, minCellLength, 4);
+			assertEquals(TextUtils.toJSON(sequential.getTree()), TextUtils.toJSON(parallel.getTree()));
+		}
+	}
+
+	@Test
+	public void testStreamedCompileMatchesLoaded() throws IOException{
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(Examples.createMaltaSingleFeatureCollection());
+		File file = File.createTempFile("speedregions", ".json");
+		file.deleteOnExit();
+		TextUtils.toJSONFile(uncompiled, file);
+
+		CompiledSpeedRulesFile loaded= SpeedRegionLookupBuilder.compileFile(uncompiled, 10);
+		CompiledSpeedRulesFile streamed= SpeedRegionLookupBuilder.compileFile(file, 10, 1);
+		assertEquals(TextUtils.toJSON(loaded), TextUtils.toJSON(streamed));
+	}
+
+	@Test
+	public void testPointCacheMatchesUncached(){
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		CompiledSpeedRulesFile compiled= SpeedRegionLookupBuilder.compileFile(uncompiled, 10);
+
+		for(QueryEngine engine : QueryEngine.values()){
+			SpeedRegionLookup uncached = SpeedRegionLookupBuilder.fromCompiled(compiled, engine);
+			SpeedRegionLookup cached = SpeedRegionLookupBuilder.fromCompiled(compiled, engine, 4);
+
+			// random walk so consecutive points are close, like consecutive ways in an OSM file
+			Random random = new Random(123);
+			double lng = boundingBox.centre().x;
+			double lat = boundingBox.centre().y;
+			int n = 10000;
+			for (int i = 0; i < n; i++) {
+				lng = Math.max(boundingBox.getMinX(), Math.min(boundingBox.getMaxX(), lng + 0.0005 * (random.nextDouble() - 0.5)));
+				lat = Math.max(boundingBox.getMinY(), Math.min(boundingBox.getMaxY(), lat + 0.0005 * (random.nextDouble() - 0.5)));
+				assertEquals(uncached.findRegionOrdinal(lng, lat), cached.findRegionOrdinal(lng, lat));
+			}
+			System.out.println("Engine " + engine + ", point cache hits " + cached.getPointCacheHits() + ", misses " + cached.getPointCacheMisses());
+			assertEquals(n, cached.getPointCacheHits() + cached.getPointCacheMisses());
+			assertEquals(0, uncached.getPointCacheHits());
+
+			// counts from short-lived threads are kept after the threads end
+			final SpeedRegionLookup lookup = cached;
+			final double centreLng = lng;
+			final double centreLat = lat;
+			int nbThreads = 50;
+			final int nbPerThread = 20;
+			for (int i = 0; i < nbThreads; i++) {
+				Thread thread = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						for (int j = 0; j < nbPerThread; j++) {
+							lookup.findRegionOrdinal(centreLng, centreLat);
+						}
+					}
+				});
+				thread.start();
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			assertEquals(n + nbThreads * nbPerThread, cached.getPointCacheHits() + cached.getPointCacheMisses());
+		}
+	}
+
+	@Test
+	public void testLinestringQueriesMatchJTS(){
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		CompiledSpeedRulesFile compiled= SpeedRegionLookupBuilder.compileFile(uncompiled, 100);
+		List<RegionsSpatialTreeNode> leaves = new ArrayList<>();
+		getLeaves(compiled.getTree(), leaves);
+
+		GeometryFactory factory = GeomUtils.newGeomFactory();
+		Random random = new Random(123);
+		for(QueryEngine engine : QueryEngine.values()){
+			SpeedRegionLookup lookup = SpeedRegionLookupBuilder.fromCompiled(compiled, engine);
+			for (int i = 0; i < 500; i++) {
+				int n = 2 + random.nextInt(4);
+				double [] lngs = new double[n];
+				double [] lats = new double[n];
+				Coordinate [] coords = new Coordinate[n];
+				double sumLat=0;
+				for (int j = 0; j < n; j++) {
+					lngs[j] = j==0 ? random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX() : lngs[j-1] + 0.01 * (random.nextDouble() - 0.5);
+					lats[j] = j==0 ? random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY() : lats[j-1] + 0.01 * (random.nextDouble() - 0.5);
+					coords[j] = new Coordinate(lngs[j], lats[j]);
+					sumLat += lats[j];
+				}
+				Geometry line = factory.createLineString(coords);
+
+				// highest priority leaf intersecting the line, using JTS
+				long bestPriority = Long.MAX_VALUE;
+				String expected = null;
+				for(RegionsSpatialTreeNode leaf : leaves){
+					if(leaf.getAssignedPriority() < bestPriority && factory.toGeometry(leaf.getBounds().asEnvelope()).intersects(line)){
+						bestPriority = leaf.getAssignedPriority();
+						expected = leaf.getRegionType();
+					}
+				}
+				assertEquals(expected, lookup.findRegionType(line));
+				assertEquals(expected, lookup.getRegionType(lookup.findRegionOrdinal(lngs, lats, LinestringMode.HIGHEST_PRIORITY)));
+
+				// length-weighted majority using JTS intersections, with longitude scaled the same way
+				double scale = Math.cos(Math.toRadians(sumLat / n));
+				Coordinate [] scaled = new Coordinate[n];
+				for (int j = 0; j < n; j++) {
+					scaled[j] = new Coordinate(lngs[j] * scale, lats[j]);
+				}
+				Geometry scaledLine = factory.createLineString(scaled);
+				Map<String, Double> lengths = new HashMap<>();
+				double inside = 0;
+				for(RegionsSpatialTreeNode leaf : leaves){
+					Bounds b = leaf.getBounds();
+					Envelope scaledEnvelope = new Envelope(b.getMinLng() * scale, b.getMaxLng() * scale, b.getMinLat(), b.getMaxLat());
+					double length = factory.toGeometry(scaledEnvelope).intersection(scaledLine).getLength();
+					if(length > 0){
+						Double current = lengths.get(leaf.getRegionType());
+						lengths.put(leaf.getRegionType(), (current != null ? current : 0) + length);
+						inside += length;
+					}
+				}
+				String expectedMajority = null;
+				double bestLength = scaledLine.getLength() - inside;
+				for(Map.Entry<String, Double> entry : lengths.entrySet()){
+					if(entry.getValue() > bestLength){
+						bestLength = entry.getValue();
+						expectedMajority = entry.getKey();
+					}
+				}
+				assertEquals(expectedMajority, lookup.getRegionType(lookup.findRegionOrdinal(lngs, lats, LinestringMode.LENGTH_WEIGHTED_MAJORITY)));
+			}
+		}
+	}
+
+	@Test
+	public void testRegionIntervals(){
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		CompiledSpeedRulesFile compiled= SpeedRegionLookupBuilder.compileFile(uncompiled, 100);
+
+		Random random = new Random(123);
+		for(QueryEngine engine : QueryEngine.values()){
+			SpeedRegionLookup lookup = SpeedRegionLookupBuilder.fromCompiled(compiled, engine);
+			for (int i = 0; i < 500; i++) {
+				int n = 2 + random.nextInt(4);
+				double [] lngs = new double[n];
+				double [] lats = new double[n];
+				double sumLat=0;
+				for (int j = 0; j < n; j++) {
+					lngs[j] = j==0 ? random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX() : lngs[j-1] + 0.01 * (random.nextDouble() - 0.5);
+					lats[j] = j==0 ? random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY() : lats[j-1] + 0.01 * (random.nextDouble() - 0.5);
+					sumLat += lats[j];
+				}
+				double scale = Math.cos(Math.toRadians(sumLat / n));
+
+				// intervals must cover the line contiguously with no repeated regions next to each other
+				List<RegionInterval> intervals = lookup.findRegionIntervals(lngs, lats);
+				assertTrue(intervals.size() > 0);
+				assertEquals(0, intervals.get(0).getFromFraction(), 0);
+				assertEquals(1, intervals.get(intervals.size()-1).getToFraction(), 0);
+				Map<Integer, Double> fractionByOrdinal = new HashMap<>();
+				for (int j = 0; j < intervals.size(); j++) {
+					RegionInterval interval = intervals.get(j);
+					assertTrue(interval.getToFraction() > interval.getFromFraction());
+					if(j>0){
+						assertEquals(intervals.get(j-1).getToFraction(), interval.getFromFraction(), 0);
+						assertTrue(intervals.get(j-1).getRegionOrdinal() != interval.getRegionOrdinal());
+					}
+					Double current = fractionByOrdinal.get(interval.getRegionOrdinal());
+					fractionByOrdinal.put(interval.getRegionOrdinal(), (current != null ? current : 0) + interval.getFraction());
+
+					// the middle of each interval should be in its region, unless it's too close to a leaf border
+					if(interval.getFraction() > 1E-6){
+						double [] mid = interpolate(lngs, lats, scale, 0.5 * (interval.getFromFraction() + interval.getToFraction()));
+						assertEquals(interval.getRegionOrdinal(), lookup.findRegionOrdinal(mid[0], mid[1]));
+					}
+				}
+
+				// longest region must agree with the length-weighted majority
+				int majority = lookup.findRegionOrdinal(lngs, lats, LinestringMode.LENGTH_WEIGHTED_MAJORITY);
+				for(double fraction : fractionByOrdinal.values()){
+					assertTrue(fraction <= fractionByOrdinal.get(majority) + 1E-9);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the point at a fraction along the line, measuring length with the longitude scaled
+	 */
+	private static double [] interpolate(double [] lngs, double [] lats, double lngScale, double fraction){
+		int n = lngs.length;
+		double [] lengths = new double[n];
+		for (int j = 1; j < n; j++) {
+			double dx = (lngs[j] - lngs[j-1]) * lngScale;
+			double dy = lats[j] - lats[j-1];
+			lengths[j] = lengths[j-1] + Math.sqrt(dx*dx + dy*dy);
+		}
+		double target = fraction * lengths[n-1];
+		for (int j = 1; j < n; j++) {
+			if(lengths[j] >= target && lengths[j] > lengths[j-1]){
+				double t = (target - lengths[j-1]) / (lengths[j] - lengths[j-1]);
+				return new double[]{lngs[j-1] + t * (lngs[j] - lngs[j-1]), lats[j-1] + t * (lats[j] - lats[j-1])};
+			}
+		}
+		return new double[]{lngs[n-1], lats[n-1]};
+	}
+
+	private static void getLeaves(RegionsSpatialTreeNode node, List<RegionsSpatialTreeNode> leaves){
+		if(node.getRegionType() != null){
+			leaves.add(node);
+		}
+		for(RegionsSpatialTreeNode child : node.getChildren()){
+			getLeaves(child, leaves);
+		}
+	}
+
+	@Test
+	public void testIndexedPolygonMatchesJTS() throws ParseException{
+		GeometryFactory factory = GeomUtils.newGeomFactory();
+		WKTReader reader = new WKTReader(factory);
+		String [] wkts = new String[]{
+				// hole
+				"POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (3 3, 7 3, 7 7, 3 7, 3 3))",
+				// concave
+				"POLYGON((0 0, 10 0, 10 10, 7 10, 7 3, 3 3, 3 10, 0 10, 0 0))",
+				// diagonal edges only
+				"POLYGON((5 0, 10 5, 5 10, 0 5, 5 0))",
+				"MULTIPOLYGON(((0 0, 4 0, 4 4, 0 4, 0 0)), ((6 6, 10 6, 8 10, 6 6)))",
+		};
+
+		// rectangles touching at a vertex or along an edge, plus random rectangles on a half unit grid so
+		// many more touch the polygons exactly
+		List<double[]> rects = new ArrayList<>();
+		rects.add(new double[]{10, 12, 5, 6});
+		rects.add(new double[]{10, 12, 10, 12});
+		rects.add(new double[]{4, 6, 4, 6});
+		rects.add(new double[]{7, 8, 7, 8});
+		rects.add(new double[]{4, 6, 3, 5});
+		rects.add(new double[]{-2, 0, 2, 4});
+		rects.add(new double[]{3.5, 6.5, 3.5, 6.5});
+		Random random = new Random(123);
+		for (int i = 0; i < 2000; i++) {
+			double minX = -2 + 0.5 * random.nextInt(28);
+			double minY = -2 + 0.5 * random.nextInt(28);
+			rects.add(new double[]{minX, minX + 0.5 * (1 + random.nextInt(8)), minY, minY + 0.5 * (1 + random.nextInt(8))});
+		}
+
+		for(String wkt : wkts){
+			Geometry geom = reader.read(wkt);
+			IndexedPolygon polygon = new IndexedPolygon(toRings(geom));
+			for(double [] rect : rects){
+				Classification expected = classifyJTS(factory, geom, rect);
+				assertEquals(wkt + " " + Arrays.toString(rect), expected, polygon.classify(rect[0], rect[1], rect[2], rect[3]));
+
+				// clip to the rectangle expanded as the tree builder does, then check the rectangle and its quarters
+				double expandX = (rect[1] - rect[0]) * 0.005;
+				double expandY = (rect[3] - rect[2]) * 0.005;
+				double [] expanded = new double[]{rect[0] - expandX, rect[1] + expandX, rect[2] - expandY, rect[3] + expandY};
+				IndexedPolygon clipped = polygon.clip(expanded[0], expanded[1], expanded[2], expanded[3]);
+				assertEquals(expected, clipped.classify(rect[0], rect[1], rect[2], rect[3]));
+				double midX = 0.5 * (rect[0] + rect[1]);
+				double midY = 0.5 * (rect[2] + rect[3]);
+				for(double [] quarter : new double[][]{{rect[0], midX, rect[2], midY}, {midX, rect[1], rect[2], midY}, {rect[0], midX, midY, rect[3]}, {midX, rect[1], midY, rect[3]}}){
+					assertEquals(wkt + " " + Arrays.toString(rect) + " " + Arrays.toString(quarter), classifyJTS(factory, geom, quarter), clipped.classify(quarter[0], quarter[1], quarter[2], quarter[3]));
+				}
+
+				// points inside the expanded rectangle must match the JTS intersection
+				Geometry intersection = geom.intersection(factory.toGeometry(new Envelope(expanded[0], expanded[1], expanded[2], expanded[3])));
+				for (int j = 0; j < 10; j++) {
+					double x = expanded[0] + random.nextDouble() * (expanded[1] - expanded[0]);
+					double y = expanded[2] + random.nextDouble() * (expanded[3] - expanded[2]);
+					assertEquals(intersection.contains(factory.createPoint(new Coordinate(x, y))), clipped.contains(x, y));
+				}
+			}
+		}
+	}
+
+	private static Classification classifyJTS(GeometryFactory factory, Geometry geom, double [] rect){
+		Geometry jtsRect = factory.toGeometry(new Envelope(rect[0], rect[1], rect[2], rect[3]));
+		if(geom.getBoundary().intersects(jtsRect)){
+			return Classification.BOUNDARY;
+		}
+		return geom.intersects(jtsRect) ? Classification.INSIDE : Classification.OUTSIDE;
+	}
+
+	private static List<double[]> toRings(Geometry geom){
+		List<double[]> ret = new ArrayList<>();
+		for (int i = 0; i < geom.getNumGeometries(); i++) {
+			Polygon polygon = (Polygon) geom.getGeometryN(i);
+			ret.add(toRing(polygon.getExteriorRing()));
+			for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+				ret.add(toRing(polygon.getInteriorRingN(j)));
+			}
+		}
+		return ret;
+	}
+
+	private static double [] toRing(LineString ring){
+		Coordinate [] coords = ring.getCoordinates();
+		double [] ret = new double[2 * coords.length];
+		for (int i = 0; i < coords.length; i++) {
+			ret[2 * i] = coords[i].x;
+			ret[2 * i + 1] = coords[i].y;
+		}
+		return ret;
+	}
+
+	@Test
+	public void testBatchMatchesSingle(){
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		CompiledSpeedRulesFile compiled= SpeedRegionLookupBuilder.compileFile(uncompiled, 10);
+
+		Random random = new Random(123);
+		int n = 10000;
+		double [] lngs = new double[n];
+		double [] lats = new double[n];
+		for (int i = 0; i < n; i++) {
+			lngs[i] = random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX();
+			lats[i] = random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY();
+		}
+
+		for(QueryEngine engine : QueryEngine.values()){
+			SpeedRegionLookup lookup = SpeedRegionLookupBuilder.fromCompiled(compiled, engine);
+			for(int parallelism : new int[]{1, 4}){
+				String [] types = lookup.findRegionTypes(lngs, lats, parallelism);
+				for (int i = 0; i < n; i++) {
+					assertEquals(lookup.findRegionType(lngs[i], lats[i]), types[i]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWayRegionResolverMatchesQueries(){
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		SpeedRegionLookup lookup = SpeedRegionLookupBuilder.fromCompiled(SpeedRegionLookupBuilder.compileFile(uncompiled, 100), QueryEngine.FLATTENED);
+
+		// random nodes (with negative and zero ids) shared between random ways, leaving the last node without a coordinate
+		Random random = new Random(123);
+		int nbNodes = 5000;
+		double [] lngs = new double[nbNodes];
+		double [] lats = new double[nbNodes];
+		for (int i = 0; i < nbNodes; i++) {
+			lngs[i] = random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX();
+			lats[i] = random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY();
+		}
+		int nbWays = 3000;
+		long [][] wayNodes = new long[nbWays][];
+		for (int i = 0; i < nbWays; i++) {
+			wayNodes[i] = new long[2 + random.nextInt(4)];
+			for (int j = 0; j < wayNodes[i].length; j++) {
+				wayNodes[i][j] = random.nextInt(nbNodes) - 100;
+			}
+		}
+
+		// small pages so the off-heap arrays span many pages
+		for(int pageBits : new int[]{PagedDirectArray.DEFAULT_PAGE_BITS, 4}){
+			for(int parallelism : new int[]{1, 4}){
+				WayRegionResolver resolver = new WayRegionResolver(lookup, false, pageBits);
+				for (int i = 0; i < nbWays; i++) {
+					resolver.addWay(i * 7, wayNodes[i]);
+				}
+				for (int i = 0; i < nbNodes - 1; i++) {
+					resolver.setNodeCoordinate(i - 100, lngs[i], lats[i]);
+				}
+				LongIntHashMap ordinals = resolver.resolve(parallelism);
+
+				for (int i = 0; i < nbWays; i++) {
+					long [] ids = wayNodes[i];
+					int n = ids.length;
+					int first = (int)ids[0] + 100;
+					int last = (int)ids[n-1] + 100;
+					boolean missing = first == nbNodes - 1 || last == nbNodes - 1;
+					int expected = lookup.findRegionOrdinal(0.5 * (lngs[first] + lngs[last]), 0.5 * (lats[first] + lats[last]));
+					assertEquals(missing ? WayRegionResolver.UNRESOLVED_WAY : expected, WayRegionResolver.getRegionOrdinal(ordinals, i * 7));
+				}
+				assertEquals(WayRegionResolver.UNRESOLVED_WAY, WayRegionResolver.getRegionOrdinal(ordinals, 1));
+			}
+		}
+	}
+
+	@Test
+	public void testWayRegionsByTowerNodes(){
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		Geometry jtsGeom=GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry());
+		Envelope boundingBox = jtsGeom.getEnvelopeInternal();
+		boundingBox.expandBy(0.01);
+
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		SpeedRegionLookup lookup = SpeedRegionLookupBuilder.fromCompiled(SpeedRegionLookupBuilder.compileFile(uncompiled, 100), QueryEngine.FLATTENED);
+
+		Random random = new Random(123);
+		int nbNodes = 5000;
+		double [] lngs = new double[nbNodes];
+		double [] lats = new double[nbNodes];
+		for (int i = 0; i < nbNodes; i++) {
+			lngs[i] = random.nextDouble() * boundingBox.getWidth() + boundingBox.getMinX();
+			lats[i] = random.nextDouble() * boundingBox.getHeight() + boundingBox.getMinY();
+		}
+		int nbWays = 3000;
+		long [][] wayNodes = new long[nbWays][];
+		int [] useCounts = new int[nbNodes];
+		for (int i = 0; i < nbWays; i++) {
+			wayNodes[i] = new long[2 + random.nextInt(6)];
+			for (int j = 0; j < wayNodes[i].length; j++) {
+				wayNodes[i][j] = random.nextInt(nbNodes);
+				useCounts[(int)wayNodes[i][j]] += j==0 || j==wayNodes[i].length-1 ? 2 : 1;
+			}
+		}
+
+		// small pages so the off-heap arrays span many pages
+		for(int pageBits : new int[]{PagedDirectArray.DEFAULT_PAGE_BITS, 4}){
+			checkWayRegionsByTowerNodes(lookup, lngs, lats, wayNodes, useCounts, new WayRegionResolver(lookup, true, pageBits));
+		}
+	}
+
+	private static void checkWayRegionsByTowerNodes(SpeedRegionLookup lookup, double[] lngs, double[] lats, long[][] wayNodes, int[] useCounts,
+			WayRegionResolver resolver) {
+		int nbNodes = lngs.length;
+		int nbWays = wayNodes.length;
+		for (int i = 0; i < nbWays; i++) {
+			resolver.addWay(i, wayNodes[i]);
+		}
+		for (int i = 0; i < nbNodes; i++) {
+			resolver.setNodeCoordinate(i, lngs[i], lats[i]);
+		}
+		LongIntHashMap ordinals = resolver.resolve(4);
+
+		// only tower nodes are resolved
+		for (int i = 0; i < nbNodes; i++) {
+			int expected = useCounts[i] > 1 ? lookup.findRegionOrdinal(lngs[i], lats[i]) : WayRegionResolver.UNRESOLVED_WAY;
+			assertEquals(expected, resolver.getNodeRegionOrdinal(i));
+		}
+
+		// ways take the majority of their tower nodes, or the centre on a tie
+		for (int i = 0; i < nbWays; i++) {
+			Map<Integer, Integer> counts = new HashMap<>();
+			for (long node : wayNodes[i]) {
+				int ordinal = resolver.getNodeRegionOrdinal(node);
+				if(ordinal != WayRegionResolver.UNRESOLVED_WAY){
+					counts.put(ordinal, (counts.containsKey(ordinal) ? counts.get(ordinal) : 0) + 1);
+				}
+			}
+			int bestCount = 0;
+			List<Integer> best = new ArrayList<>();
+			for(Map.Entry<Integer, Integer> entry : counts.entrySet()){
+				if(entry.getValue() > bestCount){
+					best.clear();
+					bestCount = entry.getValue();
+				}
+				if(entry.getValue() == bestCount){
+					best.add(entry.getKey());
+				}
+			}
+			int first = (int)wayNodes[i][0];
+			int last = (int)wayNodes[i][wayNodes[i].length-1];
+			int expected = best.size() == 1 ? best.get(0) : lookup.findRegionOrdinal(0.5 * (lngs[first] + lngs[last]), 0.5 * (lats[first] + lats[last]));
+			assertEquals(expected, WayRegionResolver.getRegionOrdinal(ordinals, i));
+		}
+	}
+
+	@Test
+	public void testOffHeapLongIntHashMap(){
+		// compare against a java map, with small pages so the map spans many pages and is rehashed across them
+		OffHeapLongIntHashMap map = new OffHeapLongIntHashMap(16, 4);
+		Map<Long, Integer> expected = new HashMap<>();
+		Random random = new Random(123);
+		for (int i = 0; i < 20000; i++) {
+			long key = random.nextInt(10000) - 100 + (random.nextBoolean() ? 0 : Long.MAX_VALUE - 20000);
+			int value = random.nextInt();
+			if (value == -1) {
+				continue;
+			}
+			map.put(key, value);
+			expected.put(key, value);
+		}
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+			assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+		}
+		for (int i = 0; i < 1000; i++) {
+			long key = 1000000 + i;
+			assertEquals(-1, map.get(key));
+		}
+	}
+
+	@Test
+	public void testLongIntHashMapMaxSize(){
+		try {
+			new LongIntHashMap(LongIntHashMap.MAX_SIZE + 1);
+			fail("Created a map above its maximum size");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains(Integer.toString(LongIntHashMap.MAX_SIZE)));
+		}
+	}
+
+	@Test
+	public void testCollapseParentRelations(){
+		SpeedRule grandparent = new SpeedRule();
+		grandparent.setId("Grandparent");
+		grandparent.setSpeedUnit(SpeedUnit.MILES_PER_HOUR);
+		grandparent.setMultiplier(0.9);
+		grandparent.getSpeedsByRoadType().put("motorway", 60f);
+		SpeedRule parent = new SpeedRule();
+		parent.setId("Parent");
+		parent.setParentId("grandparent");
+		parent.setMultiplier(0.8);
+		parent.getSpeedsByRoadType().put("Primary", 50f);
+		SpeedRule child = new SpeedRule();
+		child.setParentId("PARENT");
+		child.setMultiplier(0.5);
+		child.getSpeedsByRoadType().put("residential", 20f);
+
+		// children before parents to check the order doesn't matter
+		SpeedRule collapsed = new SpeedRulesProcesser().collapseParentRelations(Arrays.asList(child, parent, grandparent)).get(child);
+		assertNull(collapsed.getParentId());
+		assertEquals(0.36, collapsed.getMultiplier(), 1E-9);
+		assertEquals(20, collapsed.getSpeedsByRoadType().get("residential"), 1E-4);
+		assertEquals(25, collapsed.getSpeedsByRoadType().get("primary"), 1E-4);
+		assertEquals(60 * 1.60934 * 0.5 * 0.8, collapsed.getSpeedsByRoadType().get("motorway"), 1E-4);
+		assertEquals(1, child.getSpeedsByRoadType().size());
+
+		// a long chain must resolve without recursing
+		List<SpeedRule> chain = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) {
+			SpeedRule rule = new SpeedRule();
+			rule.setId("r" + i);
+			rule.setParentId(i > 0 ? "r" + (i - 1) : null);
+			rule.getSpeedsByRoadType().put("type" + (i % 10), (float)i);
+			chain.add(rule);
+		}
+		SpeedRule last = new SpeedRulesProcesser().collapseParentRelations(chain).get(chain.get(chain.size()-1));
+		assertEquals(10, last.getSpeedsByRoadType().size());
+		assertEquals(9990, last.getSpeedsByRoadType().get("type0"), 0);
+
+		// cycles are reported
+		chain.get(0).setParentId("r9999");
+		try {
+			new SpeedRulesProcesser().collapseParentRelations(chain);
+			fail("Circular parent ids were not detected");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("circular"));
+		}
+	}
+
+	@Test
+	public void testSpeedMatrixMatchesRules(){
+		// build self-contained rules directly, with a mix of units and missing rules
+		String [] encoders = new String[]{"car", "motorcycle"};
+		String [] regions = new String[]{"a", "b", "c"};
+		String [] highways = new String[]{"motorway", "primary", "residential", "track"};
+		RegionTypeDictionary dictionary = new RegionTypeDictionary(Arrays.asList(regions));
+		Random random = new Random(123);
+		TreeMap<String, TreeMap<String, SpeedRule>> rulesMap = new TreeMap<>();
+		for(String encoder : encoders){
+			TreeMap<String, SpeedRule> map = new TreeMap<>();
+			for(String region : regions){
+				if(region.equals("c") && encoder.equals("car")){
+					continue;
+				}
+				SpeedRule rule = new SpeedRule();
+				rule.setMultiplier(0.5 + random.nextDouble());
+				rule.setSpeedUnit(random.nextBoolean() ? SpeedUnit.KM_PER_HOUR : SpeedUnit.MILES_PER_HOUR);
+				for(String highway : highways){
+					if(random.nextBoolean()){
+						rule.getSpeedsByRoadType().put(highway, (float)(10 + 100 * random.nextDouble()));
+					}
+				}
+				map.put(region, rule);
+			}
+			rulesMap.put(encoder, map);
+		}
+
+		SpeedMatrix matrix = new SpeedMatrix(rulesMap, dictionary);
+		for(String encoder : encoders){
+			int encoderOrdinal = matrix.getEncoderOrdinal(encoder);
+			for (int region = SpeedRegionConsts.NO_REGION_ORDINAL; region < regions.length; region++) {
+				SpeedRule rule = region != SpeedRegionConsts.NO_REGION_ORDINAL ? rulesMap.get(encoder).get(regions[region]) : null;
+				assertEquals(rule != null, matrix.hasRule(encoderOrdinal, region));
+				for(String highway : new String[]{"motorway", "primary", "residential", "track", "unknown", null}){
+					for (int i = 0; i < 10; i++) {
+						double speed = 150 * random.nextDouble();
+						boolean usedMaxSpeed = random.nextBoolean();
+						double expected = rule != null ? rule.applyRule(highway, speed, usedMaxSpeed) : speed;
+						assertEquals(expected, matrix.applyRule(encoderOrdinal, region, matrix.getHighwayOrdinal(highway), speed, usedMaxSpeed), 1E-4);
+						assertTrue(expected <= matrix.getMaxSpeed(encoderOrdinal, 150) + 1E-4);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testReloadSwapsSnapshot() throws Exception{
+		FeatureCollection fc = Examples.createMaltaSingleFeatureCollection();
+		final Point inside = GeomUtils.toJTS(GeomUtils.newGeomFactory(), fc.getFeatures().get(0).getGeometry()).getInteriorPoint();
+		final String originalType = TextUtils.stdString(TextUtils.findRegionType(fc.getFeatures().get(0)));
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(fc);
+		CompiledSpeedRulesFile compiled1= SpeedRegionLookupBuilder.compileFile(uncompiled, 100);
+		TextUtils.setRegionType(fc.getFeatures().get(0), "reloaded");
+		CompiledSpeedRulesFile compiled2= SpeedRegionLookupBuilder.compileFile(uncompiled, 100);
+
+		File file = File.createTempFile("speedregions", ".json");
+		file.deleteOnExit();
+		TextUtils.toJSONFile(compiled1, file);
+		final ReloadableSpeedRegionLookup lookup = new ReloadableSpeedRegionLookup(file, QueryEngine.FLATTENED, 0);
+		assertEquals(1, lookup.getGeneration());
+		assertEquals(originalType, lookup.findRegionType(inside.getX(), inside.getY()));
+		assertFalse(lookup.checkForChanges());
+		SpeedRegionLookup fixed = ReloadableSpeedRegionLookup.fixed(lookup);
+		String fingerprint = SpeedRegionLookupBuilder.getOrdinalsFingerprint(fixed);
+		assertEquals(fingerprint, SpeedRegionLookupBuilder.getOrdinalsFingerprint(SpeedRegionLookupBuilder.fromCompiled(compiled1)));
+
+		TextUtils.toJSONFile(compiled2, file);
+		assertTrue(lookup.checkForChanges());
+		assertEquals(2, lookup.getGeneration());
+		assertEquals("reloaded", lookup.findRegionType(inside.getX(), inside.getY()));
+
+		// a fixed lookup keeps its region types over reloads, and the fingerprint shows the reloaded ordinals differ
+		assertEquals(originalType, fixed.findRegionType(inside.getX(), inside.getY()));
+		assertEquals(fingerprint, SpeedRegionLookupBuilder.getOrdinalsFingerprint(fixed));
+		assertNotEquals(fingerprint, SpeedRegionLookupBuilder.getOrdinalsFingerprint(ReloadableSpeedRegionLookup.fixed(lookup)));
+
+		// queries during reloads must always see a complete snapshot
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Integer>> futures = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			futures.add(executor.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws Exception {
+					int count = 0;
+					for (int j = 0; j < 100000; j++) {
+						ReloadableSpeedRegionLookup.Snapshot snapshot = lookup.getSnapshot();
+						String type = snapshot.getLookup().getRegionType(snapshot.getLookup().findRegionOrdinal(inside.getX(), inside.getY()));
+						String expected = snapshot.getGeneration() % 2 == 0 ? "reloaded" : originalType;
+						if (expected.equals(type)) {
+							count++;
+						}
+					}
+					return count;
+				}
+			}));
+		}
+		for (int i = 0; i < 20; i++) {
+			lookup.reload(i % 2 == 0 ? compiled1 : compiled2);
+		}
+		for(Future<Integer> future : futures){
+			assertEquals(100000, (int)future.get());
+		}
+		executor.shutdown();
+		assertEquals(22, lookup.getGeneration());
+		lookup.close();
+	}
+
+	@Test
+	public void testIncrementalEditsMatchRebuild(){
+		File file = new File("../example-files/GB-feature-collection.geojson");
+		assertTrue("Cannot find GB example file " + file.getAbsolutePath(), file.exists());
+		FeatureCollection fc = TextUtils.fromJSON(file, FeatureCollection.class);
+		double minLength = 1000;
+		TreeBuilder incremental = TreeBuilder.createIncremental(Arrays.asList(fc), minLength, new RegionTypeDictionary());
+		assertMatches(TreeBuilder.build(fc, minLength), incremental.build(), 0);
+
+		// take a region from the middle and build collections without it and with it first
+		Feature edited = fc.getFeatures().get(fc.getFeatures().size() / 2);
+		String regionType = TextUtils.findRegionType(edited);
+		FeatureCollection without = new FeatureCollection();
+		FeatureCollection first = new FeatureCollection();
+		first.add(edited);
+		for(Feature feature : fc.getFeatures()){
+			if(feature != edited){
+				without.add(feature);
+				first.add(feature);
+			}
+		}
+
+		// results can only differ in finest-level cells on borders
+		double tolerance = 0.005;
+		assertTrue(incremental.removeRegion(regionType) > 0);
+		assertMatches(TreeBuilder.build(without, minLength), incremental.build(), tolerance);
+
+		long priority = (fc.getFeatures().size() / 2 + 1) * TreeBuilder.INCREMENTAL_PRIORITY_STEP;
+		for(org.geojson.Polygon polygon : GeomUtils.isGeoJSONPoly(edited.getGeometry()) ? Arrays.asList((org.geojson.Polygon)edited.getGeometry())
+				: GeomUtils.toGeoJSONPolygonList((org.geojson.MultiPolygon)edited.getGeometry())){
+			incremental.insertPolygon(polygon, regionType, priority);
+		}
+		assertMatches(TreeBuilder.build(fc, minLength), incremental.build(), tolerance);
+
+		incremental.reprioritiseRegion(regionType, 1);
+		assertMatches(TreeBuilder.build(first, minLength), incremental.build(), tolerance);
+	}
+
+	/**
+	 * Check the fraction of random points over Great Britain giving different regions for the two trees is within the tolerance
+	 */
+	private static void assertMatches(RegionsSpatialTreeNode expected, RegionsSpatialTreeNode actual, double tolerance){
+		QueryProcessor expectedProcessor = new QueryProcessor(GeomUtils.newGeomFactory(), expected);
+		QueryProcessor actualProcessor = new QueryProcessor(GeomUtils.newGeomFactory(), actual);
+		Random random = new Random(123);
+		int n = 20000;
+		int nbDifferent = 0;
+		for (int i = 0; i < n; i++) {
+			double lng = -6 + 8 * random.nextDouble();
+			double lat = 50 + 8 * random.nextDouble();
+			if(!TextUtils.equalsStd(expectedProcessor.query(lng, lat), actualProcessor.query(lng, lat))){
+				nbDifferent++;
+			}
+		}
+		System.out.println("Incremental tree differs from rebuild for " + nbDifferent + "/" + n + " points");
+		assertTrue(nbDifferent <= tolerance * n);
+	}
+
+	@Test
+	public void testConcurrentQueriesMatchSingleThreaded() throws Exception{
+		File file = new File("../example-files/GB-feature-collection.geojson");
+		assertTrue("Cannot find GB example file " + file.getAbsolutePath(), file.exists());
+		UncompiledSpeedRulesFile uncompiled = new UncompiledSpeedRulesFile();
+		uncompiled.setGeoJson(TextUtils.fromJSON(file, FeatureCollection.class));
+		CompiledSpeedRulesFile compiled= SpeedRegionLookupBuilder.compileFile(uncompiled, 1000);
+
+		// random points and short linestrings over Great Britain
+		Random random = new Random(123);
+		GeometryFactory factory = GeomUtils.newGeomFactory();
+		int nPoints = 20000;
+		int nLines = 2000;
+		final double [] lngs = new double[nPoints];
+		final double [] lats = new double[nPoints];
+		for (int i = 0; i < nPoints; i++) {
+			lngs[i] = -6 + 8 * random.nextDouble();
+			lats[i] = 50 + 8 * random.nextDouble();
+		}
+		final Geometry [] lines = new Geometry[nLines];
+		for (int i = 0; i < nLines; i++) {
+			Coordinate a = new Coordinate(-6 + 8 * random.nextDouble(), 50 + 8 * random.nextDouble());
+			Coordinate b = new Coordinate(a.x + 0.02 * (random.nextDouble() - 0.5), a.y + 0.02 * (random.nextDouble() - 0.5));
+			lines[i] = factory.createLineString(new Coordinate[]{a, b});
+		}
+
+		int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		for(QueryEngine engine : QueryEngine.values()){
+			final SpeedRegionLookup lookup = SpeedRegionLookupBuilder.fromCompiled(compiled, engine);
+			final int [] expectedPoints = new int[nPoints];
+			for (int i = 0; i < nPoints; i++) {
+				expectedPoints[i] = lookup.findRegionOrdinal(lngs[i], lats[i]);
+			}
+			final int [] expectedLines = new int[nLines];
+			for (int i = 0; i < nLines; i++) {
+				expectedLines[i] = lookup.findRegionOrdinal(lines[i]);
+			}
+
+			for(int nThreads = 1 ; nThreads <= maxThreads ; nThreads *=2){
+				ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+				try {
+					// each thread queries everything, starting at a different position
+					List<Future<Integer>> futures = new ArrayList<>();
+					long start = System.nanoTime();
+					for(int t = 0 ; t < nThreads ; t++){
+						final int offset = t * 997;
+						futures.add(executor.submit(new Callable<Integer>() {
+
+							@Override
+							public Integer call() throws Exception {
+								int wrong = 0;
+								for (int i = 0; i < lngs.length; i++) {
+									int index = (i + offset) % lngs.length;
+									if(lookup.findRegionOrdinal(lngs[index], lats[index]) != expectedPoints[index]){
+										wrong++;
+									}
+								}
+								for (int i = 0; i < lines.length; i++) {
+									int index = (i + offset) % lines.length;
+									if(lookup.findRegionOrdinal(lines[index]) != expectedLines[index]){
+										wrong++;
+									}
+								}
+								return wrong;
+							}
+						}));
+					}
+
+					int wrong = 0;
+					for(Future<Integer> future : futures){
+						wrong += future.get();
+					}
+					double seconds = (System.nanoTime() - start) / 1e9;
+					long nQueries = (long) nThreads * (nPoints + nLines);
+					System.out.println("Engine " + engine + ", threads " + nThreads + ", " + Math.round(nQueries / seconds) + " queries/sec");
+					assertEquals("Concurrent results should match single-threaded", 0, wrong);
+				} finally {
+					executor.shutdown();
+				}
+			}
+		}
+	}
 }